@@ -0,0 +1,60 @@
+package com.coresystems.sparky;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs the benchmarks once per thread count and saves the results as json, one file per thread count, so the results
+ * of two builds can be compared. Every benchmark reports its throughput and average time, along with the allocation
+ * rate of the gc profiler.
+ * <p>
+ * Takes the usual JMH options, e.g. a regex to pick the benchmarks. Giving a thread count with {@code -t} runs that
+ * thread count only, a profiler with {@code -prof} replaces the gc profiler.
+ */
+public final class BenchmarkRunner {
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+    private static final String RESULTS_DIRECTORY = "results";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+        if (options.shouldList()) {
+            new Runner(options).list();
+            return;
+        }
+        final File directory = new File(System.getProperty("sparky.results", RESULTS_DIRECTORY));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Failed to create the results directory " + directory);
+        }
+        final String run = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        final int[] threadCounts = options.getThreads().hasValue() ? new int[]{options.getThreads().get()} : THREAD_COUNTS;
+        for (int threads : threadCounts) {
+            final ChainedOptionsBuilder builder = new OptionsBuilder()
+                    .parent(options)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(directory, run + "-threads-" + threads + ".json").getPath());
+            if (options.getProfilers().isEmpty()) {
+                builder.addProfiler(GCProfiler.class);
+            }
+            new Runner(builder.build()).run();
+        }
+    }
+}
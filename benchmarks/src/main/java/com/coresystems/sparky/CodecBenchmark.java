@@ -0,0 +1,106 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The json conversions of the routes. The Gson ones are what the routes used before {@link RegistrationCodec}, they
+ * are kept as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private Registration registration;
+    private String json;
+    private Map<String, String> values;
+
+    /**
+     * The lists of the batch routes.
+     */
+    @State(Scope.Benchmark)
+    public static class Lists {
+        @Param({"10", "100"})
+        public int listSize;
+
+        private List<Registration> registrations;
+        private String json;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            registrations = Arrays.asList(StoreBenchmark.createRegistrations(listSize));
+            json = RegistrationCodec.toJson(registrations);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registration = StoreBenchmark.createRegistrations(1)[0];
+        json = RegistrationCodec.toJson(registration);
+        values = new HashMap<>();
+        values.put("account", registration.getAccount());
+        values.put("userName", registration.getUserName());
+        values.put("fullName", "");
+    }
+
+    @Benchmark
+    public Registration fromJson() {
+        return SparkyService.fromJson(json);
+    }
+
+    @Benchmark
+    public Registration fromJsonGson() {
+        return Webapp.gson.fromJson(json, Registration.class);
+    }
+
+    @Benchmark
+    public List<Registration> fromJsonList(Lists lists) {
+        return SparkyService.fromJsonList(lists.json);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return RegistrationCodec.toJson(registration);
+    }
+
+    @Benchmark
+    public String toJsonGson() {
+        return Webapp.gson.toJson(registration);
+    }
+
+    @Benchmark
+    public String toJsonList(Lists lists) {
+        return RegistrationCodec.toJson(lists.registrations);
+    }
+
+    @Benchmark
+    public String toJsonListGson(Lists lists) {
+        return Webapp.gson.toJson(lists.registrations);
+    }
+
+    @Benchmark
+    public Map<String, String> replaceEmptyWithDefault() {
+        return SparkyService.replaceEmptyWithDefault(values);
+    }
+}
@@ -0,0 +1,97 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.JournalStore;
+import com.coresystems.sparky.store.Registration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The write path of the persistent store, in front of a {@link ConcurrentStore} as the web app uses it. The journal
+ * is kept in a temporary directory, so the numbers depend on the disk it is on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalStoreBenchmark {
+
+    @Param({"10000"})
+    public int size;
+
+    private File directory;
+    private JournalStore store;
+    private Registration[] registrations;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sparky-journal").toFile();
+        store = new JournalStore(StoreBenchmark.createStore("ConcurrentStore", size), directory);
+        registrations = StoreBenchmark.createRegistrations(size);
+        for (Registration registration : registrations) {
+            store.put(registration.getCallerId(), registration);
+        }
+        store.flush();
+    }
+
+    /**
+     * Waits for the journal after each iteration, so the writes of one iteration don't pile up into the next.
+     */
+    @TearDown(Level.Iteration)
+    public void flush() {
+        store.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * A put as the routes make it, the journal is written in the background.
+     */
+    @Benchmark
+    public void put() {
+        final Registration registration = next();
+        store.put(registration.getCallerId(), registration);
+    }
+
+    /**
+     * A put which waits until it is synced to the disk. Concurrent threads share the syncs of the group commit.
+     */
+    @Benchmark
+    public void putAndFlush() {
+        put();
+        store.flush();
+    }
+
+    private Registration next() {
+        return registrations[ThreadLocalRandom.current().nextInt(registrations.length)];
+    }
+}
@@ -0,0 +1,371 @@
+package com.coresystems.sparky;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import spark.Spark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Starts the web app on a local port, with fake twilio credentials, and sends it a mix of /token, /users and
+ * /unregister requests of many users, at one fixed rate after the other.
+ * <p>
+ * Requests are sent on schedule, whether or not the earlier ones have been answered (open loop), and the latency of a
+ * request is measured from the moment it was scheduled. A stalled server therefore shows up in the percentiles,
+ * instead of just slowing down the load (coordinated omission).
+ * <p>
+ * For each rate the latency percentiles of each route are printed, followed by the throughput-vs-latency curve over
+ * all rates, which is also saved as csv. Options, all of them optional:
+ * <pre>
+ * --rates 100,200,400,800          the requests per second of each step
+ * --duration 30                    the seconds each rate is kept up
+ * --warmup 10                      the seconds of the first rate to run before measuring
+ * --accounts 50                    the number of simulated accounts
+ * --users 40                       the number of simulated users per account
+ * --mix token=60,users=35,unregister=5
+ * --connections 64                 the number of requests in flight at most
+ * --url http://host:4567           a running server to send the requests to, instead of starting one
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final String RESULTS_DIRECTORY = "results";
+    // Latencies are recorded in microseconds, anything beyond a minute counts as a minute
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(1);
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private enum Route {
+        TOKEN("/token"), USERS("/users"), UNREGISTER("/unregister");
+
+        final String path;
+
+        Route(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * The latencies of one rate.
+     */
+    private static final class Step {
+        final int rate;
+        final Map<Route, Histogram> latencies = new EnumMap<>(Route.class);
+        final Map<Route, LongAdder> errors = new EnumMap<>(Route.class);
+        final Histogram all = new ConcurrentHistogram(MAX_LATENCY, 3);
+        final long started = System.nanoTime();
+        final AtomicLong finished = new AtomicLong(started);
+
+        Step(int rate) {
+            this.rate = rate;
+            for (Route route : Route.values()) {
+                latencies.put(route, new ConcurrentHistogram(MAX_LATENCY, 3));
+                errors.put(route, new LongAdder());
+            }
+        }
+
+        void record(Route route, long scheduled, boolean failed) {
+            final long now = System.nanoTime();
+            final long latency = Math.min(TimeUnit.NANOSECONDS.toMicros(now - scheduled), MAX_LATENCY);
+            latencies.get(route).recordValue(latency);
+            all.recordValue(latency);
+            if (failed) {
+                errors.get(route).increment();
+            }
+            finished.accumulateAndGet(now, Math::max);
+        }
+
+        /**
+         * @return the requests answered per second, over the time it took to answer all of them.
+         */
+        double getThroughput() {
+            final long nanos = finished.get() - started;
+            return nanos == 0 ? 0 : all.getTotalCount() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+    }
+
+    private final String url;
+    private final int usersPerAccount;
+    private final Route[] mix;
+    private final ExecutorService executor;
+    private final AtomicReferenceArray<String> tokens;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private LoadGenerator(String url, int accounts, int usersPerAccount, Route[] mix, int connections) {
+        this.url = url;
+        this.usersPerAccount = usersPerAccount;
+        this.mix = mix;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(connections, runnable -> {
+            final Thread thread = new Thread(runnable, "sparky-load-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.tokens = new AtomicReferenceArray<>(accounts * usersPerAccount);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = parseOptions(args);
+        final int connections = Integer.parseInt(options.getOrDefault("connections", "64"));
+        //Lets the connections of all request threads be kept alive
+        System.setProperty("http.maxConnections", String.valueOf(connections));
+        String url = options.get("url");
+        if (url == null) {
+            final int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            Spark.port(port);
+            Webapp.start(SparkyServiceBenchmark::createFakeCredentials);
+            Spark.awaitInitialization();
+            url = "http://localhost:" + port;
+        }
+
+        final LoadGenerator generator = new LoadGenerator(url,
+                Integer.parseInt(options.getOrDefault("accounts", "50")),
+                Integer.parseInt(options.getOrDefault("users", "40")),
+                parseMix(options.getOrDefault("mix", "token=60,users=35,unregister=5")),
+                connections);
+        final int[] rates = parseRates(options.getOrDefault("rates", "100,200,400,800"));
+        final long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        final long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+
+        System.out.println("Registering " + generator.tokens.length() + " users at " + url);
+        generator.registerAll();
+        if (warmup > 0) {
+            System.out.println("Warming up at " + rates[0] + " requests/s");
+            generator.run(rates[0], warmup);
+        }
+        final List<Step> steps = new ArrayList<>();
+        for (int rate : rates) {
+            final Step step = generator.run(rate, duration);
+            print(step);
+            steps.add(step);
+        }
+        printCurve(steps);
+        final File results = save(steps);
+        System.out.println("Saved the results to " + results);
+        if (!options.containsKey("url")) {
+            Spark.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Mints a token for every simulated user, so /users and /unregister requests are made by registered users.
+     */
+    private void registerAll() {
+        final Step step = new Step(0);
+        for (int user = 0; user < tokens.length(); user++) {
+            send(Route.TOKEN, user, System.nanoTime(), step);
+        }
+        if (step.errors.get(Route.TOKEN).sum() > 0) {
+            throw new IllegalStateException("Failed to register the users, is the server running?");
+        }
+    }
+
+    /**
+     * Sends requests at the given rate for the given time, and waits for them to be answered.
+     */
+    private Step run(int rate, long durationNanos) throws InterruptedException {
+        final Step step = new Step(rate);
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long requests = durationNanos / interval;
+        for (long i = 0; i < requests; i++) {
+            final long scheduled = step.started + i * interval;
+            final long delay = scheduled - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            final Route route = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+            final int user = ThreadLocalRandom.current().nextInt(tokens.length());
+            inFlight.incrementAndGet();
+            //Waiting for a free connection counts towards the latency, just as if the server were slow to accept it
+            executor.execute(() -> {
+                send(route, user, scheduled, step);
+                inFlight.decrementAndGet();
+            });
+        }
+        while (inFlight.get() > 0) {
+            Thread.sleep(10);
+        }
+        return step;
+    }
+
+    private void send(Route route, int user, long scheduled, Step step) {
+        final String account = "account" + user / usersPerAccount;
+        final String userName = "user" + user;
+        final String body;
+        switch (route) {
+            case TOKEN:
+                body = "{\"account\":\"" + account + "\",\"userName\":\"" + userName + "\",\"fullName\":\"User " + user + "\"}";
+                break;
+            default:
+                final String token = tokens.get(user);
+                body = "{\"account\":\"" + account + "\",\"userName\":\"" + userName + "\",\"token\":\"" + (token == null ? "" : token) + "\"}";
+        }
+        boolean failed = true;
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url + route.path).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(30000);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            final int status = connection.getResponseCode();
+            //The response is read completely, so the connection can be reused
+            final String response = read(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            failed = status != 200;
+            if (!failed && route == Route.TOKEN) {
+                tokens.set(user, RegistrationCodec.read(response).registration.getToken());
+            } else if (!failed && route == Route.UNREGISTER) {
+                tokens.set(user, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+        }
+        step.record(route, scheduled, failed);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream stream = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void print(Step step) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%d requests/s - answered %.1f requests/s, latencies in ms%n", step.rate, step.getThroughput());
+        System.out.printf(Locale.ROOT, "%-12s %8s %7s %9s %9s %9s %9s %9s%n", "route", "count", "errors", "p50", "p90", "p99", "p99.9", "max");
+        for (Route route : Route.values()) {
+            final Histogram latencies = step.latencies.get(route);
+            if (latencies.getTotalCount() > 0) {
+                printRow(route.path, latencies, step.errors.get(route).sum());
+            }
+        }
+        printRow("all", step.all, step.errors.values().stream().mapToLong(LongAdder::sum).sum());
+    }
+
+    private static void printRow(String name, Histogram latencies, long errors) {
+        System.out.printf(Locale.ROOT, "%-12s %8d %7d", name, latencies.getTotalCount(), errors);
+        for (double percentile : PERCENTILES) {
+            System.out.printf(Locale.ROOT, " %9.2f", latencies.getValueAtPercentile(percentile) / 1000.0);
+        }
+        System.out.printf(Locale.ROOT, " %9.2f%n", latencies.getMaxValue() / 1000.0);
+    }
+
+    private static void printCurve(List<Step> steps) {
+        System.out.println();
+        System.out.println("Throughput vs latency, in ms");
+        System.out.printf(Locale.ROOT, "%10s %10s %9s %9s %9s%n", "rate", "answered", "p50", "p99", "p99.9");
+        for (Step step : steps) {
+            System.out.printf(Locale.ROOT, "%10d %10.1f %9.2f %9.2f %9.2f%n", step.rate, step.getThroughput(),
+                    step.all.getValueAtPercentile(50) / 1000.0, step.all.getValueAtPercentile(99) / 1000.0,
+                    step.all.getValueAtPercentile(99.9) / 1000.0);
+        }
+    }
+
+    /**
+     * Writes a row per rate and route, and one for all routes of a rate. Latencies are in microseconds.
+     */
+    private static File save(List<Step> steps) throws IOException {
+        final File directory = new File(System.getProperty("sparky.results", RESULTS_DIRECTORY));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create the results directory " + directory);
+        }
+        final File file = new File(directory, "load-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".csv");
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println("rate,route,answered_per_second,count,errors,p50_us,p90_us,p99_us,p99_9_us,max_us");
+            for (Step step : steps) {
+                for (Route route : Route.values()) {
+                    writeRow(out, step, route.path, step.latencies.get(route), step.errors.get(route).sum());
+                }
+                writeRow(out, step, "all", step.all, step.errors.values().stream().mapToLong(LongAdder::sum).sum());
+            }
+        }
+        return file;
+    }
+
+    private static void writeRow(PrintWriter out, Step step, String route, Histogram latencies, long errors) {
+        out.printf(Locale.ROOT, "%d,%s,%.1f,%d,%d", step.rate, route,
+                step.getThroughput() * latencies.getTotalCount() / Math.max(1, step.all.getTotalCount()), latencies.getTotalCount(), errors);
+        for (double percentile : PERCENTILES) {
+            out.printf(Locale.ROOT, ",%d", latencies.getValueAtPercentile(percentile));
+        }
+        out.printf(Locale.ROOT, ",%d%n", latencies.getMaxValue());
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option instead of " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static int[] parseRates(String rates) {
+        final String[] values = rates.split(",");
+        final int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * @return the routes to pick from, each one as many times as its weight.
+     */
+    private static Route[] parseMix(String mix) {
+        final List<Route> routes = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            final String[] weight = entry.split("=");
+            final Route route = Route.valueOf(weight[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(weight[1].trim()); i > 0; i--) {
+                routes.add(route);
+            }
+        }
+        if (routes.isEmpty()) {
+            throw new IllegalArgumentException("The mix holds no requests: " + mix);
+        }
+        return routes.toArray(new Route[0]);
+    }
+}
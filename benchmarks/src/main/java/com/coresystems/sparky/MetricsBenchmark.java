@@ -0,0 +1,83 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.MeteredStore;
+import com.coresystems.sparky.store.Registration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of the instrumentation: timing a call into a latency histogram, and counting the hits and misses of
+ * the store. Run with several threads, all of them record into the same histogram, just as the request threads do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final int SIZE = 10000;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private KeyValueStorage<String, Registration> store;
+    private MeteredStore meteredStore;
+    private Registration[] registrations;
+    private Metrics metrics;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = StoreBenchmark.createStore("ConcurrentStore", SIZE);
+        meteredStore = new MeteredStore(store);
+        registrations = StoreBenchmark.createRegistrations(SIZE);
+        for (Registration registration : registrations) {
+            store.put(registration.getCallerId(), registration);
+        }
+        metrics = new Metrics();
+        metrics.histogram("latency_seconds", "Latency.", "route", java.util.Collections.singletonMap("/token", histogram));
+        metrics.counter("hits_total", "Hits.", meteredStore::getHits);
+        metrics.gauge("account_size", "Size.", "account", meteredStore::getAccountSizes);
+    }
+
+    /**
+     * What timing a route or service method costs.
+     */
+    @Benchmark
+    public void recordLatency() {
+        histogram.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    public Registration get() {
+        return store.get(next().getCallerId());
+    }
+
+    @Benchmark
+    public Registration meteredGet() {
+        return meteredStore.get(next().getCallerId());
+    }
+
+    /**
+     * A scrape of /metrics, with {@value #SIZE} registrations in 200 accounts.
+     */
+    @Benchmark
+    public String write() {
+        return metrics.write();
+    }
+
+    private Registration next() {
+        return registrations[ThreadLocalRandom.current().nextInt(registrations.length)];
+    }
+}
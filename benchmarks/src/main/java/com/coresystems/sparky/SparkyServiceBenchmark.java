@@ -0,0 +1,130 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service calls behind /token and /users. The accounts have {@link #accountSize} users each, every one of them
+ * holding a token, so /token is answered from the store unless the request forces a new token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparkyServiceBenchmark {
+    private static final int ACCOUNTS = 10;
+
+    @Param({"10", "100", "1000"})
+    public int accountSize;
+
+    private SparkyService service;
+    private Properties properties;
+    private String[] authenticationRequests;
+    private String[] reAuthenticationRequests;
+    private String[] usersRequests;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        //Measures the service, not the log
+        Webapp.logger.setLevel(java.util.logging.Level.WARNING);
+        properties = createFakeCredentials();
+        final int users = ACCOUNTS * accountSize;
+        service = new SparkyService(new MockStore(users * 2));
+        authenticationRequests = new String[users];
+        reAuthenticationRequests = new String[users];
+        usersRequests = new String[users];
+        for (int i = 0; i < users; i++) {
+            final String user = "\"account\":\"account" + i / accountSize + "\",\"userName\":\"user" + i + "\",\"fullName\":\"User " + i + "\"";
+            authenticationRequests[i] = "{" + user + "}";
+            reAuthenticationRequests[i] = "{" + user + ",\"forceReAuthentication\":\"true\"}";
+            final Registration registration = RegistrationCodec.read(service.getAuthenticationJson(properties, authenticationRequests[i])).registration;
+            usersRequests[i] = RegistrationCodec.toJson(registration);
+        }
+    }
+
+    @Benchmark
+    public String getAuthenticationJsonHit() {
+        return service.getAuthenticationJson(properties, authenticationRequests[nextUser()]);
+    }
+
+    /**
+     * Mints a new token on every call.
+     */
+    @Benchmark
+    public String getAuthenticationJsonMiss() {
+        return service.getAuthenticationJson(properties, reAuthenticationRequests[nextUser()]);
+    }
+
+    @Benchmark
+    public List<Registration> getAuthenticatedUsersByAccount() {
+        return service.getAuthenticatedUsersByAccount(usersRequests[nextUser()]);
+    }
+
+    /**
+     * The same users as {@link #getAuthenticatedUsersByAccount()}, as /users writes them to the response.
+     */
+    @Benchmark
+    public void writeAuthenticatedUsersByAccount() throws IOException {
+        service.writeAuthenticatedUsersByAccount(usersRequests[nextUser()], null, 0, DiscardingWriter.INSTANCE);
+    }
+
+    /**
+     * @return credentials to mint tokens with - tokens are signed locally, so they are never sent to twilio.
+     */
+    static Properties createFakeCredentials() {
+        final Properties properties = new Properties();
+        properties.put(SparkyService.ACCOUNT_SID, "ACbenchmark");
+        properties.put(SparkyService.VIDEO_CONFIGURATION_SID, "VSbenchmark");
+        properties.put(SparkyService.API_KEY, "SKbenchmark");
+        properties.put(SparkyService.API_SECRET, "benchmark-secret");
+        return properties;
+    }
+
+    private int nextUser() {
+        return ThreadLocalRandom.current().nextInt(usersRequests.length);
+    }
+
+    /**
+     * Stands in for the response, so only the allocations of the service are measured.
+     */
+    private static final class DiscardingWriter extends Writer {
+        static final DiscardingWriter INSTANCE = new DiscardingWriter();
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The operations of the stores behind the routes, on a store filled up to its capacity. Every operation picks a random
+ * user, so concurrent threads mostly work on different keys - as the requests of different users do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    static final int USERS_PER_ACCOUNT = 50;
+
+    @Param({"MockStore", "ConcurrentStore"})
+    public String storeType;
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private KeyValueStorage<String, Registration> store;
+    private Registration[] registrations;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = createStore(storeType, size);
+        registrations = createRegistrations(size);
+        for (Registration registration : registrations) {
+            store.put(registration.getCallerId(), registration);
+        }
+    }
+
+    @Benchmark
+    public void put() {
+        final Registration registration = next();
+        store.put(registration.getCallerId(), registration);
+    }
+
+    @Benchmark
+    public Registration get() {
+        return store.get(next().getCallerId());
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return store.containsKey(next().getCallerId());
+    }
+
+    @Benchmark
+    public boolean isValidEntry() {
+        return store.isValidEntry(next());
+    }
+
+    /**
+     * Goes through all keys, so it is expected to grow with the size of the store.
+     */
+    @Benchmark
+    public List<Registration> getKeyContains() {
+        return store.getKeyContains(store, next().getUserName());
+    }
+
+    private Registration next() {
+        return registrations[ThreadLocalRandom.current().nextInt(registrations.length)];
+    }
+
+    static KeyValueStorage<String, Registration> createStore(String storeType, int capacity) {
+        switch (storeType) {
+            case "MockStore":
+                return new MockStore(capacity);
+            case "ConcurrentStore":
+                //Each segment enforces its share of the capacity, so a little room keeps the filled store from evicting
+                return new ConcurrentStore(capacity * 2);
+            default:
+                throw new IllegalArgumentException("Unknown store: " + storeType);
+        }
+    }
+
+    /**
+     * @return registrations with tokens which don't expire during the benchmark, {@link #USERS_PER_ACCOUNT} per account.
+     */
+    static Registration[] createRegistrations(int count) {
+        final Registration[] registrations = new Registration[count];
+        final long expiresAt = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        for (int i = 0; i < count; i++) {
+            final String account = "account" + i / USERS_PER_ACCOUNT;
+            final String userName = "user" + i;
+            registrations[i] = new Registration(account, userName, "User " + i, "token" + i,
+                    MockStore.Companion.createKey(account, userName), expiresAt, "");
+        }
+        return registrations;
+    }
+}
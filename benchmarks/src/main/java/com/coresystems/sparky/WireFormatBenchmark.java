@@ -0,0 +1,123 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bytes sent by /token and /users as json and in the binary form of {@link BinaryCodec}: the time to encode and
+ * decode them, Gson being the baseline. The json is encoded to bytes as well, as it is on the wire. The payload sizes
+ * are printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+    private static final String ACCOUNT = "CBI";
+
+    @Param({"10", "100"})
+    public int listSize;
+
+    private Registration authentication;
+    private List<Registration> users;
+    private byte[] requestJson;
+    private byte[] requestBinary;
+    private byte[] usersJson;
+    private byte[] usersBinary;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Registration registration = StoreBenchmark.createRegistrations(1)[0];
+        //About as long as a minted token
+        authentication = new Registration(ACCOUNT, registration.getUserName(), registration.getFullName(), StringUtils.repeat("eyJhbGciOiJIUzI1NiJ9", 20),
+                MockStore.Companion.createKey(ACCOUNT, registration.getUserName()));
+        users = new ArrayList<>();
+        for (Registration user : StoreBenchmark.createRegistrations(listSize)) {
+            users.add(new Registration(ACCOUNT, user.getUserName(), user.getFullName(), StringUtils.EMPTY,
+                    MockStore.Companion.createKey(ACCOUNT, user.getUserName())));
+        }
+        requestJson = RegistrationCodec.toJson(authentication).getBytes(StandardCharsets.UTF_8);
+        requestBinary = BinaryCodec.toBytes(authentication, false);
+        usersJson = RegistrationCodec.toJson(users).getBytes(StandardCharsets.UTF_8);
+        usersBinary = BinaryCodec.toUserList(ACCOUNT, users);
+        System.out.printf("%nPayload bytes: authentication json %d, binary %d; %d users json %d, binary %d%n",
+                requestJson.length, requestBinary.length, listSize, usersJson.length, usersBinary.length);
+    }
+
+    @Benchmark
+    public byte[] writeAuthenticationGson() {
+        return Webapp.gson.toJson(authentication).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeAuthenticationJson() {
+        return SparkyService.toAuthenticationJson(authentication, false, null).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeAuthenticationBinary() {
+        return BinaryCodec.toAuthentication(authentication, false, null);
+    }
+
+    @Benchmark
+    public Registration readRequestGson() {
+        return Webapp.gson.fromJson(new String(requestJson, StandardCharsets.UTF_8), Registration.class);
+    }
+
+    @Benchmark
+    public Registration readRequestJson() {
+        return RegistrationCodec.read(new String(requestJson, StandardCharsets.UTF_8)).registration;
+    }
+
+    @Benchmark
+    public Registration readRequestBinary() {
+        return BinaryCodec.read(requestBinary).registration;
+    }
+
+    @Benchmark
+    public byte[] writeUsersGson() {
+        return Webapp.gson.toJson(users).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeUsersJson() {
+        return RegistrationCodec.toJson(users).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeUsersBinary() {
+        return BinaryCodec.toUserList(ACCOUNT, users);
+    }
+
+    @Benchmark
+    public Registration[] readUsersGson() {
+        return Webapp.gson.fromJson(new String(usersJson, StandardCharsets.UTF_8), Registration[].class);
+    }
+
+    @Benchmark
+    public List<Registration> readUsersBinary() {
+        final List<Registration> result = new ArrayList<>(listSize);
+        BinaryCodec.readUserList(usersBinary, result);
+        return result;
+    }
+}
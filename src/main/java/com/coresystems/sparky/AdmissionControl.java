@@ -0,0 +1,84 @@
+package com.coresystems.sparky;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of requests worked on at the same time. Further requests wait for a slot, but only up to a max
+ * number of them and for a limited time - requests finding the queue full, or not getting a slot in time, are
+ * rejected right away. An overloaded server therefore answers quickly with 503 instead of letting the latency of
+ * every request grow without limit.
+ */
+final class AdmissionControl {
+    private final Semaphore slots;
+    private final int maxActive;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxActive     the number of requests worked on at the same time.
+     * @param maxQueued     the number of requests which may wait for a slot.
+     * @param maxWaitMillis how long a request waits for a slot at most.
+     */
+    AdmissionControl(int maxActive, int maxQueued, long maxWaitMillis) {
+        this.slots = new Semaphore(maxActive);
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * @return true if the request was admitted, it has to {@link #release()} its slot once done; false if it was
+     * rejected.
+     */
+    boolean tryAcquire() {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        try {
+            if (slots.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    void release() {
+        slots.release();
+    }
+
+    /**
+     * @return the number of requests waiting for a slot.
+     */
+    int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of slots taken.
+     */
+    int getActive() {
+        return maxActive - slots.availablePermits();
+    }
+
+    /**
+     * @return the number of requests rejected so far.
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,188 @@
+package com.coresystems.sparky;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands log records over to a background thread, which formats them as plain text lines and writes them in batches
+ * through a buffered writer - logging never makes the calling thread wait for the disk.
+ * <p>
+ * The records wait in a bounded queue. Once it is full, records below {@link Level#WARNING} are dropped, while
+ * warnings and errors take the place of the oldest waiting record. The number of dropped records is written to the
+ * log as soon as the writer catches up again.
+ */
+final class AsyncLogHandler extends Handler {
+    private static final int MAX_BATCH = 512;
+    private static final int MAX_ATTEMPTS = 4;
+    // Wakes the writer up to see it's closed, never published
+    private static final LogRecord CLOSE = new LogRecord(Level.OFF, "");
+
+    private final BlockingQueue<LogRecord> queue;
+    private final Writer out;
+    private final boolean closeOut;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+    // Only accessed by the writer thread
+    private final StringBuilder line = new StringBuilder(256);
+    private long reportedDrops;
+
+    /**
+     * @return a handler appending to the given file.
+     */
+    @NotNull
+    static AsyncLogHandler toFile(@NotNull String path, int capacity) throws IOException {
+        return new AsyncLogHandler(new FileOutputStream(path, true), true, capacity, "sparky-log-writer");
+    }
+
+    /**
+     * @return a handler writing to the standard output.
+     */
+    @NotNull
+    static AsyncLogHandler toConsole(int capacity) {
+        return new AsyncLogHandler(System.out, false, capacity, "sparky-console-writer");
+    }
+
+    private AsyncLogHandler(@NotNull OutputStream out, boolean closeOut, int capacity, @NotNull String threadName) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        this.closeOut = closeOut;
+        writer = new Thread(this::writeLoop, threadName);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (queue.offer(record)) {
+            return;
+        }
+        if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+            //Other threads compete for the slot we make room for, so we try a few times
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                if (queue.poll() != null) {
+                    dropped.increment();
+                }
+                if (queue.offer(record)) {
+                    return;
+                }
+            }
+        }
+        dropped.increment();
+    }
+
+    /**
+     * The writer flushes after every batch anyway, so this doesn't wait for anything.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes all records published so far and stops the writer.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            //If the queue is full the writer is busy anyway, and sees the flag once it caught up
+            queue.offer(CLOSE);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of records dropped since the queue was full.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        final List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            //Not up to the sentinel, a warning may have taken its place in a full queue
+            stop = closed && queue.isEmpty();
+            try {
+                for (LogRecord record : batch) {
+                    if (record != CLOSE) {
+                        write(record);
+                    }
+                }
+                final long drops = dropped.sum();
+                if (drops > reportedDrops) {
+                    writeLine(System.currentTimeMillis(), Level.WARNING, AsyncLogHandler.class.getSimpleName(), (drops - reportedDrops) + " log records were dropped, since the log couldn't keep up.");
+                    reportedDrops = drops;
+                }
+                out.flush();
+                if (stop && closeOut) {
+                    out.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                reportError("Failed to write the log.", e, ErrorManager.WRITE_FAILURE);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(@NotNull LogRecord record) throws IOException {
+        final Object[] parameters = record.getParameters();
+        final String message = parameters == null || parameters.length == 0 || record.getMessage() == null
+                ? record.getMessage() : MessageFormat.format(record.getMessage(), parameters);
+        writeLine(record.getMillis(), record.getLevel(), record.getLoggerName(), message);
+        if (record.getThrown() != null) {
+            //Printed to a buffer first, since the PrintWriter would flush the file on its own
+            final StringWriter stackTrace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+            out.append(stackTrace.getBuffer());
+        }
+    }
+
+    private void writeLine(long millis, @NotNull Level level, String loggerName, String message) throws IOException {
+        //The line is reused, so a record costs no allocations besides the ones of the timestamp
+        line.setLength(0);
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(millis), line);
+        line.append(' ').append(level.getName())
+                .append(' ').append(loggerName)
+                .append(" - ").append(message)
+                .append(System.lineSeparator());
+        out.append(line);
+    }
+}
@@ -0,0 +1,229 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads and writes the compact binary form of the requests and responses of /token and /users, for clients which
+ * send or accept {@link #CONTENT_TYPE}. There are no field names, the fields follow each other in a fixed order:
+ * <ul>
+ * <li>a string is the length of its UTF-8 bytes as unsigned varint, followed by the bytes</li>
+ * <li>a request is account, userName, fullName, token and callerId, followed by a byte of flags - the lowest bit
+ * is forceReAuthentication. Trailing fields may be left out and are empty then, further bytes are ignored</li>
+ * <li>the response of /token is a request as well, holding the token and followed by the error - empty unless minting
+ * the token failed</li>
+ * <li>the response of /users is the account, then a byte 1 followed by userName and fullName for every user, then a
+ * byte 0 followed by the cursor of the next page, empty if there is none. The users of a list have no token, and their
+ * callerId is account and userName - so neither is sent</li>
+ * </ul>
+ * Like {@link RegistrationCodec}, registrations are read and written straight from and to the bytes.
+ */
+final class BinaryCodec {
+    static final String CONTENT_TYPE = "application/x-sparky";
+
+    private static final int FORCE_REAUTHENTICATION = 1;
+    private static final int USER = 1;
+    private static final int END = 0;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * @param bytes a request as described above.
+     * @return the request; an empty request if the given bytes are null or empty.
+     * @throws IllegalArgumentException if the given bytes are malformed.
+     */
+    @NotNull
+    static RegistrationCodec.Request read(@Nullable byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return RegistrationCodec.EMPTY_REQUEST;
+        }
+        final Input in = new Input(bytes);
+        final Registration registration = new Registration(in.readString(), in.readString(), in.readString(), in.readString(), in.readString());
+        final boolean forceReAuthentication = (in.readFlags() & FORCE_REAUTHENTICATION) != 0;
+        return new RegistrationCodec.Request(registration, forceReAuthentication);
+    }
+
+    /**
+     * @return the given request as read by {@link #read(byte[])}.
+     */
+    @NotNull
+    static byte[] toBytes(@NotNull Registration registration, boolean forceReAuthentication) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        try {
+            writeRegistration(out, registration);
+            out.write(forceReAuthentication ? FORCE_REAUTHENTICATION : 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param registration the registration holding the token, or the requested one if minting failed.
+     * @param error        the reason minting failed; null if it didn't.
+     * @return the response to an authentication request.
+     */
+    @NotNull
+    static byte[] toAuthentication(@NotNull Registration registration, boolean forceReAuthentication, @Nullable String error) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(registration.getToken().length() + 64);
+        try {
+            writeRegistration(out, registration);
+            out.write(forceReAuthentication ? FORCE_REAUTHENTICATION : 0);
+            writeString(out, StringUtils.defaultString(error));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param users the users of the list, without the requester.
+     * @return the given users as a response of /users, without a cursor.
+     */
+    @NotNull
+    static byte[] toUserList(@NotNull String account, @NotNull List<Registration> users) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(32 + users.size() * 32);
+        final SparkyService.UserListWriter writer = createUserListWriter(out, account);
+        try {
+            writer.begin();
+            for (Registration user : users) {
+                writer.write(user);
+            }
+            writer.end(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes a response of /users.
+     * @param users the list the users are added to, along with their callerId.
+     * @return the cursor of the next page; an empty String if there is none.
+     * @throws IllegalArgumentException if the given bytes are malformed.
+     */
+    @NotNull
+    static String readUserList(@NotNull byte[] bytes, @NotNull List<Registration> users) {
+        final Input in = new Input(bytes);
+        final String account = in.readString();
+        int marker;
+        while ((marker = in.readByte()) == USER) {
+            final String userName = in.readString();
+            users.add(new Registration(account, userName, in.readString(), StringUtils.EMPTY, MockStore.Companion.createKey(account, userName)));
+        }
+        if (marker != END) {
+            throw new IllegalArgumentException("Unexpected marker " + marker + " at " + in.position);
+        }
+        return in.readString();
+    }
+
+    /**
+     * @param account the account of the users written.
+     * @return a writer of the user list of the given account to the given stream.
+     */
+    @NotNull
+    static SparkyService.UserListWriter createUserListWriter(@NotNull OutputStream out, @NotNull String account) {
+        return new SparkyService.UserListWriter() {
+            @Override
+            public void begin() throws IOException {
+                writeString(out, account);
+            }
+
+            @Override
+            public void write(@NotNull Registration user) throws IOException {
+                out.write(USER);
+                writeString(out, user.getUserName());
+                writeString(out, user.getFullName());
+            }
+
+            @Override
+            public void end(@Nullable String cursor) throws IOException {
+                out.write(END);
+                writeString(out, StringUtils.defaultString(cursor));
+            }
+        };
+    }
+
+    private static void writeRegistration(@NotNull OutputStream out, @NotNull Registration registration) throws IOException {
+        writeString(out, registration.getAccount());
+        writeString(out, registration.getUserName());
+        writeString(out, registration.getFullName());
+        writeString(out, registration.getToken());
+        writeString(out, registration.getCallerId());
+    }
+
+    private static void writeString(@NotNull OutputStream out, @NotNull String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        while (length >= 0x80) {
+            out.write(length & 0x7f | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes);
+    }
+
+    /**
+     * The bytes of a request or response, read from start to end.
+     */
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(@NotNull byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the next byte; -1 if there are no more bytes.
+         */
+        int readByte() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        /**
+         * @return the flags; 0 if they were left out.
+         */
+        int readFlags() {
+            return Math.max(readByte(), 0);
+        }
+
+        /**
+         * @return the next string; an empty String if it was left out.
+         */
+        @NotNull
+        String readString() {
+            if (position == bytes.length) {
+                return StringUtils.EMPTY;
+            }
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int next = readByte();
+                if (next < 0 || shift > 28) {
+                    throw new IllegalArgumentException("Malformed length at " + position);
+                }
+                length |= (next & 0x7f) << shift;
+                if (next < 0x80) {
+                    break;
+                }
+            }
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalArgumentException("Length " + length + " exceeds the " + (bytes.length - position) + " bytes left");
+            }
+            final String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.HashRing;
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.Registration;
+import com.coresystems.sparky.store.StoreListener;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * One node of a cluster sharing the registrations by account: each account belongs to a primary node and is
+ * replicated to a number of further nodes, as found on a {@link HashRing}. Any node accepts any request - requests of
+ * an account owned by another node are forwarded to it, so all requests of an account are handled by the same node
+ * and see each other's changes right away. If the primary can't be reached, the next owner takes over, which already
+ * has the account's registrations.
+ * <p>
+ * Changes of the registrations are replicated to the other owners in the background: the store only hands them over,
+ * and a single thread sends the latest change of each key to each owner every {@link #FLUSH_MILLIS}. Expiry and
+ * eviction are left to each node, they are not replicated.
+ */
+final class ClusterNode implements Closeable {
+    static final long FLUSH_MILLIS = 50;
+    private static final String ACCOUNT = "account";
+    private static final String ERROR = "error";
+
+    private final String self;
+    private final HashRing ring;
+    private final int copies;
+    private final ClusterTransport transport;
+    private final KeyValueStorage<String, Registration> store;
+    private final long retryMillis;
+    private final int maxPending;
+    private final Map<String, Long> unavailableUntil = new ConcurrentHashMap<>();
+    // The latest change per key not yet sent to each node - a null registration stands for a removal
+    private final Map<String, Map<String, PendingWrite>> pending = new ConcurrentHashMap<>();
+    // Set while changes received from another node are applied, so they aren't sent back
+    private final ThreadLocal<Boolean> replicating = ThreadLocal.withInitial(() -> false);
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder replicated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param self        the name of this node on the ring.
+     * @param replicas    the number of nodes keeping a copy of an account besides its primary.
+     * @param store       the registrations kept by this node.
+     * @param retryMillis how long a node is left alone after it couldn't be reached.
+     * @param maxPending  the number of changes kept for a node at most, further ones are dropped.
+     */
+    ClusterNode(@NotNull String self, @NotNull HashRing ring, int replicas, @NotNull ClusterTransport transport,
+                @NotNull KeyValueStorage<String, Registration> store, long retryMillis, int maxPending) {
+        if (!ring.getNodes().contains(self)) {
+            throw new IllegalArgumentException("The node " + self + " is not on the ring " + ring.getNodes());
+        }
+        this.self = self;
+        this.ring = ring;
+        this.copies = replicas + 1;
+        this.transport = transport;
+        this.store = store;
+        this.retryMillis = retryMillis;
+        this.maxPending = maxPending;
+        store.addListener(new StoreListener<String, Registration>() {
+            @Override
+            public void onPut(@NotNull String key, @NotNull Registration value) {
+                enqueue(value.getAccount(), key, value);
+            }
+
+            @Override
+            public void onRemoved(@NotNull String key, @NotNull Registration value, @NotNull RemovalCause cause) {
+                if (cause == RemovalCause.EXPLICIT) {
+                    enqueue(value.getAccount(), key, null);
+                }
+            }
+        });
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "sparky-cluster-replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    ClusterNode(@NotNull String self, @NotNull HashRing ring, int replicas, @NotNull ClusterTransport transport,
+                @NotNull KeyValueStorage<String, Registration> store) {
+        this(self, ring, replicas, transport, store, 5000, 100000);
+    }
+
+    /**
+     * Sends the request to the node handling the given account, unless that's this node.
+     *
+     * @param account the account of the request; empty for the default account.
+     * @param path    the path of the request, including its query string.
+     * @param headers the headers of the request passed on to the node handling it.
+     * @return the reply of the node which handled the request; null if this node has to handle it.
+     * @throws UncheckedIOException if none of the owners of the account can be reached.
+     */
+    @Nullable
+    ClusterTransport.Reply route(@NotNull String account, @NotNull String path, @NotNull String body, @NotNull Map<String, String> headers) {
+        UncheckedIOException failure = null;
+        for (String node : getCandidates(partitionOf(account))) {
+            if (node.equals(self)) {
+                return null;
+            }
+            try {
+                final ClusterTransport.Reply reply = transport.forward(node, path, body, headers);
+                forwarded.increment();
+                return reply;
+            } catch (UncheckedIOException e) {
+                failure = e;
+                failovers.increment();
+                nodeFailed(node, e);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Splits a batch of requests (a json array of objects) by the nodes handling their accounts, and joins the
+     * replies in the order of the requests. The parts are applied one after the other, so a part which fails doesn't
+     * undo the others: its requests are answered with an object holding just the error instead, next to the replies
+     * of the parts which were applied.
+     *
+     * @param local handles the requests of the accounts this node handles, a json array as well.
+     * @return the json array of the replies to all requests; the first failure if every part failed as a whole, as
+     * nothing was applied then.
+     * @throws UncheckedIOException if every part failed, the first one since none of the owners of its account could
+     *                              be reached.
+     */
+    @NotNull
+    ClusterTransport.Reply routeBatch(@NotNull String path, @NotNull String body, @NotNull Function<String, String> local) {
+        final JsonArray requests = new JsonParser().parse(body).getAsJsonArray();
+        //The requests and their index in the batch, by the account they belong to
+        final Map<String, JsonArray> byAccount = new LinkedHashMap<>();
+        final Map<String, List<Integer>> indexes = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            final JsonElement request = requests.get(i);
+            final JsonElement account = request.isJsonObject() ? ((JsonObject) request).get(ACCOUNT) : null;
+            final String partition = partitionOf(account == null || !account.isJsonPrimitive() ? StringUtils.EMPTY : account.getAsString());
+            byAccount.computeIfAbsent(partition, key -> new JsonArray()).add(request);
+            indexes.computeIfAbsent(partition, key -> new ArrayList<>()).add(i);
+        }
+        final JsonElement[] replies = new JsonElement[requests.size()];
+        ClusterTransport.Reply firstFailure = null;
+        UncheckedIOException firstUnreachable = null;
+        boolean applied = false;
+        for (Map.Entry<String, JsonArray> entry : byAccount.entrySet()) {
+            final String part = entry.getValue().toString();
+            final List<Integer> partIndexes = indexes.get(entry.getKey());
+            ClusterTransport.Reply reply;
+            try {
+                reply = route(entry.getKey(), path, part, Collections.emptyMap());
+            } catch (UncheckedIOException e) {
+                if (firstFailure == null && firstUnreachable == null) {
+                    firstUnreachable = e;
+                }
+                fill(replies, partIndexes, "The servers of the account are unavailable, please retry later.");
+                continue;
+            }
+            if (reply == null) {
+                reply = new ClusterTransport.Reply(200, local.apply(part));
+            }
+            if (reply.status != 200) {
+                if (firstFailure == null && firstUnreachable == null) {
+                    firstFailure = reply;
+                }
+                fill(replies, partIndexes, getError(reply));
+                continue;
+            }
+            applied = true;
+            final JsonArray partReplies = new JsonParser().parse(reply.getText()).getAsJsonArray();
+            for (int i = 0; i < partIndexes.size(); i++) {
+                replies[partIndexes.get(i)] = partReplies.get(i);
+            }
+        }
+        if (!applied && firstUnreachable != null) {
+            throw firstUnreachable;
+        }
+        if (!applied && firstFailure != null) {
+            return firstFailure;
+        }
+        final JsonArray result = new JsonArray();
+        for (JsonElement reply : replies) {
+            result.add(reply);
+        }
+        return new ClusterTransport.Reply(200, result.toString());
+    }
+
+    /**
+     * Answers the requests at the given indexes with the given error.
+     */
+    private static void fill(@NotNull JsonElement[] replies, @NotNull List<Integer> indexes, @NotNull String error) {
+        final JsonObject reply = new JsonObject();
+        reply.addProperty(ERROR, error);
+        for (int index : indexes) {
+            replies[index] = reply;
+        }
+    }
+
+    /**
+     * @return the error of the given reply which failed as a whole, as told by the node sending it if it did.
+     */
+    @NotNull
+    private static String getError(@NotNull ClusterTransport.Reply reply) {
+        try {
+            final JsonElement body = new JsonParser().parse(reply.getText());
+            final JsonElement error = body.isJsonObject() ? body.getAsJsonObject().get(ERROR) : null;
+            if (error != null && error.isJsonPrimitive()) {
+                return error.getAsString();
+            }
+        } catch (JsonParseException e) {
+            //Not json, e.g. an error page
+        }
+        return "Failed with status " + reply.status + ".";
+    }
+
+    /**
+     * Applies the changes replicated by another node, without replicating them any further.
+     */
+    void applyReplication(@NotNull Map<String, Registration> puts, @NotNull List<String> removals) {
+        replicating.set(true);
+        try {
+            store.putAll(puts);
+            store.removeAll(removals);
+        } finally {
+            replicating.set(false);
+        }
+    }
+
+    /**
+     * Sends the pending changes to each node in a single call, unless the node is considered unavailable.
+     */
+    void flush() {
+        for (Map.Entry<String, Map<String, PendingWrite>> entry : pending.entrySet()) {
+            final String node = entry.getKey();
+            final Map<String, PendingWrite> writes = entry.getValue();
+            if (writes.isEmpty() || !isAvailable(node)) {
+                continue;
+            }
+            final Map<String, PendingWrite> batch = new HashMap<>(writes);
+            final Map<String, Registration> puts = new HashMap<>();
+            final List<String> removals = new ArrayList<>();
+            batch.forEach((key, write) -> {
+                if (write.value == null) {
+                    removals.add(key);
+                } else {
+                    puts.put(key, write.value);
+                }
+            });
+            try {
+                transport.replicate(node, puts, removals);
+                //Changes made while we were sending stay pending
+                batch.forEach(writes::remove);
+                replicated.add(batch.size());
+            } catch (UncheckedIOException e) {
+                nodeFailed(node, e);
+            }
+        }
+    }
+
+    /**
+     * @return the nodes owning the given account, the primary first.
+     */
+    @NotNull
+    List<String> getOwners(@NotNull String account) {
+        return ring.owners(partitionOf(account), copies);
+    }
+
+    /**
+     * @return the number of requests handled by other nodes.
+     */
+    long getForwarded() {
+        return forwarded.sum();
+    }
+
+    /**
+     * @return the number of times an owner couldn't be reached and the next one was asked instead.
+     */
+    long getFailovers() {
+        return failovers.sum();
+    }
+
+    /**
+     * @return the number of changes sent to other nodes.
+     */
+    long getReplicated() {
+        return replicated.sum();
+    }
+
+    /**
+     * @return the number of changes waiting to be sent to other nodes.
+     */
+    long getPendingReplication() {
+        long count = 0;
+        for (Map<String, PendingWrite> writes : pending.values()) {
+            count += writes.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of changes which were never sent to another node, since too many were pending.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(retryMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return the owners of the given partition worth trying, the primary first: those which didn't fail recently,
+     * or all of them if they all did.
+     */
+    @NotNull
+    private List<String> getCandidates(@NotNull String partition) {
+        final List<String> owners = ring.owners(partition, copies);
+        final List<String> available = new ArrayList<>(owners.size());
+        for (String owner : owners) {
+            if (owner.equals(self) || isAvailable(owner)) {
+                available.add(owner);
+            }
+        }
+        return available.isEmpty() ? owners : available;
+    }
+
+    private void enqueue(@NotNull String account, @NotNull String key, @Nullable Registration value) {
+        if (replicating.get()) {
+            return;
+        }
+        for (String owner : ring.owners(partitionOf(account), copies)) {
+            if (owner.equals(self)) {
+                continue;
+            }
+            final Map<String, PendingWrite> writes = pending.computeIfAbsent(owner, node -> new ConcurrentHashMap<>());
+            if (writes.size() >= maxPending && !writes.containsKey(key)) {
+                dropped.increment();
+                continue;
+            }
+            writes.put(key, new PendingWrite(value));
+        }
+    }
+
+    private boolean isAvailable(@NotNull String node) {
+        final Long until = unavailableUntil.get(node);
+        return until == null || System.currentTimeMillis() >= until;
+    }
+
+    private void nodeFailed(@NotNull String node, @NotNull RuntimeException e) {
+        if (isAvailable(node)) {
+            Log.e(ClusterNode.class.getSimpleName(), "The node " + node + " can't be reached, leaving it alone for the next " + retryMillis + " ms.", e);
+        }
+        unavailableUntil.put(node, System.currentTimeMillis() + retryMillis);
+    }
+
+    /**
+     * @return the partition of the given account, the service registers users without an account in its default one.
+     */
+    @NotNull
+    private static String partitionOf(@NotNull String account) {
+        return account.isEmpty() ? SparkyService.DEFAULT_ACCOUNT : account;
+    }
+
+    /**
+     * Wraps every change, so a change can only be acknowledged by the very flush that sent it.
+     */
+    private static final class PendingWrite {
+        final Registration value;
+
+        PendingWrite(@Nullable Registration value) {
+            this.value = value;
+        }
+    }
+}
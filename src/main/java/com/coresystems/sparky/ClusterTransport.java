@@ -0,0 +1,59 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * How the nodes of a cluster talk to each other. Implementations are expected to throw an
+ * {@link UncheckedIOException} if a node can't be reached, instead of waiting for it indefinitely.
+ */
+interface ClusterTransport {
+
+    /**
+     * The response of a node to a forwarded request.
+     */
+    final class Reply {
+        final int status;
+        final byte[] body;
+        // The headers of the response passed on to the client, e.g. the ETag and the Content-Type
+        final Map<String, String> headers;
+
+        Reply(int status, @NotNull String body) {
+            this(status, body.getBytes(StandardCharsets.UTF_8), Collections.emptyMap());
+        }
+
+        Reply(int status, @NotNull byte[] body, @NotNull Map<String, String> headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the body as text, e.g. json.
+         */
+        @NotNull
+        String getText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Has the given node handle a request itself, as if the client had sent it there.
+     *
+     * @param path    the path of the request, including its query string.
+     * @param headers the headers of the client's request passed on to the node, e.g. Accept and If-None-Match.
+     */
+    @NotNull
+    Reply forward(@NotNull String node, @NotNull String path, @NotNull String body, @NotNull Map<String, String> headers);
+
+    /**
+     * Applies the given changes to the registrations kept by the given node.
+     */
+    void replicate(@NotNull String node, @NotNull Map<String, Registration> puts, @NotNull Collection<String> removals);
+}
@@ -0,0 +1,229 @@
+package com.coresystems.sparky;
+
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The twilio credentials, read from a config file such as {@code .env_config} - the same file which is sourced to set
+ * the environment variables, i.e. lines like {@code export API_KEY="..."}. Credentials which are missing or empty in
+ * the file are taken from the environment variables instead.
+ * <p>
+ * The credentials are kept as a snapshot which never changes, so minting a token only reads a volatile field. Once
+ * {@link #watch() watched}, the file is read again whenever it changes and the new snapshot replaces the old one as a
+ * whole, so the credentials can be rotated while the server is running. A file which can't be read leaves the
+ * credentials as they are, and so does a file which would leave a credential empty that is set now - e.g. one caught
+ * halfway through being written.
+ */
+final class CredentialsConfig implements Supplier<Properties>, Closeable {
+    static final List<String> KEYS = Collections.unmodifiableList(Arrays.asList(
+            SparkyService.ACCOUNT_SID, SparkyService.VIDEO_CONFIGURATION_SID, SparkyService.API_KEY, SparkyService.API_SECRET));
+
+    private final Path file;
+    private final Function<String, String> environment;
+    private volatile Properties snapshot;
+    @Nullable
+    private WatchService watcher;
+
+    /**
+     * @param file        the config file, which may not exist (yet).
+     * @param environment looks up the environment variables, e.g. {@code System::getenv}.
+     */
+    CredentialsConfig(@NotNull Path file, @NotNull Function<String, String> environment) {
+        this.file = file.toAbsolutePath();
+        this.environment = environment;
+        this.snapshot = read(Collections.emptyMap());
+        reload();
+    }
+
+    /**
+     * @return the current credentials, which must not be changed.
+     */
+    @NotNull
+    @Override
+    public Properties get() {
+        return snapshot;
+    }
+
+    /**
+     * Reads the file again and replaces the credentials, unless the file can't be read or a credential would end up
+     * empty.
+     *
+     * @return true if the credentials were replaced.
+     */
+    boolean reload() {
+        final Map<String, String> values;
+        try {
+            values = parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(CredentialsConfig.class.getSimpleName(), "Failed to read " + file + ", keeping the credentials as they are.", e);
+            return false;
+        }
+        final Properties next = read(values);
+        for (String key : KEYS) {
+            if (next.getProperty(key).isEmpty()) {
+                Log.w(CredentialsConfig.class.getSimpleName(), key + " is neither set in " + file + " nor in the environment.");
+                if (!snapshot.getProperty(key).isEmpty()) {
+                    Log.w(CredentialsConfig.class.getSimpleName(), "Keeping the credentials as they are.");
+                    return false;
+                }
+            }
+        }
+        snapshot = next;
+        return true;
+    }
+
+    /**
+     * Starts reloading the credentials in the background whenever the file is written, created or replaced.
+     *
+     * @return this config.
+     * @throws IOException if the directory of the file can't be watched.
+     */
+    @NotNull
+    synchronized CredentialsConfig watch() throws IOException {
+        if (watcher != null) {
+            return this;
+        }
+        final Path directory = file.getParent();
+        final WatchService service = directory.getFileSystem().newWatchService();
+        //Editors often write a new file and move it over the old one, so the directory is watched instead of the file
+        directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = service;
+        final Thread thread = new Thread(() -> run(service), "sparky-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    private void run(@NotNull WatchService service) {
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed && reload()) {
+                    Log.i(CredentialsConfig.class.getSimpleName(), "Reloaded the credentials from " + file);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            //Closed, we're done
+        }
+    }
+
+    /**
+     * @return the credentials of the given values, those missing or empty taken from the environment instead.
+     */
+    @NotNull
+    private Properties read(@NotNull Map<String, String> values) {
+        final Map<String, String> credentials = new LinkedHashMap<>();
+        for (String key : KEYS) {
+            final String value = values.get(key);
+            credentials.put(key, StringUtils.isEmpty(value) ? StringUtils.defaultString(environment.apply(key)) : value);
+        }
+        return new Snapshot(credentials);
+    }
+
+    /**
+     * Parses lines such as {@code export KEY="value"}, {@code KEY='value'} or {@code KEY=value}, skipping empty lines
+     * and comments.
+     *
+     * @return the values by their key, in the order of the lines.
+     */
+    @NotNull
+    static Map<String, String> parse(@NotNull String content) {
+        final Map<String, String> values = new LinkedHashMap<>();
+        for (String line : content.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            if (trimmed.startsWith("export ")) {
+                trimmed = trimmed.substring("export ".length()).trim();
+            }
+            final int equals = trimmed.indexOf('=');
+            if (equals <= 0) {
+                continue;
+            }
+            String value = trimmed.substring(equals + 1).trim();
+            if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.charAt(value.length() - 1) == value.charAt(0)) {
+                value = value.substring(1, value.length() - 1);
+            } else {
+                final int comment = value.indexOf(" #");
+                value = comment < 0 ? value : value.substring(0, comment).trim();
+            }
+            values.put(trimmed.substring(0, equals).trim(), value);
+        }
+        return values;
+    }
+
+    /**
+     * Properties which can't be changed once created.
+     */
+    private static final class Snapshot extends Properties {
+        private final boolean sealed;
+
+        Snapshot(@NotNull Map<String, String> values) {
+            putAll(values);
+            sealed = true;
+        }
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            checkNotSealed();
+            return super.put(key, value);
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            checkNotSealed();
+            return super.remove(key);
+        }
+
+        @Override
+        public synchronized void clear() {
+            checkNotSealed();
+            super.clear();
+        }
+
+        private void checkNotSealed() {
+            if (sealed) {
+                throw new UnsupportedOperationException("The credentials can't be changed, the config file can.");
+            }
+        }
+    }
+}
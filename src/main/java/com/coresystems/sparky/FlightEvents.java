@@ -0,0 +1,112 @@
+package com.coresystems.sparky;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The events Sparky records with the Java Flight Recorder, configured by {@code sparky.jfc}. While no recording is
+ * running an event is never filled in nor written, so the code emitting it only pays for a few instructions which
+ * the JIT mostly removes: create the event, {@code begin()} it, run the operation, and fill in and commit it only if
+ * {@code shouldCommit()}.
+ * <p>
+ * Stack traces are left out, as these events are emitted far too often for them - the JDK's own events about locks,
+ * I/O and allocations carry them, and line up with these by thread and time.
+ */
+public final class FlightEvents {
+    private static final String CATEGORY = "Sparky";
+
+    private FlightEvents() {
+    }
+
+    @Name("com.coresystems.sparky.Route")
+    @Label("Route")
+    @Description("A request handled by a route, from its admission until the route returned.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RouteEvent extends Event {
+        @Label("Route")
+        String route;
+
+        @Label("Account")
+        String account;
+
+        @Label("Request Size")
+        @DataAmount
+        long requestBytes;
+
+        @Label("Status")
+        int status;
+    }
+
+    @Name("com.coresystems.sparky.Store")
+    @Label("Store Operation")
+    @Description("An operation of the registration store, including the time it waited for the lock.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class StoreEvent extends Event {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Hit")
+        @Description("Whether the entry looked up was found; true for operations which don't look up an entry.")
+        public boolean hit = true;
+
+        @Label("Entries")
+        @Description("The number of entries the operation covered.")
+        public int entries = 1;
+
+        @Label("Evicted")
+        @Description("The number of entries evicted to make room.")
+        public int evicted;
+
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        public long lockWait;
+    }
+
+    @Name("com.coresystems.sparky.Token")
+    @Label("Token")
+    @Description("A token handed out by /token, either reused from the store or minted.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class TokenEvent extends Event {
+        @Label("Account")
+        String account;
+
+        @Label("Forced")
+        @Description("Whether the client asked for a new token.")
+        boolean forced;
+
+        @Label("Cached")
+        @Description("Whether the token was reused from the store instead of being minted.")
+        boolean cached;
+    }
+
+    @Name("com.coresystems.sparky.UserList")
+    @Label("User List")
+    @Description("The user list of an account, assembled for /users.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class UserListEvent extends Event {
+        @Label("Account")
+        String account;
+
+        @Label("Scanned")
+        @Description("The number of registrations read from the store.")
+        int scanned;
+
+        @Label("Returned")
+        @Description("The number of users sent to the requester.")
+        int returned;
+
+        @Label("Cached")
+        @Description("Whether the list was written as kept instead of being read from the store.")
+        boolean cached;
+    }
+}
@@ -0,0 +1,233 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connects the nodes of a cluster over HTTP, each node being named by its host and port, e.g. "10.0.0.1:4567".
+ * Requests are forwarded to the same route of the other node, marked as forwarded so that node handles them itself;
+ * changes are replicated by posting them to {@link #REPLICATE_PATH}. Both carry the secret shared by the cluster,
+ * nodes ignore internal requests without it.
+ */
+final class HttpClusterTransport implements ClusterTransport {
+    static final String FORWARDED_HEADER = "X-Sparky-Forwarded";
+    static final String SECRET_HEADER = "X-Sparky-Cluster-Secret";
+    static final String REPLICATE_PATH = "/cluster/replicate";
+    private static final String PUTS = "puts";
+    private static final String REMOVALS = "removals";
+    private static final String KEY = "key";
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    // The headers of a reply passed on to the client
+    private static final List<String> REPLY_HEADERS = Arrays.asList("ETag", "Content-Type", "Vary", "Retry-After");
+
+    private final String secret;
+
+    /**
+     * @param secret the secret shared by the nodes of the cluster.
+     */
+    HttpClusterTransport(@NotNull String secret) {
+        this.secret = secret;
+    }
+
+    @NotNull
+    @Override
+    public Reply forward(@NotNull String node, @NotNull String path, @NotNull String body, @NotNull Map<String, String> headers) {
+        return post(node, path, body, headers, true);
+    }
+
+    @Override
+    public void replicate(@NotNull String node, @NotNull Map<String, Registration> puts, @NotNull Collection<String> removals) {
+        final Reply reply = post(node, REPLICATE_PATH, writeReplication(puts, removals), Collections.emptyMap(), false);
+        if (reply.status != 200) {
+            throw new UncheckedIOException(new IOException("Node " + node + " rejected the replication with status " + reply.status));
+        }
+    }
+
+    /**
+     * @return true if the given secret is the one of the cluster.
+     */
+    boolean isTrusted(@Nullable String secret) {
+        //Takes the same time no matter where the secrets differ
+        return secret != null && MessageDigest.isEqual(this.secret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the given changes as json, as read by {@link #readReplication(String, Map, List)}.
+     */
+    @NotNull
+    static String writeReplication(@NotNull Map<String, Registration> puts, @NotNull Collection<String> removals) {
+        final StringWriter out = new StringWriter(256 * (puts.size() + 1));
+        try {
+            final JsonWriter writer = RegistrationCodec.createWriter(out);
+            writer.beginObject().name(PUTS).beginArray();
+            for (Map.Entry<String, Registration> entry : puts.entrySet()) {
+                final Registration registration = entry.getValue();
+                //Unlike the json of the routes, this includes the fields only kept by the store
+                writer.beginObject()
+                        .name(KEY).value(entry.getKey())
+                        .name("account").value(registration.getAccount())
+                        .name("userName").value(registration.getUserName())
+                        .name("fullName").value(registration.getFullName())
+                        .name("token").value(registration.getToken())
+                        .name("callerId").value(registration.getCallerId())
+                        .name("expiresAt").value(registration.getExpiresAt())
+                        .name("previousToken").value(registration.getPreviousToken())
+                        .name("previousTokenExpiresAt").value(registration.getPreviousTokenExpiresAt())
+                        .endObject();
+            }
+            writer.endArray().name(REMOVALS).beginArray();
+            for (String key : removals) {
+                writer.value(key);
+            }
+            writer.endArray().endObject().flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads the changes written by {@link #writeReplication(Map, Collection)} into the given collections.
+     *
+     * @throws JsonSyntaxException if the given json is malformed.
+     */
+    static void readReplication(@NotNull String json, @NotNull Map<String, Registration> puts, @NotNull List<String> removals) {
+        try {
+            final JsonReader reader = new JsonReader(new StringReader(json));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (PUTS.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readPut(reader, puts);
+                    }
+                    reader.endArray();
+                } else if (REMOVALS.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        removals.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static void readPut(@NotNull JsonReader reader, @NotNull Map<String, Registration> puts) throws IOException {
+        String key = "", account = "", userName = "", fullName = "", token = "", callerId = "", previousToken = "";
+        long expiresAt = 0, previousTokenExpiresAt = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case KEY:
+                    key = reader.nextString();
+                    break;
+                case "account":
+                    account = reader.nextString();
+                    break;
+                case "userName":
+                    userName = reader.nextString();
+                    break;
+                case "fullName":
+                    fullName = reader.nextString();
+                    break;
+                case "token":
+                    token = reader.nextString();
+                    break;
+                case "callerId":
+                    callerId = reader.nextString();
+                    break;
+                case "expiresAt":
+                    expiresAt = reader.nextLong();
+                    break;
+                case "previousToken":
+                    previousToken = reader.nextString();
+                    break;
+                case "previousTokenExpiresAt":
+                    previousTokenExpiresAt = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        puts.put(key, new Registration(account, userName, fullName, token, callerId, expiresAt, previousToken, previousTokenExpiresAt));
+    }
+
+    @NotNull
+    private Reply post(@NotNull String node, @NotNull String path, @NotNull String body, @NotNull Map<String, String> headers,
+                       boolean forwarded) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://" + node + path).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            headers.forEach(connection::setRequestProperty);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty(SECRET_HEADER, secret);
+            if (forwarded) {
+                connection.setRequestProperty(FORWARDED_HEADER, "true");
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            final int status = connection.getResponseCode();
+            final Map<String, String> replyHeaders = new HashMap<>();
+            for (String name : REPLY_HEADERS) {
+                final String value = connection.getHeaderField(name);
+                if (value != null) {
+                    replyHeaders.put(name, value);
+                }
+            }
+            return new Reply(status, read(status < 400 ? connection.getInputStream() : connection.getErrorStream()), replyHeaders);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @NotNull
+    private static byte[] read(@Nullable InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try (InputStream input = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
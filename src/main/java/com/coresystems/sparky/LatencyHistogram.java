@@ -0,0 +1,58 @@
+package com.coresystems.sparky;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in fixed buckets, from 50 microseconds to 10 seconds. Recording takes no lock - it looks up the
+ * bucket and increments two {@link LongAdder}s - so every request can be timed without the threads contending.
+ */
+final class LatencyHistogram {
+    // The upper bounds of the buckets in nanos, latencies beyond the last one go to an extra bucket
+    static final long[] BOUNDS = {
+            TimeUnit.MICROSECONDS.toNanos(50), TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(250),
+            TimeUnit.MICROSECONDS.toNanos(500), TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2),
+            TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(25),
+            TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(250),
+            TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2500),
+            TimeUnit.SECONDS.toNanos(5), TimeUnit.SECONDS.toNanos(10)};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @param startedNanos the {@link System#nanoTime()} at which the timed call started.
+     */
+    void recordSince(long startedNanos) {
+        record(System.nanoTime() - startedNanos);
+    }
+
+    /**
+     * @return the number of latencies recorded in the given bucket; the last bucket holds the ones beyond all bounds.
+     */
+    long getCount(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * @return the sum of all recorded latencies in nanos.
+     */
+    long getSum() {
+        return sum.sum();
+    }
+}
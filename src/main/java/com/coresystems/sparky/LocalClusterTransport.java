@@ -0,0 +1,63 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Connects the nodes of a cluster living in the same JVM, for tests and local development. A node can be taken down
+ * to simulate a node that crashed or can't be reached.
+ */
+final class LocalClusterTransport implements ClusterTransport {
+    private final Map<String, ClusterNode> nodes = new ConcurrentHashMap<>();
+    private final Map<String, BiFunction<String, String, Reply>> handlers = new ConcurrentHashMap<>();
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param handler handles the requests forwarded to the given node, by their path and body - the headers of the
+     *                requests aren't passed on.
+     */
+    void join(@NotNull String name, @NotNull ClusterNode node, @NotNull BiFunction<String, String, Reply> handler) {
+        nodes.put(name, node);
+        handlers.put(name, handler);
+    }
+
+    /**
+     * While down, every call to the given node fails as if it couldn't be reached.
+     */
+    void setDown(@NotNull String name, boolean isDown) {
+        if (isDown) {
+            down.add(name);
+        } else {
+            down.remove(name);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Reply forward(@NotNull String node, @NotNull String path, @NotNull String body, @NotNull Map<String, String> headers) {
+        checkReachable(node);
+        return handlers.get(node).apply(path, body);
+    }
+
+    @Override
+    public void replicate(@NotNull String node, @NotNull Map<String, Registration> puts, @NotNull Collection<String> removals) {
+        checkReachable(node);
+        nodes.get(node).applyReplication(new HashMap<>(puts), new ArrayList<>(removals));
+    }
+
+    private void checkReachable(@NotNull String node) {
+        if (down.contains(node) || !nodes.containsKey(node)) {
+            throw new UncheckedIOException(new IOException("Node " + node + " unavailable"));
+        }
+    }
+}
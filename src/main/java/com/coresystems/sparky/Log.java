@@ -1,38 +1,51 @@
 package com.coresystems.sparky;
 
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
 /**
  * Just a quick way to log stuff to the console - we can add log4j later or what
- * have you.
+ * have you. Messages are written asynchronously by an {@link AsyncLogHandler}.
  * 
  * @author zafr
  *
  */
 public final class Log {
-	private static final String LOG_FORMAT = "[%s] : %s - %s";
-	private static final String EMPTY_STRING = "";
+	// The number of messages which may wait to be written to the console
+	private static final int QUEUE_CAPACITY = 8192;
+	private static final Logger LOGGER = Logger.getLogger("com.coresystems.sparky.Log");
+
+	static {
+		// Written by a background thread, so callers never wait for the console
+		LOGGER.setUseParentHandlers(false);
+		LOGGER.addHandler(AsyncLogHandler.toConsole(QUEUE_CAPACITY));
+	}
 
 	private Log() {
 
 	}
 
 	public static void e(String tag, String message, Throwable exception) {
-		print("E", tag, message);
-		if (exception != null) {
-			exception.printStackTrace();
-		}
+		print(Level.SEVERE, tag, message, exception);
 	}
 
 	public static void w(String tag, String message) {
-		print("W", tag, message);
+		print(Level.WARNING, tag, message, null);
 	}
 
 	public static void i(String tag, String message) {
-		print("I", tag, message);
+		print(Level.INFO, tag, message, null);
 	}
 
-	private static void print(String logLevel, String tag, String message) {
-		System.out.println(String.format(LOG_FORMAT, logLevel != null ? logLevel : EMPTY_STRING,
-				tag != null ? tag : EMPTY_STRING, message != null ? message : EMPTY_STRING));
-
+	private static void print(Level logLevel, String tag, String message, Throwable exception) {
+		if (!LOGGER.isLoggable(logLevel)) {
+			return;
+		}
+		// Formatted by the writer, so all we do here is hand over the parts
+		final LogRecord record = new LogRecord(logLevel, message);
+		record.setLoggerName(tag);
+		record.setThrown(exception);
+		LOGGER.log(record);
 	}
 }
@@ -0,0 +1,161 @@
+package com.coresystems.sparky;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Writes the metrics of the service in the Prometheus text format. Each metric is registered once, along with a
+ * function reading its current value from the component keeping it - so nothing is collected until /metrics is
+ * scraped.
+ */
+final class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String[] BUCKET_BOUNDS = new String[LatencyHistogram.BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            //Prometheus expects the latencies in seconds
+            BUCKET_BOUNDS[i] = BigDecimal.valueOf(LatencyHistogram.BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private interface Family {
+        void write(@NotNull StringBuilder out);
+    }
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+
+    void counter(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        families.add(out -> {
+            writeHeader(out, name, help, COUNTER);
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        });
+    }
+
+    void gauge(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        families.add(out -> {
+            writeHeader(out, name, help, GAUGE);
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        });
+    }
+
+    /**
+     * Registers a counter with one value per label value, e.g. per account.
+     */
+    void counter(@NotNull String name, @NotNull String help, @NotNull String label, @NotNull Supplier<Map<String, ? extends Number>> values) {
+        families.add(out -> writeLabelled(out, name, help, COUNTER, label, values.get()));
+    }
+
+    /**
+     * Registers a gauge with one value per label value, e.g. per account.
+     */
+    void gauge(@NotNull String name, @NotNull String help, @NotNull String label, @NotNull Supplier<Map<String, ? extends Number>> values) {
+        families.add(out -> writeLabelled(out, name, help, GAUGE, label, values.get()));
+    }
+
+    /**
+     * Registers a histogram of latencies in seconds, with one histogram per label value, e.g. per route.
+     */
+    void histogram(@NotNull String name, @NotNull String help, @NotNull String label, @NotNull Map<String, LatencyHistogram> histograms) {
+        families.add(out -> {
+            writeHeader(out, name, help, "histogram");
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                final LatencyHistogram histogram = entry.getValue();
+                long count = 0;
+                for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+                    count += histogram.getCount(i);
+                    out.append(name).append("_bucket{").append(label).append("=\"");
+                    escape(out, entry.getKey());
+                    out.append("\",le=\"").append(i < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[i] : "+Inf").append("\"} ")
+                            .append(count).append('\n');
+                }
+                out.append(name).append("_sum{").append(label).append("=\"");
+                escape(out, entry.getKey());
+                out.append("\"} ").append(histogram.getSum() / 1e9).append('\n');
+                out.append(name).append("_count{").append(label).append("=\"");
+                escape(out, entry.getKey());
+                out.append("\"} ").append(count).append('\n');
+            }
+        });
+    }
+
+    /**
+     * Registers a histogram of the given values, e.g. the sizes of the accounts, read each time it is written. Unlike a
+     * labelled gauge, its size doesn't grow with the number of values and it tells nothing about the single values.
+     *
+     * @param bounds the ascending upper bounds of the buckets, a bucket for larger values is added.
+     */
+    void histogram(@NotNull String name, @NotNull String help, @NotNull long[] bounds, @NotNull Supplier<Collection<? extends Number>> values) {
+        families.add(out -> {
+            final long[] counts = new long[bounds.length + 1];
+            long sum = 0;
+            for (Number value : values.get()) {
+                final long size = value.longValue();
+                int bucket = 0;
+                while (bucket < bounds.length && size > bounds[bucket]) {
+                    bucket++;
+                }
+                counts[bucket]++;
+                sum += size;
+            }
+            writeHeader(out, name, help, "histogram");
+            long count = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                count += counts[i];
+                out.append(name).append("_bucket{le=\"").append(i < bounds.length ? String.valueOf(bounds[i]) : "+Inf")
+                        .append("\"} ").append(count).append('\n');
+            }
+            out.append(name).append("_sum ").append(sum).append('\n');
+            out.append(name).append("_count ").append(count).append('\n');
+        });
+    }
+
+    /**
+     * @return the current values of all registered metrics.
+     */
+    @NotNull
+    String write() {
+        final StringBuilder out = new StringBuilder(16 * 1024);
+        for (Family family : families) {
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    private static void writeHeader(@NotNull StringBuilder out, @NotNull String name, @NotNull String help, @NotNull String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeLabelled(@NotNull StringBuilder out, @NotNull String name, @NotNull String help, @NotNull String type,
+                                      @NotNull String label, @NotNull Map<String, ? extends Number> values) {
+        writeHeader(out, name, help, type);
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            out.append(name).append('{').append(label).append("=\"");
+            escape(out, entry.getKey());
+            out.append("\"} ").append(entry.getValue().longValue()).append('\n');
+        }
+    }
+
+    private static void escape(@NotNull StringBuilder out, @NotNull String labelValue) {
+        for (int i = 0; i < labelValue.length(); i++) {
+            final char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import com.coresystems.sparky.store.StoreListener;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Pushes the presence of the users of an account to everyone subscribed to it, so clients don't have to poll /users.
+ * A new subscriber first receives a snapshot of the users, followed by a join event whenever a user registers (or
+ * the registration gets a new token) and a leave event whenever a user unregisters or the registration is dropped
+ * by the store.
+ * <p>
+ * The store only hands the changes over to a queue, they are sent by a single fan-out thread, so the request causing
+ * a change never waits for any subscriber. Since that thread also takes the snapshots, every subscriber receives the
+ * events in the order they happened - events which already are part of its snapshot may be repeated right after it,
+ * which is harmless since joining twice or leaving twice doesn't change the presence of a user. Each subscriber has
+ * a bounded buffer of outgoing messages, a subscriber falling behind is disconnected and has to reconnect to get a
+ * new snapshot. The same goes for all subscribers if the fan-out thread falls behind. A subscriber who unregisters, or
+ * whose registration expires, is disconnected as well - its token isn't good for the presence of the account anymore.
+ */
+final class PresenceHub implements Closeable {
+    // Close codes as defined by RFC 6455
+    static final int CLOSE_POLICY_VIOLATION = 1008;
+    static final int CLOSE_TRY_AGAIN_LATER = 1013;
+
+    private static final String TYPE = "type";
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOIN = "join";
+    private static final String LEAVE = "leave";
+    private static final String USERS = "users";
+    private static final String USER = "user";
+    private static final String CALLER_ID = "callerId";
+    private static final int SNAPSHOT_PAGE_SIZE = 1000;
+
+    /**
+     * The client end of a subscription, e.g. a WebSocket session.
+     */
+    interface Connection {
+        /**
+         * Sends the given message without waiting for it to be written.
+         *
+         * @param onDone called once the message was written or writing it failed.
+         */
+        void send(@NotNull String message, @NotNull Runnable onDone);
+
+        void close(int code, @NotNull String reason);
+    }
+
+    private final KeyValueStorage<String, Registration> store;
+    private final Predicate<Registration> authenticator;
+    private final int bufferSize;
+    private final BlockingQueue<Event> events;
+    private final Map<Object, Subscriber> subscribers = new ConcurrentHashMap<>();
+    // Only accessed by the fan-out thread
+    private final Map<String, Set<Subscriber>> subscribersByAccount = new HashMap<>();
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    private final LongAdder disconnected = new LongAdder();
+    private final Thread fanOut;
+    private volatile boolean closed;
+
+    /**
+     * Accepts registered subscribers only, holding the token of their registration.
+     *
+     * @see #PresenceHub(KeyValueStorage, Predicate, int, int)
+     */
+    PresenceHub(@NotNull KeyValueStorage<String, Registration> store, int bufferSize, int maxPendingEvents) {
+        this(store, requester -> store.isValidEntry(new Registration(requester.getAccount(), requester.getUserName(),
+                StringUtils.EMPTY, requester.getToken(), StringUtils.EMPTY)), bufferSize, maxPendingEvents);
+    }
+
+    /**
+     * @param store            the store whose changes are pushed to the subscribers.
+     * @param authenticator    tells whether the account, username and token of a subscriber are valid.
+     * @param bufferSize       the number of messages which may wait to be sent to a single subscriber.
+     * @param maxPendingEvents the number of changes which may wait for the fan-out thread.
+     */
+    PresenceHub(@NotNull KeyValueStorage<String, Registration> store, @NotNull Predicate<Registration> authenticator,
+                int bufferSize, int maxPendingEvents) {
+        this.store = store;
+        this.authenticator = authenticator;
+        this.bufferSize = bufferSize;
+        this.events = new LinkedBlockingQueue<>(maxPendingEvents);
+        store.addListener(new StoreListener<String, Registration>() {
+            @Override
+            public void onPut(String key, Registration value) {
+                publish(new Event(JOIN, value.getAccount(), key, value, null, null));
+            }
+
+            @Override
+            public void onRemoved(String key, Registration value, RemovalCause cause) {
+                publish(new Event(LEAVE, value.getAccount(), key, value, cause, null));
+            }
+        });
+        fanOut = new Thread(this::fanOutLoop, "sparky-presence-fan-out");
+        fanOut.setDaemon(true);
+        fanOut.start();
+    }
+
+    /**
+     * Subscribes to the presence of the users of the requester's account.
+     *
+     * @param handle     identifies the subscription when unsubscribing.
+     * @param requester  the account, username and token of the subscribing user.
+     * @param connection receives the snapshot and the events.
+     * @return true if subscribed; false if the requester isn't authenticated.
+     */
+    boolean subscribe(@NotNull Object handle, @NotNull Registration requester, @NotNull Connection connection) {
+        if (!authenticator.test(requester)) {
+            return false;
+        }
+        final Subscriber subscriber = new Subscriber(requester.getAccount(),
+                MockStore.Companion.createKey(requester.getAccount(), requester.getUserName()), connection);
+        subscribers.put(handle, subscriber);
+        if (!events.offer(new Event(null, requester.getAccount(), null, null, null, subscriber))) {
+            unsubscribe(handle);
+            connection.close(CLOSE_TRY_AGAIN_LATER, "Too many pending presence changes.");
+        }
+        return true;
+    }
+
+    /**
+     * Ends the subscription of the given handle, e.g. since the connection was closed.
+     */
+    void unsubscribe(@NotNull Object handle) {
+        final Subscriber subscriber = subscribers.remove(handle);
+        if (subscriber != null) {
+            //The fan-out thread drops it the next time it comes across it
+            subscriber.closed = true;
+        }
+    }
+
+    /**
+     * @return the number of subscriptions.
+     */
+    int getSubscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return the number of subscribers disconnected because they couldn't keep up.
+     */
+    long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        fanOut.interrupt();
+    }
+
+    private void publish(@NotNull Event event) {
+        //Called while the store holds a lock, so this must never block
+        if (!events.offer(event)) {
+            overflowed.set(true);
+        }
+    }
+
+    private void fanOutLoop() {
+        while (!closed) {
+            final Event event;
+            try {
+                event = events.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (overflowed.getAndSet(false)) {
+                    //Changes were lost, so nobody's view of the presence can be trusted anymore
+                    Log.w(PresenceHub.class.getSimpleName(), "Presence changes piled up, disconnecting all subscribers.");
+                    subscribersByAccount.values().forEach(accountSubscribers -> accountSubscribers.forEach(subscriber -> {
+                        subscribers.values().remove(subscriber);
+                        subscriber.disconnect(CLOSE_TRY_AGAIN_LATER, "Presence changes piled up, reconnect to resync.");
+                    }));
+                    subscribersByAccount.clear();
+                }
+                if (event.subscriber != null) {
+                    addSubscriber(event.subscriber);
+                } else {
+                    dispatch(event);
+                }
+            } catch (RuntimeException | IOException e) {
+                Log.e(PresenceHub.class.getSimpleName(), "Failed to push a presence change.", e);
+            }
+        }
+    }
+
+    private void addSubscriber(@NotNull Subscriber subscriber) throws IOException {
+        if (subscriber.closed) {
+            return;
+        }
+        subscribersByAccount.computeIfAbsent(subscriber.account, account -> new LinkedHashSet<>()).add(subscriber);
+        final StringWriter out = new StringWriter();
+        final JsonWriter writer = RegistrationCodec.createWriter(out);
+        writer.beginObject().name(TYPE).value(SNAPSHOT).name(USERS).beginArray();
+        String lastKey = StringUtils.EMPTY;
+        Map<String, Registration> page;
+        do {
+            page = store.getByAccount(subscriber.account, lastKey, SNAPSHOT_PAGE_SIZE);
+            for (Map.Entry<String, Registration> entry : page.entrySet()) {
+                lastKey = entry.getKey();
+                if (!entry.getKey().equals(subscriber.callerId)) {
+                    RegistrationCodec.writeUser(writer, entry.getValue());
+                }
+            }
+        } while (page.size() == SNAPSHOT_PAGE_SIZE);
+        writer.endArray().endObject().flush();
+        subscriber.send(out.toString());
+    }
+
+    private void dispatch(@NotNull Event event) throws IOException {
+        final Set<Subscriber> accountSubscribers = subscribersByAccount.get(event.account);
+        if (accountSubscribers == null) {
+            return;
+        }
+        String message = null;
+        for (Iterator<Subscriber> iterator = accountSubscribers.iterator(); iterator.hasNext(); ) {
+            final Subscriber subscriber = iterator.next();
+            if (subscriber.closed) {
+                iterator.remove();
+            } else if (subscriber.callerId.equals(event.key)) {
+                //An evicted registration still leaves the subscriber's token valid, it is only dropped to free memory
+                if (LEAVE.equals(event.type) && event.cause != StoreListener.RemovalCause.EVICTED) {
+                    iterator.remove();
+                    subscribers.values().remove(subscriber);
+                    subscriber.disconnect(CLOSE_POLICY_VIOLATION, "The user is not registered anymore.");
+                }
+            } else {
+                if (message == null) {
+                    //Serialized once, no matter how many subscribers receive it
+                    message = toMessage(event);
+                }
+                subscriber.send(message);
+            }
+        }
+        if (accountSubscribers.isEmpty()) {
+            subscribersByAccount.remove(event.account);
+        }
+    }
+
+    @NotNull
+    private static String toMessage(@NotNull Event event) throws IOException {
+        final StringWriter out = new StringWriter();
+        final JsonWriter writer = RegistrationCodec.createWriter(out);
+        writer.beginObject().name(TYPE).value(event.type);
+        if (JOIN.equals(event.type)) {
+            RegistrationCodec.writeUser(writer.name(USER), event.value);
+        } else {
+            writer.name(CALLER_ID).value(event.key);
+        }
+        writer.endObject().flush();
+        return out.toString();
+    }
+
+    /**
+     * A change of the store, or a new subscriber waiting for its snapshot.
+     */
+    private static final class Event {
+        final String type;
+        final String account;
+        final String key;
+        final Registration value;
+        final StoreListener.RemovalCause cause;
+        final Subscriber subscriber;
+
+        Event(String type, String account, String key, Registration value, StoreListener.RemovalCause cause,
+              Subscriber subscriber) {
+            this.type = type;
+            this.account = account;
+            this.key = key;
+            this.value = value;
+            this.cause = cause;
+            this.subscriber = subscriber;
+        }
+    }
+
+    private final class Subscriber {
+        final String account;
+        final String callerId;
+        final Connection connection;
+        final BlockingQueue<String> outbound = new ArrayBlockingQueue<>(bufferSize);
+        // Only a single message is written at a time
+        final AtomicBoolean sending = new AtomicBoolean();
+        volatile boolean closed;
+
+        Subscriber(String account, String callerId, Connection connection) {
+            this.account = account;
+            this.callerId = callerId;
+            this.connection = connection;
+        }
+
+        void send(@NotNull String message) {
+            if (!outbound.offer(message)) {
+                disconnected.increment();
+                subscribers.values().remove(this);
+                disconnect(CLOSE_POLICY_VIOLATION, "Too slow to receive the presence changes, reconnect to resync.");
+                return;
+            }
+            drain();
+        }
+
+        void disconnect(int code, @NotNull String reason) {
+            closed = true;
+            outbound.clear();
+            connection.close(code, reason);
+        }
+
+        private void drain() {
+            while (!closed && sending.compareAndSet(false, true)) {
+                final String next = outbound.poll();
+                if (next != null) {
+                    connection.send(next, () -> {
+                        sending.set(false);
+                        drain();
+                    });
+                    return;
+                }
+                sending.set(false);
+                //A message offered right before we let go of the flag would be stuck otherwise
+                if (outbound.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+}
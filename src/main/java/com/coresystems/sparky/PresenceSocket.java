@@ -0,0 +1,73 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * The WebSocket endpoint of the presence channel. Clients connect with their account, userName and token as query
+ * parameters and receive the presence of the users of their account as pushed by the {@link PresenceHub}.
+ * <p>
+ * Spark creates a single instance for all connections, so this only hands the sessions over to the hub.
+ */
+@WebSocket
+public final class PresenceSocket {
+    private static final String ACCOUNT = "account";
+    private static final String USERNAME = "userName";
+    private static final String TOKEN = "token";
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        final Registration requester = new Registration(getParameter(session, ACCOUNT), getParameter(session, USERNAME),
+                StringUtils.EMPTY, getParameter(session, TOKEN), StringUtils.EMPTY);
+        if (!Webapp.presence.subscribe(session, requester, new SessionConnection(session))) {
+            session.close(PresenceHub.CLOSE_POLICY_VIOLATION, "The user is not registered.");
+        }
+    }
+
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+        Webapp.presence.unsubscribe(session);
+    }
+
+    @NotNull
+    private static String getParameter(@NotNull Session session, @NotNull String name) {
+        final List<String> values = session.getUpgradeRequest().getParameterMap().get(name);
+        return values == null || values.isEmpty() ? StringUtils.EMPTY : values.get(0);
+    }
+
+    private static final class SessionConnection implements PresenceHub.Connection {
+        private final Session session;
+
+        SessionConnection(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void send(@NotNull String message, @NotNull Runnable onDone) {
+            session.getRemote().sendString(message, new WriteCallback() {
+                @Override
+                public void writeFailed(Throwable cause) {
+                    onDone.run();
+                }
+
+                @Override
+                public void writeSuccess() {
+                    onDone.run();
+                }
+            });
+        }
+
+        @Override
+        public void close(int code, @NotNull String reason) {
+            session.close(code, reason);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.coresystems.sparky;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the rate of requests by key, e.g. by account, with a token bucket per key: a key may send a burst of requests
+ * at once, and further ones at the refill rate of its bucket.
+ *
+ * The buckets are spread over a number of independently locked segments, so requests of different keys rarely wait
+ * for each other. Each segment keeps its buckets in access order and holds at most its share of the max number of
+ * buckets, the least recently used one is dropped beyond that. Buckets which have been idle long enough to be full
+ * again are dropped as well - a new bucket is full too, so nothing is lost by that.
+ */
+final class RateLimiter {
+    private final Limit defaultLimit;
+    private final Map<String, Limit> limits;
+    private final Segment[] segments;
+    private final LongSupplier clock;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * The rate at which requests are allowed, and the number of requests allowed at once.
+     */
+    static final class Limit {
+        static final Limit UNLIMITED = new Limit(0, 0);
+
+        final double permitsPerSecond;
+        final double burst;
+
+        /**
+         * @param permitsPerSecond the refill rate of the bucket; 0 to not limit the requests at all.
+         * @param burst            the capacity of the bucket, at least 1.
+         */
+        Limit(double permitsPerSecond, double burst) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.burst = Math.max(1, burst);
+        }
+
+        boolean isUnlimited() {
+            return permitsPerSecond <= 0;
+        }
+    }
+
+    /**
+     * @param defaultLimit     the limit of keys which have no limit of their own.
+     * @param limits           the limits of individual keys.
+     * @param maxBuckets       the max number of buckets kept at once.
+     * @param concurrencyLevel the number of segments, rounded down to a power of two.
+     * @param clock            the time source in nanos.
+     */
+    RateLimiter(@NotNull Limit defaultLimit, @NotNull Map<String, Limit> limits, int maxBuckets, int concurrencyLevel, @NotNull LongSupplier clock) {
+        this.defaultLimit = defaultLimit;
+        this.limits = Collections.unmodifiableMap(new LinkedHashMap<>(limits));
+        this.clock = clock;
+        //Small limiters get fewer segments, so the capacity of a single segment doesn't drop to zero
+        int segmentCount = 1;
+        while (segmentCount * 2 <= Math.min(concurrencyLevel, maxBuckets)) {
+            segmentCount *= 2;
+        }
+        final int segmentCapacity = (maxBuckets + segmentCount - 1) / segmentCount;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    RateLimiter(@NotNull Limit defaultLimit, @NotNull Map<String, Limit> limits, int maxBuckets) {
+        this(defaultLimit, limits, maxBuckets, 16, System::nanoTime);
+    }
+
+    /**
+     * Takes a permit from the bucket of the given key.
+     *
+     * @return 0 if the request is allowed; the nanos until the next request of the given key will be allowed otherwise.
+     */
+    long tryAcquire(@NotNull String key) {
+        final Limit limit = limitFor(key);
+        if (limit.isUnlimited()) {
+            return 0;
+        }
+        final long waitNanos = segmentFor(key).tryAcquire(key, limit, clock.getAsLong());
+        if (waitNanos > 0) {
+            rejected.increment();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Takes the given number of permits from the bucket of each of the given keys in one go: either all of them are
+     * taken, or none. The segments of the keys are locked in the order of their index, so concurrent calls can't
+     * deadlock.
+     *
+     * @param permits the number of permits by key.
+     * @return 0 if the permits were taken; the nanos until all of them will be available otherwise.
+     */
+    long tryAcquireAll(@NotNull Map<String, Integer> permits) {
+        final TreeMap<Integer, Map<String, Integer>> bySegment = new TreeMap<>();
+        for (Map.Entry<String, Integer> entry : permits.entrySet()) {
+            if (!limitFor(entry.getKey()).isUnlimited()) {
+                bySegment.computeIfAbsent(segmentIndex(entry.getKey()), index -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (bySegment.isEmpty()) {
+            return 0;
+        }
+        final long waitNanos = tryAcquireAll(bySegment.entrySet().iterator(), new LinkedHashMap<>(), clock.getAsLong());
+        if (waitNanos > 0) {
+            rejected.increment();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Gives back permits taken by {@link #tryAcquireAll(Map)}, e.g. when the request is rejected by another limiter.
+     */
+    void releaseAll(@NotNull Map<String, Integer> permits) {
+        for (Map.Entry<String, Integer> entry : permits.entrySet()) {
+            if (!limitFor(entry.getKey()).isUnlimited()) {
+                segmentFor(entry.getKey()).release(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return true if the given number of permits is more than the key may ever take at once, i.e. more than the
+     * burst of its bucket.
+     */
+    boolean exceedsBurst(@NotNull String key, int permits) {
+        final Limit limit = limitFor(key);
+        return !limit.isUnlimited() && permits > limit.burst;
+    }
+
+    /**
+     * @return true if no key is limited at all.
+     */
+    boolean isUnlimited() {
+        return defaultLimit.isUnlimited() && limits.values().stream().allMatch(Limit::isUnlimited);
+    }
+
+    /**
+     * @return the number of requests rejected so far.
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of buckets currently kept.
+     */
+    int getBuckets() {
+        int buckets = 0;
+        for (Segment segment : segments) {
+            buckets += segment.size();
+        }
+        return buckets;
+    }
+
+    /**
+     * Locks the remaining segments one after the other, and takes the permits once all of them are held.
+     */
+    private long tryAcquireAll(@NotNull Iterator<Map.Entry<Integer, Map<String, Integer>>> remaining,
+                               @NotNull Map<Bucket, Integer> locked, long now) {
+        if (!remaining.hasNext()) {
+            long waitNanos = 0;
+            for (Map.Entry<Bucket, Integer> entry : locked.entrySet()) {
+                waitNanos = Math.max(waitNanos, entry.getKey().waitFor(entry.getValue()));
+            }
+            if (waitNanos == 0) {
+                locked.forEach((bucket, permits) -> bucket.permits -= permits);
+            }
+            return waitNanos;
+        }
+        final Map.Entry<Integer, Map<String, Integer>> next = remaining.next();
+        final Segment segment = segments[next.getKey()];
+        synchronized (segment) {
+            //Before any bucket is looked up, so none of those is dropped for being full while it's not charged yet
+            segment.dropIdle(now);
+            next.getValue().forEach((key, permits) -> locked.put(segment.bucketFor(key, limitFor(key), now), permits));
+            return tryAcquireAll(remaining, locked, now);
+        }
+    }
+
+    @NotNull
+    private Limit limitFor(@NotNull String key) {
+        return limits.getOrDefault(key, defaultLimit);
+    }
+
+    @NotNull
+    private Segment segmentFor(@NotNull String key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private int segmentIndex(@NotNull String key) {
+        //Spread the hash so keys sharing a prefix (the account) still end up in different segments
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (segments.length - 1);
+    }
+
+    private static final class Bucket {
+        final Limit limit;
+        double permits;
+        long refilledAt;
+
+        Bucket(@NotNull Limit limit, long now) {
+            this.limit = limit;
+            this.permits = limit.burst;
+            this.refilledAt = now;
+        }
+
+        void refill(long now) {
+            permits = Math.min(limit.burst, permits + (now - refilledAt) * limit.permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+        }
+
+        /**
+         * @return 0 if the bucket holds the given number of permits; the nanos until it will otherwise.
+         */
+        long waitFor(int count) {
+            return permits >= count ? 0 : (long) Math.ceil((count - permits) * TimeUnit.SECONDS.toNanos(1) / limit.permitsPerSecond);
+        }
+
+        /**
+         * @return true if the bucket would be full by now, i.e. it's no different from a new one.
+         */
+        boolean isFull(long now) {
+            return permits + (now - refilledAt) * limit.permitsPerSecond / TimeUnit.SECONDS.toNanos(1) >= limit.burst;
+        }
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<String, Bucket> buckets;
+
+        Segment(int capacity) {
+            //Access order, so the eldest bucket is the least recently used one
+            this.buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized long tryAcquire(@NotNull String key, @NotNull Limit limit, long now) {
+            dropIdle(now);
+            final Bucket bucket = bucketFor(key, limit, now);
+            final long waitNanos = bucket.waitFor(1);
+            if (waitNanos == 0) {
+                bucket.permits--;
+            }
+            return waitNanos;
+        }
+
+        /**
+         * @return the refilled bucket of the given key; to be called with the segment locked.
+         */
+        @NotNull
+        Bucket bucketFor(@NotNull String key, @NotNull Limit limit, long now) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(limit, now);
+                buckets.put(key, bucket);
+            } else {
+                bucket.refill(now);
+            }
+            return bucket;
+        }
+
+        synchronized void release(@NotNull String key, int permits) {
+            //Without a bucket there's nothing to give back, a new one is full anyway
+            final Bucket bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.permits = Math.min(bucket.limit.burst, bucket.permits + permits);
+            }
+        }
+
+        synchronized int size() {
+            return buckets.size();
+        }
+
+        /**
+         * Drops the least recently used buckets as long as they are full again - at most a few per call, so no
+         * request has to wait for a long sweep. To be called with the segment locked.
+         */
+        void dropIdle(long now) {
+            final Iterator<Bucket> iterator = buckets.values().iterator();
+            for (int i = 0; i < 2 && iterator.hasNext(); i++) {
+                if (!iterator.next().isFull(now)) {
+                    return;
+                }
+                iterator.remove();
+            }
+        }
+    }
+}
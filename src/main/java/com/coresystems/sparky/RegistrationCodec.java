@@ -0,0 +1,306 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes the json of the requests and responses of the routes. The schema is fixed, so the json is parsed
+ * straight into registrations and written straight from them, without going through maps or reflection.
+ */
+final class RegistrationCodec {
+    private static final String ACCOUNT = "account";
+    private static final String USERNAME = "userName";
+    private static final String FULL_NAME = "fullName";
+    private static final String TOKEN = "token";
+    private static final String CALLER_ID = "callerId";
+    private static final String FORCE_REAUTHENTICATION = "forceReAuthentication";
+    private static final String ERROR = "error";
+
+    static final Request EMPTY_REQUEST = new Request(new Registration(), false);
+
+    /**
+     * A request as sent to any of the routes - all of them share the same fields.
+     */
+    static final class Request {
+        final Registration registration;
+        final boolean forceReAuthentication;
+
+        Request(@NotNull Registration registration, boolean forceReAuthentication) {
+            this.registration = registration;
+            this.forceReAuthentication = forceReAuthentication;
+        }
+    }
+
+    private RegistrationCodec() {
+    }
+
+    /**
+     * @param json a json object; unknown fields are ignored and missing ones are left empty.
+     * @return the request; an empty request if the given json is null or empty.
+     * @throws JsonSyntaxException if the given json is malformed.
+     */
+    @NotNull
+    static Request read(@Nullable String json) {
+        if (StringUtils.isEmpty(json)) {
+            return EMPTY_REQUEST;
+        }
+        try {
+            final JsonReader reader = createReader(json);
+            if (reader.peek() == JsonToken.NULL) {
+                return EMPTY_REQUEST;
+            }
+            return read(reader);
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * @param json a json array of objects as expected by {@link #read(String)}.
+     * @return the requests; an empty list if the given json is null or empty.
+     * @throws JsonSyntaxException if the given json is malformed.
+     */
+    @NotNull
+    static List<Request> readAll(@Nullable String json) {
+        if (StringUtils.isEmpty(json)) {
+            return Collections.emptyList();
+        }
+        try {
+            final JsonReader reader = createReader(json);
+            if (reader.peek() == JsonToken.NULL) {
+                return Collections.emptyList();
+            }
+            final List<Request> result = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                result.add(read(reader));
+            }
+            reader.endArray();
+            return result;
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Writes the response to an authentication request.
+     *
+     * @param registration the registration holding the token, or the requested one if minting failed.
+     * @param error        the reason minting failed; null if it didn't.
+     */
+    static void writeAuthentication(@NotNull JsonWriter writer, @NotNull Registration registration, boolean forceReAuthentication,
+                                    @Nullable String error) throws IOException {
+        writer.beginObject()
+                .name(ACCOUNT).value(registration.getAccount())
+                .name(USERNAME).value(registration.getUserName())
+                .name(FULL_NAME).value(registration.getFullName())
+                .name(FORCE_REAUTHENTICATION).value(String.valueOf(forceReAuthentication))
+                .name(TOKEN).value(registration.getToken());
+        if (error == null) {
+            writer.name(CALLER_ID).value(registration.getCallerId());
+        } else {
+            writer.name(ERROR).value(error);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes all fields of the given registration, as they were received.
+     */
+    static void writeRegistration(@NotNull JsonWriter writer, @NotNull Registration registration) throws IOException {
+        writer.beginObject()
+                .name(ACCOUNT).value(registration.getAccount())
+                .name(USERNAME).value(registration.getUserName())
+                .name(FULL_NAME).value(registration.getFullName())
+                .name(TOKEN).value(registration.getToken())
+                .name(CALLER_ID).value(registration.getCallerId())
+                .endObject();
+    }
+
+    /**
+     * Writes the given registration as an entry of a user list - without its token, which is only meant for the
+     * user it was minted for.
+     */
+    static void writeUser(@NotNull JsonWriter writer, @NotNull Registration user) throws IOException {
+        writer.beginObject()
+                .name(ACCOUNT).value(user.getAccount())
+                .name(USERNAME).value(user.getUserName())
+                .name(FULL_NAME).value(user.getFullName())
+                .name(TOKEN).value(StringUtils.EMPTY)
+                .name(CALLER_ID).value(MockStore.Companion.createKey(user.getAccount(), user.getUserName()))
+                .endObject();
+    }
+
+    /**
+     * @return the given registration as written by {@link #writeRegistration(JsonWriter, Registration)}.
+     */
+    @NotNull
+    static String toJson(@NotNull Registration registration) {
+        final StringWriter out = new StringWriter(256);
+        try {
+            final JsonWriter writer = createWriter(out);
+            writeRegistration(writer, registration);
+            writer.flush();
+        } catch (IOException e) {
+            //A StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the given request as json, as read by {@link #read(String)}.
+     */
+    @NotNull
+    static String toJson(@NotNull Request request) {
+        final StringWriter out = new StringWriter(256);
+        try {
+            final JsonWriter writer = createWriter(out);
+            writer.beginObject()
+                    .name(ACCOUNT).value(request.registration.getAccount())
+                    .name(USERNAME).value(request.registration.getUserName())
+                    .name(FULL_NAME).value(request.registration.getFullName())
+                    .name(TOKEN).value(request.registration.getToken())
+                    .name(CALLER_ID).value(request.registration.getCallerId())
+                    .name(FORCE_REAUTHENTICATION).value(request.forceReAuthentication)
+                    .endObject()
+                    .flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the given registrations as a json array, written by {@link #writeRegistration(JsonWriter, Registration)}.
+     */
+    @NotNull
+    static String toJson(@NotNull List<Registration> registrations) {
+        final StringWriter out = new StringWriter(256 * registrations.size() + 2);
+        try {
+            final JsonWriter writer = createWriter(out);
+            writeRegistrations(writer, registrations);
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the given lists of registrations as a json array of arrays.
+     */
+    @NotNull
+    static String toJsonLists(@NotNull List<List<Registration>> lists) {
+        final StringWriter out = new StringWriter();
+        try {
+            final JsonWriter writer = createWriter(out);
+            writer.beginArray();
+            for (List<Registration> registrations : lists) {
+                writeRegistrations(writer, registrations);
+            }
+            writer.endArray().flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return a writer escaping the same characters as Gson does by default.
+     */
+    @NotNull
+    static JsonWriter createWriter(@NotNull Writer out) {
+        final JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(true);
+        return writer;
+    }
+
+    private static void writeRegistrations(@NotNull JsonWriter writer, @NotNull List<Registration> registrations) throws IOException {
+        writer.beginArray();
+        for (Registration registration : registrations) {
+            writeRegistration(writer, registration);
+        }
+        writer.endArray();
+    }
+
+    @NotNull
+    private static JsonReader createReader(@NotNull String json) {
+        final JsonReader reader = new JsonReader(new StringReader(json));
+        //As lenient as Gson is when parsing
+        reader.setLenient(true);
+        return reader;
+    }
+
+    @NotNull
+    private static Request read(@NotNull JsonReader reader) throws IOException {
+        String account = StringUtils.EMPTY;
+        String userName = StringUtils.EMPTY;
+        String fullName = StringUtils.EMPTY;
+        String token = StringUtils.EMPTY;
+        String callerId = StringUtils.EMPTY;
+        boolean forceReAuthentication = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case ACCOUNT:
+                    account = nextString(reader);
+                    break;
+                case USERNAME:
+                    userName = nextString(reader);
+                    break;
+                case FULL_NAME:
+                    fullName = nextString(reader);
+                    break;
+                case TOKEN:
+                    token = nextString(reader);
+                    break;
+                case CALLER_ID:
+                    callerId = nextString(reader);
+                    break;
+                case FORCE_REAUTHENTICATION:
+                    forceReAuthentication = Boolean.valueOf(nextString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Request(new Registration(account, userName, fullName, token, callerId), forceReAuthentication);
+    }
+
+    /**
+     * @return the next value as a String; an empty String if it is null or not a primitive.
+     */
+    @NotNull
+    private static String nextString(@NotNull JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return StringUtils.EMPTY;
+            default:
+                reader.skipValue();
+                return StringUtils.EMPTY;
+        }
+    }
+}
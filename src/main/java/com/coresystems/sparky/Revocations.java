@@ -0,0 +1,94 @@
+package com.coresystems.sparky;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the tokens revoked per caller - the caller unregistered, or had its token replaced - so a token which is
+ * still signed and unexpired isn't accepted by {@link TokenVerifier} alone afterwards. A revocation revokes the given
+ * token, and every token of the caller issued before it. Tokens carry their time of issue in seconds only, so other
+ * tokens issued within the same second as the revoked one stay valid - such as the one minted right away to replace it.
+ * <p>
+ * Revocations are kept until the tokens they revoke have expired, and at most a number of them. Beyond that the oldest
+ * revocation is dropped, and the tokens of every caller issued until then are considered revoked - callers holding such
+ * a token have to authenticate again, but no revoked token is ever accepted again.
+ */
+final class Revocations {
+    private final int maxRevocations;
+    private final long tokenLifetimeMillis;
+    private final LongSupplier clock;
+    private final Map<String, Revocation> revoked = new LinkedHashMap<>();
+    //The latest revocation which was dropped, every token issued until then is revoked
+    private long floor = Long.MIN_VALUE;
+
+    /**
+     * @param maxRevocations      the number of revocations kept at most.
+     * @param tokenLifetimeMillis the lifetime of the tokens, a revocation is kept this long.
+     * @param clock               supplies the current time in milliseconds.
+     */
+    Revocations(int maxRevocations, long tokenLifetimeMillis, @NotNull LongSupplier clock) {
+        this.maxRevocations = Math.max(1, maxRevocations);
+        this.tokenLifetimeMillis = tokenLifetimeMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Revokes the given token of the given caller, and every token issued to it before.
+     *
+     * @param issuedAt the time of issue of the revoked token, in milliseconds.
+     */
+    synchronized void revoke(@NotNull String callerId, long issuedAt, @NotNull String token) {
+        Revocation revocation = revoked.remove(callerId);
+        if (revocation == null || revocation.issuedAt < issuedAt) {
+            revocation = new Revocation(issuedAt);
+        }
+        if (revocation.issuedAt == issuedAt) {
+            revocation.tokens.add(token);
+        }
+        //Re-inserted, so the map stays ordered by the time revoked tokens were issued - roughly
+        revoked.put(callerId, revocation);
+        final long now = clock.getAsLong();
+        final Iterator<Revocation> oldest = revoked.values().iterator();
+        while (oldest.hasNext()) {
+            final long time = oldest.next().issuedAt;
+            final boolean expired = time <= now - tokenLifetimeMillis;
+            if (!expired && revoked.size() <= maxRevocations) {
+                break;
+            }
+            if (!expired) {
+                floor = Math.max(floor, time);
+            }
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @param issuedAt the time of issue of the given token, in milliseconds.
+     * @return true if the given token of the given caller was revoked.
+     */
+    synchronized boolean isRevoked(@NotNull String callerId, long issuedAt, @NotNull String token) {
+        if (issuedAt <= floor) {
+            return true;
+        }
+        final Revocation revocation = revoked.get(callerId);
+        return revocation != null && (issuedAt < revocation.issuedAt || (issuedAt == revocation.issuedAt && revocation.tokens.contains(token)));
+    }
+
+    /**
+     * The latest tokens revoked of a caller, all issued at the same time - usually a single one.
+     */
+    private static final class Revocation {
+        final long issuedAt;
+        final Set<String> tokens = new HashSet<>(2);
+
+        Revocation(long issuedAt) {
+            this.issuedAt = issuedAt;
+        }
+    }
+}
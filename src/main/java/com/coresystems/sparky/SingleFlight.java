@@ -0,0 +1,93 @@
+package com.coresystems.sparky;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the given supplier, everyone arriving while it
+ * runs waits for and receives that very same result (or exception) instead of running the supplier again.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+final class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param key      the key identifying the call.
+     * @param supplier computes the result, unless a call for the same key is already running.
+     * @return the result of the call running for the given key.
+     */
+    V execute(@NotNull K key, @NotNull Supplier<V> supplier) {
+        final CompletableFuture<V> own = new CompletableFuture<>();
+        final CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            final V result = supplier.get();
+            own.complete(result);
+            return result;
+        } catch (Throwable e) {
+            //Errors as well, the callers waiting for this call would wait forever otherwise
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    /**
+     * Like {@link #execute(Object, Supplier)}, but without waiting for the result: the first caller starts the call,
+     * everyone arriving before it completes receives the same future.
+     *
+     * @param supplier starts the call, unless a call for the same key is already running.
+     * @return the future result of the call running for the given key.
+     */
+    @NotNull
+    CompletableFuture<V> executeAsync(@NotNull K key, @NotNull Supplier<CompletableFuture<V>> supplier) {
+        final CompletableFuture<V> own = new CompletableFuture<>();
+        final CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            return running;
+        }
+        CompletableFuture<V> call;
+        try {
+            call = supplier.get();
+        } catch (Throwable e) {
+            call = new CompletableFuture<>();
+            call.completeExceptionally(e);
+        }
+        call.whenComplete((result, error) -> {
+            inFlight.remove(key, own);
+            if (error == null) {
+                own.complete(result);
+            } else {
+                own.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+        return own;
+    }
+
+    /**
+     * @return the number of calls which received the result of a call that was already running.
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+}
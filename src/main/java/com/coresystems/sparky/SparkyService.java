@@ -3,15 +3,21 @@ package com.coresystems.sparky;
 import com.coresystems.sparky.store.KeyValueStorage;
 import com.coresystems.sparky.store.MockStore;
 import com.coresystems.sparky.store.Registration;
-import com.google.gson.reflect.TypeToken;
-import com.twilio.sdk.auth.AccessToken;
-import com.twilio.sdk.auth.ConversationsGrant;
+import com.google.gson.stream.JsonWriter;
 import org.apache.commons.lang.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -19,7 +25,7 @@ import java.util.stream.Collectors;
  */
 public final class SparkyService {
     private static final String DEFAULT_USERNAME = "Patrick";
-    private static final String DEFAULT_ACCOUNT = "core-plda-et";
+    static final String DEFAULT_ACCOUNT = "core-plda-et";
     private static final String DEFAULT_FULL_NAME = String.format("%s %s", DEFAULT_USERNAME, "Jane");
 
     /**
@@ -39,17 +45,46 @@ public final class SparkyService {
     private static final String ACCOUNT = "account";
     private static final String FULL_NAME = "fullName";
     private static final String TOKEN = "token";
-    private static final String CALLER_ID = "callerId";
     private static final String FORCE_REAUTHENTICATION = "forceReAuthentication";
+    private static final String USERS = "users";
+    private static final String CURSOR = "cursor";
 
     //In the twilio SDK the TTL is multiplied by 1000 - we need to keep this in mind when setting our own TTL (12 hours)
     private static final int TOKEN_TTL = 43200;
+    //Tokens are re-minted in the background once they expire within the next hour
+    private static final long TOKEN_REFRESH_AHEAD = TimeUnit.HOURS.toMillis(1);
+    private static final int MINTER_QUEUE_CAPACITY = 1024;
+    //The max number of requests in a batch
+    static final int MAX_BATCH_SIZE = 1000;
+    //The max number of users in a page of the user list, and the number of users read from the store at once when streaming all of them
+    static final int MAX_PAGE_SIZE = 1000;
+    // The number of accounts whose serialized user list is kept
+    private static final int USER_LISTS_CACHED = 1024;
+    // The number of callers whose revoked tokens are remembered
+    private static final int REVOCATIONS_KEPT = 65536;
 
     //Empty default values
     private static final List<Registration> EMPTY_USER_LIST = new ArrayList<>();
     private static final Registration EMPTY_REGISTRATION = new Registration();
 
     private final KeyValueStorage<String, Registration> store;
+    private final TokenMinter minter;
+    private final SingleFlight<String, Registration> mints = new SingleFlight<>();
+    private final LongAdder reusedTokens = new LongAdder();
+    private final UserListCache userLists;
+    @Nullable
+    private volatile TokenVerifier verifier;
+    private final Revocations revocations = new Revocations(REVOCATIONS_KEPT, TimeUnit.SECONDS.toMillis(TOKEN_TTL), System::currentTimeMillis);
+    //The latencies of the methods behind the routes, by method name
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final LatencyHistogram authenticationLatency = createLatency("getAuthenticationJson");
+    private final LatencyHistogram batchAuthenticationLatency = createLatency("getAuthenticationJsonBatch");
+    private final LatencyHistogram usersLatency = createLatency("getAuthenticatedUsersByAccount");
+    private final LatencyHistogram writeUsersLatency = createLatency("writeAuthenticatedUsersByAccount");
+    private final LatencyHistogram batchUsersLatency = createLatency("getAuthenticatedUsersByAccountBatch");
+    private final LatencyHistogram removeLatency = createLatency("removeRegistration");
+    private final LatencyHistogram batchRemoveLatency = createLatency("removeRegistrationBatch");
+    private final LatencyHistogram extendPresenceLatency = createLatency("extendPresence");
 
     /**
      * Creates a new instance of this SparkyService with the given store.
@@ -57,25 +92,118 @@ public final class SparkyService {
      * @param store the store used by this service.
      */
     SparkyService(KeyValueStorage<String, Registration> store) {
+        this(store, new TokenMinter(Runtime.getRuntime().availableProcessors(), MINTER_QUEUE_CAPACITY, TOKEN_TTL, TOKEN_REFRESH_AHEAD));
+    }
+
+    /**
+     * Creates a new instance of this SparkyService with the given store and token minter.
+     *
+     * @param store  the store used by this service.
+     * @param minter mints the tokens handed out by this service.
+     */
+    SparkyService(KeyValueStorage<String, Registration> store, TokenMinter minter) {
         this.store = store;
+        this.minter = minter;
+        this.userLists = new UserListCache(store, USER_LISTS_CACHED, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * @return the number of /token requests which received the token minted for a concurrent request.
+     */
+    long getCoalescedMints() {
+        return mints.getCoalesced();
+    }
+
+    /**
+     * @return the number of tokens served from the store instead of being minted.
+     */
+    long getReusedTokens() {
+        return reusedTokens.sum();
+    }
+
+    /**
+     * @param verifier authenticates callers by their token alone if the store doesn't hold their registration, or not
+     *                 with the same token; null to authenticate callers by their registration only.
+     */
+    void setTokenVerifier(@Nullable TokenVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * @return the verifier authenticating callers by their token alone; null if there is none.
+     */
+    @Nullable
+    TokenVerifier getTokenVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @return the kept user lists of the accounts.
+     */
+    @NotNull
+    UserListCache getUserLists() {
+        return userLists;
+    }
+
+    /**
+     * @return the latency histograms of this service's methods, by method name.
+     */
+    @NotNull
+    Map<String, LatencyHistogram> getLatencies() {
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    /**
+     * @return the minter creating this service's tokens.
+     */
+    @NotNull
+    TokenMinter getMinter() {
+        return minter;
     }
 
     /**
-     * We read the environment variables each time anew so the server does not require a restart whenever those change.
+     * The environment variables of a running server never change, see {@link CredentialsConfig} for credentials which
+     * can be changed without a restart.
      *
-     * @return Properties read on-the-fly from the set environment variables.
+     * @return Properties read from the set environment variables, empty for those which aren't set.
      */
     @NotNull
     static Properties getStaticProperties() {
         Properties properties = new Properties();
         // The following credentials are from the twilio account you're using, they must be set as environment variables
-        properties.put(ACCOUNT_SID, System.getenv(ACCOUNT_SID));
-        properties.put(VIDEO_CONFIGURATION_SID, System.getenv(VIDEO_CONFIGURATION_SID));
-        properties.put(API_KEY, System.getenv(API_KEY));
-        properties.put(API_SECRET, System.getenv(API_SECRET));
+        properties.put(ACCOUNT_SID, StringUtils.defaultString(System.getenv(ACCOUNT_SID)));
+        properties.put(VIDEO_CONFIGURATION_SID, StringUtils.defaultString(System.getenv(VIDEO_CONFIGURATION_SID)));
+        properties.put(API_KEY, StringUtils.defaultString(System.getenv(API_KEY)));
+        properties.put(API_SECRET, StringUtils.defaultString(System.getenv(API_SECRET)));
         return properties;
     }
 
+    /**
+     * Writes the response to an authentication request, as json or in the binary form of {@link BinaryCodec}.
+     */
+    interface AuthenticationWriter<T> {
+        /**
+         * @param registration the registration holding the token, or the requested one if minting failed.
+         * @param error        the reason minting failed; null if it didn't.
+         */
+        @NotNull
+        T write(@NotNull Registration registration, boolean forceReAuthentication, @Nullable String error);
+    }
+
+    /**
+     * Writes a user list, as json or in the binary form of {@link BinaryCodec}.
+     */
+    interface UserListWriter {
+        void begin() throws IOException;
+
+        void write(@NotNull Registration user) throws IOException;
+
+        /**
+         * @param cursor the cursor of the next page; null if there is none.
+         */
+        void end(@Nullable String cursor) throws IOException;
+    }
+
     /**
      * @param properties  environment properties.
      * @param jsonRequest the get request from the client seeking authentication.
@@ -83,67 +211,497 @@ public final class SparkyService {
      */
     @NotNull
     String getAuthenticationJson(@NotNull Properties properties, @Nullable String jsonRequest) {
-        /*
-        TODO once the web interface is able to authenticate itself with differing, non-static credentials
-        we should fail if either account, username or fullname are empty
-         */
-        final Map<String, String> json = replaceEmptyWithDefault(jsonToMap(jsonRequest));
-        Webapp.logger.info("Received authentication request by: " + jsonRequest);
+        Webapp.logger.fine(() -> "Authentication request: " + jsonRequest);
+        return authenticate(properties, RegistrationCodec.read(jsonRequest), SparkyService::toAuthenticationJson);
+    }
 
-        final String key = MockStore.Companion.createKey(json.get(ACCOUNT), json.get(USERNAME));
-        final String jwtToken;
-        if (store.containsKey(key) && !Boolean.valueOf(json.get(FORCE_REAUTHENTICATION))) {
+    /**
+     * Like {@link #getAuthenticationJson(Properties, String)}, for a request read from either form.
+     *
+     * @param writer writes the response, e.g. {@link #toAuthenticationJson(Registration, boolean, String)} or
+     *               {@link BinaryCodec#toAuthentication(Registration, boolean, String)}.
+     */
+    @NotNull
+    <T> T authenticate(@NotNull Properties properties, @NotNull RegistrationCodec.Request request, @NotNull AuthenticationWriter<T> writer) {
+        final long started = System.nanoTime();
+        final FlightEvents.TokenEvent event = new FlightEvents.TokenEvent();
+        event.begin();
+        try {
+            /*
+            TODO once the web interface is able to authenticate itself with differing, non-static credentials
+            we should fail if either account, username or fullname are empty
+             */
+            final Registration requested = withDefaults(request.registration);
+            Webapp.logger.info(() -> "Received authentication request by: " + requested.getUserName() + " of " + requested.getAccount());
+
+            final String key = MockStore.Companion.createKey(requested.getAccount(), requested.getUserName());
             //Check if we already have a token for the given account/user
-            final Registration registration = store.get(key);
-            jwtToken = registration.getToken();
+            final Registration cached = store.get(key);
+            final boolean forceReAuthentication = request.forceReAuthentication;
+            final boolean reused = !forceReAuthentication && isReusable(properties, cached);
+            final String jwtToken;
+            if (reused) {
+                jwtToken = reuse(properties, key, cached);
+            } else {
+                //Concurrent requests for the same user (retries, several tabs) share a single token
+                final Registration registration = mints.execute(key, () -> {
+                    //A request which finished in the meantime might have cached a token already
+                    final Registration current = store.get(key);
+                    if (!forceReAuthentication && isReusable(properties, current)) {
+                        return current;
+                    }
+                    if (forceReAuthentication && !StringUtils.isEmpty(current.getToken())) {
+                        revoke(key, current.getToken());
+                    }
+                    //Passes the token it replaces, which the new one must differ from to not be revoked along
+                    final Registration minted = minter.mint(properties, new Registration(requested.getAccount(), requested.getUserName(),
+                            requested.getFullName(), current.getToken(), key));
+                    //Cache the user for later access - the store drops the registration once the token expired
+                    store.put(key, minted);
+                    return minted;
+                });
+                jwtToken = registration.getToken();
+            }
+            record(event, requested, forceReAuthentication, reused);
+
+            return writer.write(issued(requested, key, jwtToken), forceReAuthentication, null);
+        } finally {
+            authenticationLatency.recordSince(started);
+        }
+    }
+
+    /**
+     * Like {@link #getAuthenticationJson(Properties, String)}, but doesn't wait while a token is minted - the request
+     * thread is free to serve other requests in the meantime, and the returned future completes on the minter's
+     * thread. Since the response has been sent with status 200 by then, a failure to mint the token is reported by
+     * an error in the response, as {@link #getAuthenticationJsonBatch(Properties, String)} does.
+     *
+     * @param properties  environment properties.
+     * @param jsonRequest the get request from the client seeking authentication.
+     * @return the future json response String; completed already if the token was found in the store.
+     */
+    @NotNull
+    CompletableFuture<String> getAuthenticationJsonAsync(@NotNull Properties properties, @Nullable String jsonRequest) {
+        Webapp.logger.fine(() -> "Authentication request: " + jsonRequest);
+        return authenticateAsync(properties, RegistrationCodec.read(jsonRequest), SparkyService::toAuthenticationJson);
+    }
+
+    /**
+     * Like {@link #getAuthenticationJsonAsync(Properties, String)}, for a request read from either form.
+     *
+     * @param writer writes the response, see {@link #authenticate(Properties, RegistrationCodec.Request, AuthenticationWriter)}.
+     */
+    @NotNull
+    <T> CompletableFuture<T> authenticateAsync(@NotNull Properties properties, @NotNull RegistrationCodec.Request request,
+                                               @NotNull AuthenticationWriter<T> writer) {
+        final long started = System.nanoTime();
+        final FlightEvents.TokenEvent event = new FlightEvents.TokenEvent();
+        event.begin();
+        final Registration requested = withDefaults(request.registration);
+        Webapp.logger.info(() -> "Received authentication request by: " + requested.getUserName() + " of " + requested.getAccount());
+
+        final String key = MockStore.Companion.createKey(requested.getAccount(), requested.getUserName());
+        final Registration cached = store.get(key);
+        final boolean forceReAuthentication = request.forceReAuthentication;
+        final boolean reused = !forceReAuthentication && isReusable(properties, cached);
+        final CompletableFuture<T> result;
+        if (reused) {
+            result = CompletableFuture.completedFuture(writer.write(issued(requested, key, reuse(properties, key, cached)), forceReAuthentication, null));
         } else {
-            // Create Conversations messaging grant
-            ConversationsGrant grant = new ConversationsGrant();
-            grant.configurationProfileSid = properties.getProperty(VIDEO_CONFIGURATION_SID);
-            // Create access token - we use the "key" to create the identity, the client will be given that key to call another user
-            AccessToken token = new AccessToken.Builder(properties.getProperty(ACCOUNT_SID), properties.getProperty(API_KEY), properties.getProperty(API_SECRET))
-                    .identity(key)
-                    .grant(grant)
-                    .ttl(TOKEN_TTL)
-                    .build();
-            jwtToken = token.toJWT();
-            //Cache the user for later access
-            store.put(key, new Registration(json.get(ACCOUNT), json.get(USERNAME), json.get(FULL_NAME), jwtToken, key));
+            result = mintShared(properties, requested, key, forceReAuthentication).handle((registration, error) -> {
+                if (error != null) {
+                    Log.e(SparkyService.class.getSimpleName(), "Failed to mint a token for " + key, error);
+                    return writer.write(issued(requested, key, StringUtils.EMPTY), forceReAuthentication, "Failed to create a token.");
+                }
+                return writer.write(issued(requested, key, registration.getToken()), forceReAuthentication, null);
+            });
+        }
+        result.whenComplete((response, error) -> {
+            authenticationLatency.recordSince(started);
+            record(event, requested, forceReAuthentication, reused);
+        });
+        return result;
+    }
+
+    /**
+     * Mints a token without waiting for it. Concurrent requests for the same user - /token, in either variant, and the
+     * batches alike - share a single token, so no token is handed out only to be replaced by another one right away.
+     *
+     * @return the future registration holding the token; the stored one if a request which finished in the meantime
+     * stored a token already, unless a new one is forced.
+     */
+    @NotNull
+    private CompletableFuture<Registration> mintShared(@NotNull Properties properties, @NotNull Registration requested, @NotNull String key,
+                                                       boolean forceReAuthentication) {
+        return mints.executeAsync(key, () -> {
+            final Registration current = store.get(key);
+            if (!forceReAuthentication && isReusable(properties, current)) {
+                return CompletableFuture.completedFuture(current);
+            }
+            if (forceReAuthentication && !StringUtils.isEmpty(current.getToken())) {
+                revoke(key, current.getToken());
+            }
+            return minter.mintAsync(properties, new Registration(requested.getAccount(), requested.getUserName(),
+                    requested.getFullName(), current.getToken(), key)).thenApply(minted -> {
+                store.put(key, minted);
+                return minted;
+            });
+        });
+    }
+
+    /**
+     * Ends the given event and commits it, if a flight recording wants it.
+     */
+    private static void record(@NotNull FlightEvents.UserListEvent event, @NotNull Registration requester, int scanned, int returned) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.account = requester.getAccount();
+            event.scanned = scanned;
+            event.returned = returned;
+            event.commit();
+        }
+    }
+
+    /**
+     * Ends the given event and commits it, if a flight recording wants it.
+     *
+     * @param reused whether the token was taken from the store right away, instead of waiting for it to be minted.
+     */
+    private static void record(@NotNull FlightEvents.TokenEvent event, @NotNull Registration requested, boolean forced, boolean reused) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.account = requested.getAccount();
+            event.forced = forced;
+            event.cached = reused;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return true if the given registration holds a token signed with the current API key; tokens signed with a key
+     * which was rotated since aren't served anymore.
+     */
+    private static boolean isReusable(@NotNull Properties properties, @NotNull Registration cached) {
+        return !StringUtils.isEmpty(cached.getToken()) && TokenMinter.isSignedWith(cached.getToken(), properties.getProperty(API_KEY));
+    }
+
+    /**
+     * Serves the given token from the store, and has it replaced in the background if it expires soon.
+     *
+     * @return the token of the given registration.
+     */
+    @NotNull
+    private String reuse(@NotNull Properties properties, @NotNull String key, @NotNull Registration cached) {
+        if (minter.needsRefresh(cached, System.currentTimeMillis())) {
+            //The token is still valid for a while, so we serve it and have it replaced in the background
+            minter.refreshAhead(properties, cached, refreshed -> store.replace(key, cached, refreshed));
         }
-        json.put(TOKEN, jwtToken);
-        json.put(CALLER_ID, key);
+        reusedTokens.increment();
+        return cached.getToken();
+    }
 
-        // Render JSON response
-        return Webapp.gson.toJson(json);
+    /**
+     * @return the response to an authentication request as json.
+     */
+    @NotNull
+    static String toAuthenticationJson(@NotNull Registration registration, boolean forceReAuthentication, @Nullable String error) {
+        final StringWriter out = new StringWriter(1024);
+        try {
+            RegistrationCodec.writeAuthentication(RegistrationCodec.createWriter(out), registration, forceReAuthentication, error);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the requested registration, holding the given token.
+     */
+    @NotNull
+    private static Registration issued(@NotNull Registration requested, @NotNull String key, @NotNull String token) {
+        return new Registration(requested.getAccount(), requested.getUserName(), requested.getFullName(), token, key);
     }
 
 
+    /**
+     * Handles the authentication of several users at once, e.g. a whole team at the start of a shift. All tokens
+     * which have to be minted are signed in parallel, and shared with concurrent requests for the same users.
+     *
+     * @param properties  environment properties.
+     * @param jsonRequest a json array, each element as expected by {@link #getAuthenticationJson(Properties, String)}.
+     * @return a json array with one response per requested user, in the same order. If a token couldn't be minted,
+     * the response contains an error instead.
+     * @throws IllegalArgumentException if the batch holds more than {@link #MAX_BATCH_SIZE} requests.
+     */
+    @NotNull
+    String getAuthenticationJsonBatch(@NotNull Properties properties, @Nullable String jsonRequest) {
+        final long started = System.nanoTime();
+        try {
+            final List<RegistrationCodec.Request> requests = RegistrationCodec.readAll(jsonRequest);
+            checkBatchSize(requests.size());
+            Webapp.logger.info(() -> "Received batch authentication request for " + requests.size() + " users");
+
+            final List<Registration> requested = requests.stream()
+                    .map(request -> withDefaults(request.registration))
+                    .collect(Collectors.toList());
+            final List<String> keys = requested.stream()
+                    .map(registration -> MockStore.Companion.createKey(registration.getAccount(), registration.getUserName()))
+                    .collect(Collectors.toList());
+            final Map<String, Registration> cached = store.getAll(new LinkedHashSet<>(keys));
+            //Users requested several times within the batch get a single token, signed in parallel with the others
+            final Map<String, CompletableFuture<Registration>> minting = new LinkedHashMap<>();
+            for (int i = 0; i < requests.size(); i++) {
+                final Registration registration = cached.get(keys.get(i));
+                final boolean forceReAuthentication = requests.get(i).forceReAuthentication;
+                if (registration == null || forceReAuthentication || !isReusable(properties, registration)) {
+                    final Registration template = requested.get(i);
+                    minting.computeIfAbsent(keys.get(i), key -> mintShared(properties, template, key, forceReAuthentication));
+                } else {
+                    reuse(properties, keys.get(i), registration);
+                }
+            }
+
+            final Map<String, Registration> minted = new HashMap<>();
+            final Map<String, String> errors = new HashMap<>();
+            minting.forEach((key, future) -> {
+                try {
+                    minted.put(key, future.join());
+                } catch (CompletionException e) {
+                    Log.e(SparkyService.class.getSimpleName(), "Failed to mint a token for " + key, e.getCause());
+                    errors.put(key, "Failed to create a token.");
+                }
+            });
+
+            final StringWriter out = new StringWriter(1024 * requests.size() + 2);
+            try {
+                final JsonWriter writer = RegistrationCodec.createWriter(out);
+                writer.beginArray();
+                for (int i = 0; i < requests.size(); i++) {
+                    final Registration template = requested.get(i);
+                    final String key = keys.get(i);
+                    //A failed re-authentication is reported, rather than answered with the token it should have replaced
+                    final String error = errors.get(key);
+                    final Registration registration = minted.containsKey(key) ? minted.get(key) : cached.get(key);
+                    RegistrationCodec.writeAuthentication(writer, issued(template, key, error == null ? registration.getToken() : StringUtils.EMPTY),
+                            requests.get(i).forceReAuthentication, error);
+                }
+                writer.endArray().flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.toString();
+        } finally {
+            batchAuthenticationLatency.recordSince(started);
+        }
+    }
+
     /**
      * @param jsonRequest the json containing details about the requester of the users.
      * @return an empty user list if the credentials were invalid or there are no registered users; all user's for the requesters account otherwise.
      */
     @NotNull
     List<Registration> getAuthenticatedUsersByAccount(@Nullable String jsonRequest) {
-        final Registration registration = fromJson(jsonRequest);
-        Webapp.logger.info("Received request to obtain user list by: " + registration.getFullName());
-
-        List<Registration> result;
-        if (store.isValidEntry(new Registration(registration.getAccount(), registration.getUserName(), StringUtils.EMPTY,
-                registration.getToken(), StringUtils.EMPTY))) {
-            result = store.getKeyContains(store, registration.getAccount());
-            //we don't want to pass on the user's token to anyone else but that particular user
-            //We'll also filter out the original requester
-            result = result.stream()
-                    .filter(predicate -> !predicate.getUserName().equals(registration.getUserName()))
-                    .map(entry -> new Registration(entry.getAccount(), entry.getUserName(), entry.getFullName(),
-                            StringUtils.EMPTY, MockStore.Companion.createKey(entry.getAccount(), entry.getUserName())))
-                    .collect(Collectors.toList());
-        } else {
-            Webapp.logger.info("The request was invalid due to missing information or the user was not registered");
-            result = EMPTY_USER_LIST;
+        final long started = System.nanoTime();
+        final FlightEvents.UserListEvent event = new FlightEvents.UserListEvent();
+        event.begin();
+        try {
+            final Registration registration = fromJson(jsonRequest);
+            Webapp.logger.info(() -> "Received request to obtain user list by: " + registration.getFullName());
+
+            List<Registration> result;
+            int scanned = 0;
+            if (isAuthenticated(registration)) {
+                final List<Registration> users = store.getByAccount(registration.getAccount());
+                scanned = users.size();
+                result = toUserList(users, registration);
+            } else {
+                Webapp.logger.info("The request was invalid due to missing information or the user was not registered");
+                result = EMPTY_USER_LIST;
+            }
+            final int count = result.size();
+            record(event, registration, scanned, count);
+            Webapp.logger.info(() -> "Number of users registered for the given company: " + count);
+            return result;
+        } finally {
+            usersLatency.recordSince(started);
+        }
+    }
+
+    /**
+     * Writes the users of the requester's account straight to the given writer, a page at a time, so the whole user
+     * list is never held in memory. Users are ordered by their callerId.
+     * <p>
+     * Without a limit all users are written as a json array, just like {@link #getAuthenticatedUsersByAccount(String)}
+     * returns them. With a limit a single page is written as {@code {"users": [...], "cursor": "..."}} - the cursor is
+     * passed along with the request for the next page and left out on the last page. Since the cursor points at the
+     * last user of the page instead of counting users, users registering or leaving in the meantime don't cause the
+     * following pages to skip or repeat anyone.
+     *
+     * @param jsonRequest the json containing details about the requester of the users.
+     * @param cursor      the cursor of the previous page; null or empty for the first page.
+     * @param limit       the max number of users in the page, at most {@link #MAX_PAGE_SIZE}; 0 to write all users.
+     * @param out         the writer the json is written to, it is flushed but not closed.
+     * @throws IllegalArgumentException if the given cursor is invalid, nothing has been written in that case.
+     */
+    void writeAuthenticatedUsersByAccount(@Nullable String jsonRequest, @Nullable String cursor, int limit, @NotNull Writer out) throws IOException {
+        writeAuthenticatedUsersByAccount(fromJson(jsonRequest), cursor, limit, out);
+    }
+
+    /**
+     * Like {@link #writeAuthenticatedUsersByAccount(String, String, int, Writer)}, for a request read from either form.
+     */
+    void writeAuthenticatedUsersByAccount(@NotNull Registration registration, @Nullable String cursor, int limit, @NotNull Writer out) throws IOException {
+        final long started = System.nanoTime();
+        final FlightEvents.UserListEvent event = new FlightEvents.UserListEvent();
+        event.begin();
+        try {
+            final String afterKey = decodeCursor(cursor);
+            Webapp.logger.info(() -> "Received request to obtain user list by: " + registration.getFullName());
+            final boolean valid = isAuthenticated(registration);
+            if (!valid) {
+                Webapp.logger.info("The request was invalid due to missing information or the user was not registered");
+            }
+
+            //A whole list is written as kept, unless the account has too many users to keep its list
+            final int kept = valid && limit <= 0 && afterKey.isEmpty() ? userLists.write(registration.getAccount(), registration.getUserName(), out) : -1;
+            final int count;
+            if (kept >= 0) {
+                //A kept list is recorded by the cache
+                count = kept;
+            } else {
+                final JsonWriter writer = RegistrationCodec.createWriter(out);
+                count = writeUsers(registration, valid, afterKey, limit, createJsonUserListWriter(writer, limit > 0), event);
+                writer.flush();
+            }
+            Webapp.logger.info(() -> "Number of users registered for the given company: " + count);
+        } finally {
+            writeUsersLatency.recordSince(started);
+        }
+    }
+
+    /**
+     * Like {@link #writeAuthenticatedUsersByAccount(String, String, int, Writer)}, but writes the users in the binary
+     * form of {@link BinaryCodec} - the same for a page and for all users.
+     *
+     * @param registration the requester, as read from the request in either form.
+     * @throws IllegalArgumentException if the given cursor is invalid, nothing has been written in that case.
+     */
+    void writeAuthenticatedUsersBinary(@NotNull Registration registration, @Nullable String cursor, int limit, @NotNull OutputStream out) throws IOException {
+        final long started = System.nanoTime();
+        final FlightEvents.UserListEvent event = new FlightEvents.UserListEvent();
+        event.begin();
+        try {
+            final String afterKey = decodeCursor(cursor);
+            final boolean valid = isAuthenticated(registration);
+            final int count = writeUsers(registration, valid, afterKey, limit, BinaryCodec.createUserListWriter(out, registration.getAccount()), event);
+            Webapp.logger.fine(() -> "Number of users registered for the given company: " + count);
+        } finally {
+            writeUsersLatency.recordSince(started);
+        }
+    }
+
+    /**
+     * Writes the users of the requester's account from the store, a page or all of them.
+     *
+     * @param valid whether the requester is authenticated, no users are written otherwise.
+     * @return the number of users written.
+     */
+    private int writeUsers(@NotNull Registration requester, boolean valid, @NotNull String afterKey, int limit,
+                           @NotNull UserListWriter writer, @NotNull FlightEvents.UserListEvent event) throws IOException {
+        int count = 0;
+        int scanned = 0;
+        String next = null;
+        writer.begin();
+        if (valid && limit > 0) {
+            final int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+            //One more than requested, so we know whether there is another page
+            String lastKey = afterKey;
+            for (Map.Entry<String, Registration> entry : store.getByAccount(requester.getAccount(), afterKey, pageSize + 1).entrySet()) {
+                if (scanned == pageSize) {
+                    next = encodeCursor(lastKey);
+                    break;
+                }
+                lastKey = entry.getKey();
+                scanned++;
+                count += writeUser(writer, entry.getValue(), requester) ? 1 : 0;
+            }
+        } else if (valid) {
+            String lastKey = afterKey;
+            Map<String, Registration> page;
+            do {
+                page = store.getByAccount(requester.getAccount(), lastKey, MAX_PAGE_SIZE);
+                for (Map.Entry<String, Registration> entry : page.entrySet()) {
+                    lastKey = entry.getKey();
+                    scanned++;
+                    count += writeUser(writer, entry.getValue(), requester) ? 1 : 0;
+                }
+            } while (page.size() == MAX_PAGE_SIZE);
+        }
+        writer.end(next);
+        record(event, requester, scanned, count);
+        return count;
+    }
+
+    /**
+     * The users written by {@link #writeAuthenticatedUsersByAccount(String, String, int, Writer)} only change along
+     * with the registrations of the requester's account, so they can be told apart by the version of the account,
+     * without looking at the users at all.
+     *
+     * @return the ETag of the users written for the same arguments; null if the request is invalid.
+     * @throws IllegalArgumentException if the given cursor is invalid.
+     */
+    @Nullable
+    String getUsersETag(@Nullable String jsonRequest, @Nullable String cursor, int limit) {
+        return getUsersETag(fromJson(jsonRequest), cursor, limit, Webapp.DATA_TYPE_JSON);
+    }
+
+    /**
+     * @param request the requester of the users, as read from the request in either form.
+     * @param type    the content type the users are written in.
+     * @return the ETag of the users written for the same arguments; null if the request is invalid.
+     * @throws IllegalArgumentException if the given cursor is invalid.
+     */
+    @Nullable
+    String getUsersETag(@NotNull Registration request, @Nullable String cursor, int limit, @NotNull String type) {
+        final String afterKey = decodeCursor(cursor);
+        if (!isAuthenticated(request)) {
+            return null;
+        }
+        //Json and the binary form are told apart by the ETag, in case a cache in between ignores Vary
+        final String variant = request.getUserName() + '\n' + afterKey + '\n' + Math.max(limit, 0);
+        return userLists.getETag(request.getAccount(), type.equals(Webapp.DATA_TYPE_JSON) ? variant : variant + '\n' + type);
+    }
+
+    /**
+     * @param jsonRequest a json array, each element as expected by {@link #getAuthenticatedUsersByAccount(String)}.
+     * @return one user list per requester, in the same order.
+     */
+    @NotNull
+    List<List<Registration>> getAuthenticatedUsersByAccountBatch(@Nullable String jsonRequest) {
+        final long started = System.nanoTime();
+        try {
+            final List<Registration> requesters = fromJsonList(jsonRequest);
+            checkBatchSize(requesters.size());
+            Webapp.logger.info(() -> "Received batch request to obtain the user lists of " + requesters.size() + " users");
+            final Map<String, Registration> registered = store.getAll(requesters.stream()
+                    .map(requester -> MockStore.Companion.createKey(requester.getAccount(), requester.getUserName()))
+                    .collect(Collectors.toSet()));
+            //Requesters of the same account share the lookup
+            final Map<String, List<Registration>> usersByAccount = new HashMap<>();
+            final List<List<Registration>> result = new ArrayList<>(requesters.size());
+            for (Registration requester : requesters) {
+                final String key = MockStore.Companion.createKey(requester.getAccount(), requester.getUserName());
+                final Registration registration = registered.get(key);
+                if (registration != null ? registration.acceptsToken(requester.getToken()) : isVerified(requester, key)) {
+                    result.add(toUserList(usersByAccount.computeIfAbsent(requester.getAccount(), store::getByAccount), requester));
+                } else {
+                    result.add(EMPTY_USER_LIST);
+                }
+            }
+            return result;
+        } finally {
+            batchUsersLatency.recordSince(started);
         }
-        Webapp.logger.info("Number of users registered for the given company: " + result.size());
-        return result;
     }
 
     /**
@@ -151,15 +709,233 @@ public final class SparkyService {
      */
     @NotNull
     Registration removeRegistration(@Nullable String jsonRequest) {
-        Registration registration = fromJson(jsonRequest);
-        Webapp.logger.info("Received request to remove a registration by: " + registration.getFullName());
-        final String key = MockStore.Companion.createKey(registration.getAccount(), registration.getUserName());
-        if (store.isValidEntry(registration)) {
-            store.remove(key);
-        } else {
-            registration = EMPTY_REGISTRATION;
+        return removeRegistration(fromJson(jsonRequest));
+    }
+
+    /**
+     * Like {@link #removeRegistration(String)}, for a request read already.
+     */
+    @NotNull
+    Registration removeRegistration(@NotNull Registration request) {
+        final long started = System.nanoTime();
+        try {
+            Registration registration = request;
+            final String fullName = registration.getFullName();
+            Webapp.logger.info(() -> "Received request to remove a registration by: " + fullName);
+            final String key = MockStore.Companion.createKey(registration.getAccount(), registration.getUserName());
+            if (isAuthenticated(registration)) {
+                //The registration may hold a newer token than the request, if the request sent the previous one
+                revoke(key, store.get(key).getToken());
+                revoke(key, registration.getToken());
+                store.remove(key);
+            } else {
+                registration = EMPTY_REGISTRATION;
+            }
+            return registration;
+        } finally {
+            removeLatency.recordSince(started);
         }
-        return registration;
+    }
+
+    /**
+     * @param jsonRequest a json array, each element as expected by {@link #removeRegistration(String)}.
+     * @return per requested removal the registration that was removed; an empty Registration otherwise.
+     */
+    @NotNull
+    List<Registration> removeRegistrationBatch(@Nullable String jsonRequest) {
+        final long started = System.nanoTime();
+        try {
+            final List<Registration> requests = fromJsonList(jsonRequest);
+            checkBatchSize(requests.size());
+            Webapp.logger.info(() -> "Received batch request to remove " + requests.size() + " registrations");
+            final Map<String, Registration> registered = store.getAll(requests.stream()
+                    .map(request -> MockStore.Companion.createKey(request.getAccount(), request.getUserName()))
+                    .collect(Collectors.toSet()));
+            final List<String> keys = new ArrayList<>();
+            final List<Registration> result = new ArrayList<>(requests.size());
+            for (Registration request : requests) {
+                final String key = MockStore.Companion.createKey(request.getAccount(), request.getUserName());
+                final Registration registration = registered.get(key);
+                if (registration != null ? registration.acceptsToken(request.getToken()) : isVerified(request, key)) {
+                    if (registration != null) {
+                        revoke(key, registration.getToken());
+                    }
+                    revoke(key, request.getToken());
+                    keys.add(key);
+                    result.add(request);
+                } else {
+                    result.add(EMPTY_REGISTRATION);
+                }
+            }
+            store.removeAll(keys);
+            return result;
+        } finally {
+            batchRemoveLatency.recordSince(started);
+        }
+    }
+
+    /**
+     * Extends the presence of a registered user, so the user keeps showing up in the user list of the account.
+     *
+     * @return the registration whose presence was extended; an empty Registration otherwise.
+     */
+    @NotNull
+    Registration extendPresence(@Nullable String jsonRequest) {
+        return extendPresence(fromJson(jsonRequest));
+    }
+
+    /**
+     * Like {@link #extendPresence(String)}, for a request read already.
+     */
+    @NotNull
+    Registration extendPresence(@NotNull Registration request) {
+        final long started = System.nanoTime();
+        try {
+            Registration registration = request;
+            final String key = MockStore.Companion.createKey(registration.getAccount(), registration.getUserName());
+            if (!store.isValidEntry(registration) || !store.touch(key)) {
+                registration = EMPTY_REGISTRATION;
+            }
+            return registration;
+        } finally {
+            extendPresenceLatency.recordSince(started);
+        }
+    }
+
+    /**
+     * @return true if the given request holds the token of the user it claims to be: the token of the user's
+     * registration, or - if the user isn't registered - a token signed for the user which hasn't expired yet and wasn't
+     * revoked. The registration is looked at first, the lookup takes a fraction of checking a signature.
+     */
+    boolean isAuthenticated(@NotNull Registration request) {
+        if (store.isValidEntry(new Registration(request.getAccount(), request.getUserName(), StringUtils.EMPTY,
+                request.getToken(), StringUtils.EMPTY))) {
+            return true;
+        }
+        final String key = MockStore.Companion.createKey(request.getAccount(), request.getUserName());
+        //A registered user is accepted with the token of its registration only, tokens it replaced stay rejected
+        return !store.containsKey(key) && isVerified(request, key);
+    }
+
+    /**
+     * Only meant for callers who aren't registered, their tokens are checked by signature alone.
+     *
+     * @return true if the token of the given request was signed for the given callerId, wasn't revoked, and hasn't
+     * expired yet.
+     */
+    private boolean isVerified(@NotNull Registration request, @NotNull String callerId) {
+        final TokenVerifier verifier = this.verifier;
+        return verifier != null && verifier.verify(request.getToken(), callerId, revocations);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a batch of the given size holds more than {@link #MAX_BATCH_SIZE} requests.
+     */
+    private static void checkBatchSize(int size) {
+        if (size > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("A batch holds " + MAX_BATCH_SIZE + " requests at most, not " + size);
+        }
+    }
+
+    /**
+     * Revokes the given token of the given caller and every token issued to it before, so none of them is accepted by
+     * its signature alone any more.
+     */
+    private void revoke(@NotNull String callerId, @NotNull String token) {
+        final TokenVerifier verifier = this.verifier;
+        final long issuedAt = verifier == null ? Long.MIN_VALUE : verifier.getIssuedAt(token);
+        if (issuedAt != Long.MIN_VALUE) {
+            revocations.revoke(callerId, issuedAt, token);
+        }
+    }
+
+    @NotNull
+    private LatencyHistogram createLatency(@NotNull String method) {
+        final LatencyHistogram latency = new LatencyHistogram();
+        latencies.put(method, latency);
+        return latency;
+    }
+
+    /**
+     * @param users     the users of the requester's account.
+     * @param requester the user asking for the list.
+     * @return the given users without the requester, and without their tokens.
+     */
+    @NotNull
+    private static List<Registration> toUserList(@NotNull List<Registration> users, @NotNull Registration requester) {
+        //we don't want to pass on the user's token to anyone else but that particular user
+        //We'll also filter out the original requester
+        return users.stream()
+                .filter(predicate -> !predicate.getUserName().equals(requester.getUserName()))
+                .map(entry -> new Registration(entry.getAccount(), entry.getUserName(), entry.getFullName(),
+                        StringUtils.EMPTY, MockStore.Companion.createKey(entry.getAccount(), entry.getUserName())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Writes the given user as an entry of the user list, unless it is the requester.
+     *
+     * @return true if the user was written; false otherwise.
+     */
+    private static boolean writeUser(@NotNull UserListWriter writer, @NotNull Registration user, @NotNull Registration requester) throws IOException {
+        if (user.getUserName().equals(requester.getUserName())) {
+            return false;
+        }
+        writer.write(user);
+        return true;
+    }
+
+    /**
+     * @param paged whether a page is written, as {@code {"users": [...], "cursor": "..."}} instead of an array.
+     * @return a writer of the user list as json.
+     */
+    @NotNull
+    private static UserListWriter createJsonUserListWriter(@NotNull JsonWriter writer, boolean paged) {
+        return new UserListWriter() {
+            @Override
+            public void begin() throws IOException {
+                if (paged) {
+                    writer.beginObject().name(USERS);
+                }
+                writer.beginArray();
+            }
+
+            @Override
+            public void write(@NotNull Registration user) throws IOException {
+                RegistrationCodec.writeUser(writer, user);
+            }
+
+            @Override
+            public void end(@Nullable String cursor) throws IOException {
+                writer.endArray();
+                if (paged) {
+                    if (cursor != null) {
+                        writer.name(CURSOR).value(cursor);
+                    }
+                    writer.endObject();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return an opaque cursor pointing right after the given key.
+     */
+    @NotNull
+    static String encodeCursor(@NotNull String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the key the given cursor points after; an empty String if the cursor is null or empty.
+     * @throws IllegalArgumentException if the given cursor is invalid.
+     */
+    @NotNull
+    static String decodeCursor(@Nullable String cursor) {
+        if (StringUtils.isEmpty(cursor)) {
+            return StringUtils.EMPTY;
+        }
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
     }
 
     /**
@@ -168,17 +944,28 @@ public final class SparkyService {
      */
     @NotNull
     static Registration fromJson(@Nullable String json) {
-        if (StringUtils.isEmpty(json)) {
-            return EMPTY_REGISTRATION;
-        } else {
-            Map<String, String> map = jsonToMap(json);
-            final String account = getStringValue(map.get(ACCOUNT), StringUtils.EMPTY);
-            final String userName = getStringValue(map.get(USERNAME), StringUtils.EMPTY);
-            final String fullName = getStringValue(map.get(FULL_NAME), StringUtils.EMPTY);
-            final String token = getStringValue(map.get(TOKEN), StringUtils.EMPTY);
-            final String key = getStringValue(map.get(CALLER_ID), StringUtils.EMPTY);
-            return new Registration(account, userName, fullName, token, key);
+        return RegistrationCodec.read(json).registration;
+    }
+
+    /**
+     * @param json a json array of registrations.
+     * @return the registrations in the given json array; an empty list if the given json is null or empty.
+     */
+    @NotNull
+    static List<Registration> fromJsonList(@Nullable String json) {
+        return RegistrationCodec.readAll(json).stream().map(request -> request.registration).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the given registration, with the default values in place of an empty account, username or full name.
+     */
+    @NotNull
+    private static Registration withDefaults(@NotNull Registration registration) {
+        if (!registration.getAccount().isEmpty() && !registration.getUserName().isEmpty() && !registration.getFullName().isEmpty()) {
+            return registration;
         }
+        return new Registration(getStringValue(registration.getAccount(), DEFAULT_ACCOUNT), getStringValue(registration.getUserName(), DEFAULT_USERNAME),
+                getStringValue(registration.getFullName(), DEFAULT_FULL_NAME), registration.getToken(), registration.getCallerId());
     }
 
     /**
@@ -218,19 +1005,4 @@ public final class SparkyService {
     static String getStringValue(String value, @NotNull String defaultValue) {
         return value == null || value.isEmpty() ? defaultValue : value;
     }
-
-
-    /**
-     * @param json the json string.
-     * @return the given json is converted to a map. If the given json argument is null or empty, an empty map is returned.
-     */
-    @NotNull
-    private static Map<String, String> jsonToMap(@Nullable String json) {
-        if (!StringUtils.isEmpty(json)) {
-            final Type stringStringMap = new TypeToken<Map<String, String>>() {
-            }.getType();
-            return Webapp.gson.fromJson(json, stringStringMap);
-        }
-        return new HashMap<>();
-    }
 }
@@ -0,0 +1,336 @@
+package com.coresystems.sparky;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the files of a directory from memory, all of them read once at startup.
+ * <p>
+ * Every file but the html pages is also served under a fingerprinted path holding the hash of its content, e.g.
+ * {@code /quickstart.3f2a9c01d4e5b6a7.js}, and the pages refer to the files by those paths. As the content of such a
+ * path never changes, browsers keep it for a year without asking again; the pages themselves and the plain paths are
+ * revalidated with their ETag or last modification on every use. Text files are kept gzip-compressed as well, and
+ * either copy is handed to the connection as is, without being copied into the response buffer first.
+ */
+final class StaticAssets {
+    static final String INDEX = "/index.html";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    // Compressed copies saving less than that aren't worth the decompression
+    private static final double MIN_COMPRESSION = 0.9;
+    private static final Map<String, String> CONTENT_TYPES = new LinkedHashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json; charset=utf-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+    }
+
+    // The assets by their plain and their fingerprinted path
+    private final Map<String, Asset> assets;
+
+    private StaticAssets(@NotNull Map<String, Asset> assets) {
+        this.assets = assets;
+    }
+
+    /**
+     * @param directory the directory on the classpath, e.g. "/public".
+     * @throws IOException if the directory can't be read.
+     */
+    @NotNull
+    static StaticAssets load(@NotNull String directory) throws IOException {
+        final URL url = StaticAssets.class.getResource(directory);
+        if (url == null) {
+            throw new IOException("The directory " + directory + " is not on the classpath");
+        }
+        final URI uri;
+        try {
+            uri = url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (!"jar".equals(uri.getScheme())) {
+            return load(Paths.get(uri));
+        }
+        FileSystem jar;
+        boolean opened = false;
+        try {
+            jar = FileSystems.newFileSystem(uri, Collections.emptyMap());
+            opened = true;
+        } catch (FileSystemAlreadyExistsException e) {
+            jar = FileSystems.getFileSystem(uri);
+        }
+        try {
+            return load(jar.getPath(directory));
+        } finally {
+            if (opened) {
+                jar.close();
+            }
+        }
+    }
+
+    /**
+     * @param directory the directory holding the files to be served.
+     */
+    @NotNull
+    static StaticAssets load(@NotNull Path directory) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        final Map<String, Asset> assets = new LinkedHashMap<>();
+        final Map<String, String> fingerprinted = new LinkedHashMap<>();
+        final List<Path> pages = new ArrayList<>();
+        for (Path file : files) {
+            final String path = pathOf(directory, file);
+            if (path.endsWith(".html")) {
+                pages.add(file);
+                continue;
+            }
+            final Asset asset = new Asset(path, Files.readAllBytes(file), Files.getLastModifiedTime(file).toMillis(), true);
+            assets.put(path, asset);
+            assets.put(asset.fingerprintedPath, asset);
+            fingerprinted.put(path, asset.fingerprintedPath);
+        }
+        for (Path file : pages) {
+            final String path = pathOf(directory, file);
+            final String html = linkFingerprinted(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), path, fingerprinted);
+            assets.put(path, new Asset(path, html.getBytes(StandardCharsets.UTF_8), Files.getLastModifiedTime(file).toMillis(), false));
+        }
+        return new StaticAssets(assets);
+    }
+
+    /**
+     * @return the paths served, plain and fingerprinted alike.
+     */
+    @NotNull
+    Set<String> getPaths() {
+        return Collections.unmodifiableSet(assets.keySet());
+    }
+
+    /**
+     * @return the path of the given file under its fingerprint; the given path if it isn't fingerprinted.
+     */
+    @NotNull
+    String getFingerprintedPath(@NotNull String path) {
+        final Asset asset = assets.get(path);
+        return asset == null ? path : asset.fingerprintedPath;
+    }
+
+    /**
+     * @return the content of the given file as served, or gzip-compressed; null if there's no such file or copy.
+     */
+    @Nullable
+    byte[] getContent(@NotNull String path, boolean gzip) {
+        final Asset asset = assets.get(path);
+        final ByteBuffer content = asset == null ? null : gzip ? asset.gzipped : asset.identity;
+        if (content == null) {
+            return null;
+        }
+        final byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Serves the file of the requested path, "/" being the index page.
+     */
+    @NotNull
+    Object serve(@NotNull Request request, @NotNull Response response) throws IOException {
+        final String path = request.pathInfo();
+        final Asset asset = assets.get("/".equals(path) ? INDEX : path);
+        if (asset == null) {
+            response.status(404);
+            return "";
+        }
+        final boolean gzip = asset.gzipped != null && acceptsGzip(request.headers("Accept-Encoding"));
+        final String etag = gzip ? asset.gzippedETag : asset.etag;
+        final HttpServletResponse raw = response.raw();
+        raw.setHeader("ETag", etag);
+        raw.setDateHeader("Last-Modified", asset.lastModified);
+        raw.setHeader("Cache-Control", asset.fingerprinted && asset.fingerprintedPath.equals(path) ? IMMUTABLE : REVALIDATE);
+        if (asset.gzipped != null) {
+            raw.setHeader("Vary", "Accept-Encoding");
+        }
+        //The ETag takes precedence, the last modification is only looked at without one
+        final String ifNoneMatch = request.headers("If-None-Match");
+        final long ifModifiedSince = ifNoneMatch == null ? ifModifiedSince(request) : -1;
+        if (ifNoneMatch != null ? Webapp.matches(ifNoneMatch, etag) : ifModifiedSince >= 0 && asset.lastModified <= ifModifiedSince) {
+            response.status(304);
+            return "";
+        }
+        raw.setContentType(asset.contentType);
+        if (gzip) {
+            raw.setHeader("Content-Encoding", "gzip");
+        }
+        final ByteBuffer content = (gzip ? asset.gzipped : asset.identity).duplicate();
+        raw.setContentLength(content.remaining());
+        final ServletOutputStream out = raw.getOutputStream();
+        if (out instanceof HttpOutput) {
+            //Writes the buffer itself to the connection and completes the response
+            ((HttpOutput) out).sendContent(content);
+        } else {
+            final byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            out.write(bytes);
+            out.flush();
+        }
+        return "";
+    }
+
+    private static long ifModifiedSince(@NotNull Request request) {
+        try {
+            return request.raw().getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the given page, referring to the files by their fingerprinted paths - relative references are
+     * resolved against the page's directory, so they keep working no matter where the page is served.
+     */
+    @NotNull
+    static String linkFingerprinted(@NotNull String html, @NotNull String pagePath, @NotNull Map<String, String> fingerprinted) {
+        final String base = pagePath.substring(0, pagePath.lastIndexOf('/') + 1);
+        String result = html;
+        for (Map.Entry<String, String> entry : fingerprinted.entrySet()) {
+            final String path = entry.getKey();
+            final String target = entry.getValue();
+            for (String quote : new String[]{"\"", "'"}) {
+                result = result.replace("=" + quote + path + quote, "=" + quote + target + quote);
+                if (path.startsWith(base)) {
+                    result = result.replace("=" + quote + path.substring(base.length()) + quote, "=" + quote + target + quote);
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static String pathOf(@NotNull Path directory, @NotNull Path file) {
+        final StringBuilder path = new StringBuilder();
+        for (Path name : directory.relativize(file)) {
+            path.append('/').append(name.toString());
+        }
+        return path.toString();
+    }
+
+    @NotNull
+    private static String extensionOf(@NotNull String path) {
+        final int dot = path.lastIndexOf('.');
+        return dot < path.lastIndexOf('/') ? "" : path.substring(dot + 1).toLowerCase();
+    }
+
+    @NotNull
+    private static ByteBuffer toDirectBuffer(@NotNull byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * A file along with what is sent with it, it is kept in direct buffers so the connection can write it as is.
+     */
+    private static final class Asset {
+        final String fingerprintedPath;
+        final boolean fingerprinted;
+        final String contentType;
+        final long lastModified;
+        final ByteBuffer identity;
+        final String etag;
+        @Nullable
+        final ByteBuffer gzipped;
+        final String gzippedETag;
+
+        Asset(@NotNull String path, @NotNull byte[] content, long lastModified, boolean fingerprinted) throws IOException {
+            final String fingerprint = fingerprint(content);
+            final String extension = extensionOf(path);
+            this.fingerprinted = fingerprinted;
+            this.fingerprintedPath = fingerprinted
+                    ? path.substring(0, path.length() - extension.length()) + fingerprint + (extension.isEmpty() ? "" : '.' + extension)
+                    : path;
+            this.contentType = CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+            //Browsers compare the dates in seconds
+            this.lastModified = lastModified / 1000 * 1000;
+            this.identity = toDirectBuffer(content);
+            this.etag = '"' + fingerprint + '"';
+            final byte[] compressed = gzip(content);
+            this.gzipped = compressed.length < content.length * MIN_COMPRESSION ? toDirectBuffer(compressed) : null;
+            this.gzippedETag = '"' + fingerprint + "-gzip\"";
+        }
+
+        @NotNull
+        private static String fingerprint(@NotNull byte[] content) {
+            try {
+                final byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                final StringBuilder hex = new StringBuilder(16);
+                for (int i = 0; i < 8; i++) {
+                    hex.append(String.format("%02x", hash[i]));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @NotNull
+        private static byte[] gzip(@NotNull byte[] content) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(content);
+            }
+            return out.toByteArray();
+        }
+    }
+}
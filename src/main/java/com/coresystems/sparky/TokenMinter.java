@@ -0,0 +1,224 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.twilio.sdk.auth.AccessToken;
+import com.twilio.sdk.auth.ConversationsGrant;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Mints the access tokens handed out by /token. Signing runs on a bounded executor, so a burst of requests can't keep
+ * more cores busy with signing than the executor has threads. Tokens close to their expiry are re-minted in the
+ * background (refresh-ahead), so a returning user is served an already signed token instead of waiting for a new one.
+ */
+final class TokenMinter {
+    private final ThreadPoolExecutor executor;
+    // The TTL of a token in seconds
+    private final int tokenTtl;
+    // Tokens which expire in less than this are re-minted in the background
+    private final long refreshAheadMillis;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder preMinted = new LongAdder();
+    private final LongAdder onDemand = new LongAdder();
+    private final LongAdder staleServed = new LongAdder();
+
+    /**
+     * @param threads            the number of threads signing tokens.
+     * @param queueCapacity      the number of mint requests that may wait for a thread.
+     * @param tokenTtl           the TTL of the minted tokens in seconds.
+     * @param refreshAheadMillis how long before its expiry a token is re-minted.
+     */
+    TokenMinter(int threads, int queueCapacity, int tokenTtl, long refreshAheadMillis) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "sparky-token-minter-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.tokenTtl = tokenTtl;
+        this.refreshAheadMillis = refreshAheadMillis;
+    }
+
+    /**
+     * Mints a new token and waits for it. If all signing threads are busy and the queue is full, the token is signed
+     * on the calling thread instead.
+     *
+     * @param properties the twilio credentials.
+     * @param template   the registration to mint the token for, its callerId is used as the identity. Its token, if
+     *                   any, is the one the new token replaces - the new one never equals it.
+     * @return a copy of the given registration with the new token.
+     */
+    @NotNull
+    Registration mint(@NotNull Properties properties, @NotNull Registration template) {
+        onDemand.increment();
+        try {
+            return submit(properties, template).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Mints a new token without waiting for it. If all signing threads are busy and the queue is full, the token is
+     * signed on the calling thread instead.
+     *
+     * @return the future copy of the given registration with the new token.
+     */
+    @NotNull
+    CompletableFuture<Registration> mintAsync(@NotNull Properties properties, @NotNull Registration template) {
+        onDemand.increment();
+        return submit(properties, template);
+    }
+
+    /**
+     * Tells whether the given token was signed with the given API key, which the token names as its issuer - so a token
+     * minted before the key was rotated isn't handed out again.
+     *
+     * @return false if it wasn't, or the token can't be read.
+     */
+    static boolean isSignedWith(@NotNull String token, @Nullable String apiKey) {
+        final int first = token.indexOf('.');
+        final int second = token.indexOf('.', first + 1);
+        if (first <= 0 || second < 0 || StringUtils.isEmpty(apiKey)) {
+            return false;
+        }
+        try {
+            final JsonElement issuer = new JsonParser().parse(new String(Base64.getUrlDecoder().decode(token.substring(first + 1, second)),
+                    StandardCharsets.UTF_8)).getAsJsonObject().get("iss");
+            return issuer != null && issuer.isJsonPrimitive() && apiKey.equals(issuer.getAsString());
+        } catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+            //Not base64, or not json
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the token of the given registration should be re-minted, since it expires soon.
+     */
+    boolean needsRefresh(@NotNull Registration registration, long now) {
+        return registration.getExpiresAt() > 0 && registration.getExpiresAt() - now < refreshAheadMillis;
+    }
+
+    /**
+     * Re-mints the token of the given registration in the background, unless that is already happening. The current
+     * token is still served in the meantime. If the executor is saturated the refresh is skipped - the next request
+     * for the same registration will try again.
+     *
+     * @param onMinted receives a copy of the current registration with the new token.
+     */
+    void refreshAhead(@NotNull Properties properties, @NotNull Registration current, @NotNull Consumer<Registration> onMinted) {
+        staleServed.increment();
+        if (!refreshing.add(current.getCallerId())) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    onMinted.accept(sign(properties, current, current.getToken(), current.getExpiresAt()));
+                    preMinted.increment();
+                } catch (RuntimeException e) {
+                    Log.e(TokenMinter.class.getSimpleName(), "Failed to refresh the token of " + current.getCallerId(), e);
+                } finally {
+                    refreshing.remove(current.getCallerId());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(current.getCallerId());
+        }
+    }
+
+    /**
+     * @return the number of tokens re-minted in the background.
+     */
+    long getPreMinted() {
+        return preMinted.sum();
+    }
+
+    /**
+     * @return the number of tokens minted while a request was waiting for them.
+     */
+    long getOnDemand() {
+        return onDemand.sum();
+    }
+
+    /**
+     * @return the number of tokens served although they were due for a refresh.
+     */
+    long getStaleServed() {
+        return staleServed.sum();
+    }
+
+    /**
+     * @return the future token, signed on the calling thread if the executor is saturated.
+     */
+    @NotNull
+    private CompletableFuture<Registration> submit(@NotNull Properties properties, @NotNull Registration template) {
+        try {
+            return CompletableFuture.supplyAsync(() -> sign(properties, template, StringUtils.EMPTY, 0), executor);
+        } catch (RejectedExecutionException e) {
+            final CompletableFuture<Registration> result = new CompletableFuture<>();
+            try {
+                result.complete(sign(properties, template, StringUtils.EMPTY, 0));
+            } catch (RuntimeException signingFailure) {
+                result.completeExceptionally(signingFailure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param previousToken          the token the new one replaces, accepted until it expires.
+     * @param previousTokenExpiresAt the time in millis the previous token expires at.
+     */
+    @NotNull
+    private Registration sign(@NotNull Properties properties, @NotNull Registration template, @NotNull String previousToken,
+                              long previousTokenExpiresAt) {
+        // Taken before signing, so we never consider a token valid for longer than twilio does
+        long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(tokenTtl);
+        // Create Conversations messaging grant
+        ConversationsGrant grant = new ConversationsGrant();
+        grant.configurationProfileSid = properties.getProperty(SparkyService.VIDEO_CONFIGURATION_SID);
+        // Create access token - we use the "key" to create the identity, the client will be given that key to call another user
+        String token = sign(properties, template, grant, tokenTtl);
+        //Tokens minted within the same second are equal, the one replaced may have been revoked though - a second
+        //less of lifetime tells them apart
+        if (token.equals(template.getToken())) {
+            token = sign(properties, template, grant, tokenTtl - 1);
+            expiresAt -= TimeUnit.SECONDS.toMillis(1);
+        }
+        return new Registration(template.getAccount(), template.getUserName(), template.getFullName(), token,
+                template.getCallerId(), expiresAt, previousToken, previousTokenExpiresAt);
+    }
+
+    @NotNull
+    private static String sign(@NotNull Properties properties, @NotNull Registration template, @NotNull ConversationsGrant grant, int ttl) {
+        return new AccessToken.Builder(properties.getProperty(SparkyService.ACCOUNT_SID), properties.getProperty(SparkyService.API_KEY),
+                properties.getProperty(SparkyService.API_SECRET))
+                .identity(template.getCallerId())
+                .grant(grant)
+                .ttl(ttl)
+                .build()
+                .toJWT();
+    }
+}
@@ -0,0 +1,238 @@
+package com.coresystems.sparky;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Authenticates a caller by the token alone: a token minted by {@link TokenMinter} is a JWT signed with the API secret,
+ * holding the callerId as identity and its expiry. Checking the signature, identity and expiry therefore needs no
+ * registration - the caller is authenticated even if the store of this node doesn't hold it, e.g. after an eviction, a
+ * restart or on another node.
+ * <p>
+ * A caller which unregistered or had its token replaced has its earlier tokens revoked, see {@link Revocations}: the
+ * revocations are passed to {@link #verify(String, String, Revocations)}, and revoked tokens are rejected.
+ * <p>
+ * Each thread keeps a Mac keyed with the current API secret, and tokens which passed are remembered (up to a number of
+ * them) until they expire or the secret changes, so a caller sending the same token again is only looked up.
+ */
+final class TokenVerifier {
+    private static final String ALGORITHM = "HmacSHA256";
+    // The header of the tokens we mint, tokens signed any other way are rejected
+    private static final String JWT_ALGORITHM = "HS256";
+
+    private final Supplier<Properties> credentials;
+    private final int maxVerified;
+    private final LongSupplier clock;
+    private final ThreadLocal<KeyedMac> macs = new ThreadLocal<>();
+    private final Map<String, Verified> verified = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param credentials supplies the twilio credentials holding the API secret.
+     * @param maxVerified the number of verified tokens remembered at most, 0 to check every token.
+     * @param clock       supplies the current time in milliseconds.
+     */
+    TokenVerifier(@NotNull Supplier<Properties> credentials, int maxVerified, @NotNull LongSupplier clock) {
+        this.credentials = credentials;
+        this.maxVerified = maxVerified;
+        this.clock = clock;
+    }
+
+    TokenVerifier(@NotNull Supplier<Properties> credentials, int maxVerified) {
+        this(credentials, maxVerified, System::currentTimeMillis);
+    }
+
+    /**
+     * @param token    the token sent by the caller.
+     * @param callerId the callerId the caller claims to be.
+     * @return true if the given token was signed with the current API secret, is issued to the given callerId and
+     * hasn't expired yet.
+     */
+    boolean verify(@Nullable String token, @NotNull String callerId) {
+        return verify(token, callerId, null);
+    }
+
+    /**
+     * @param revocations the tokens revoked; null if none are.
+     * @return true if the given token was signed with the current API secret, is issued to the given callerId, wasn't
+     * revoked and hasn't expired yet.
+     */
+    boolean verify(@Nullable String token, @NotNull String callerId, @Nullable Revocations revocations) {
+        if (token == null || token.isEmpty()) {
+            return false;
+        }
+        final String secret = credentials.get().getProperty(SparkyService.API_SECRET, "");
+        if (secret.isEmpty()) {
+            return false;
+        }
+        final long now = clock.getAsLong();
+        Verified result = verified.get(token);
+        if (result != null && result.secret.equals(secret)) {
+            hits.increment();
+        } else {
+            misses.increment();
+            result = check(token, secret);
+            if (result == null) {
+                return false;
+            }
+            remember(token, result);
+        }
+        return result.expiresAt > now && result.identity.equals(callerId)
+                && (revocations == null || !revocations.isRevoked(callerId, result.issuedAt, token));
+    }
+
+    /**
+     * @return the time of issue of the given token in milliseconds; {@link Long#MIN_VALUE} if it isn't signed with the
+     * current API secret.
+     */
+    long getIssuedAt(@Nullable String token) {
+        final String secret = credentials.get().getProperty(SparkyService.API_SECRET, "");
+        if (token == null || token.isEmpty() || secret.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+        Verified result = verified.get(token);
+        if (result == null || !result.secret.equals(secret)) {
+            result = check(token, secret);
+        }
+        return result == null ? Long.MIN_VALUE : result.issuedAt;
+    }
+
+    /**
+     * @return the number of tokens which were verified before.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of tokens whose signature was checked.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the identity and expiry of the given token; null if the token isn't signed with the given secret.
+     */
+    @Nullable
+    private Verified check(@NotNull String token, @NotNull String secret) {
+        final int first = token.indexOf('.');
+        final int second = token.indexOf('.', first + 1);
+        if (first <= 0 || second < 0 || token.indexOf('.', second + 1) >= 0) {
+            return null;
+        }
+        try {
+            final Base64.Decoder decoder = Base64.getUrlDecoder();
+            final byte[] signature = decoder.decode(token.substring(second + 1));
+            final byte[] expected = mac(secret).doFinal(token.substring(0, second).getBytes(StandardCharsets.US_ASCII));
+            //Takes the same time no matter where the signatures differ
+            if (!MessageDigest.isEqual(expected, signature)) {
+                return null;
+            }
+            final JsonParser parser = new JsonParser();
+            final JsonObject header = parser.parse(new String(decoder.decode(token.substring(0, first)), StandardCharsets.UTF_8)).getAsJsonObject();
+            if (!JWT_ALGORITHM.equals(getString(header, "alg"))) {
+                return null;
+            }
+            final JsonObject payload = parser.parse(new String(decoder.decode(token.substring(first + 1, second)), StandardCharsets.UTF_8)).getAsJsonObject();
+            final JsonElement grants = payload.get("grants");
+            final String identity = grants != null && grants.isJsonObject() ? getString(grants.getAsJsonObject(), "identity") : null;
+            final JsonElement expiry = payload.get("exp");
+            //Twilio sets the time of issue as nbf rather than iat
+            final JsonElement issued = payload.has("iat") ? payload.get("iat") : payload.get("nbf");
+            if (identity == null || expiry == null || !expiry.isJsonPrimitive() || issued == null || !issued.isJsonPrimitive()) {
+                return null;
+            }
+            return new Verified(identity, TimeUnit.SECONDS.toMillis(issued.getAsLong()), TimeUnit.SECONDS.toMillis(expiry.getAsLong()), secret);
+        } catch (IllegalArgumentException | IllegalStateException | JsonParseException | UnsupportedOperationException e) {
+            //Not base64, not json or not the json we expect
+            return null;
+        }
+    }
+
+    /**
+     * @return the Mac of this thread, keyed with the given secret.
+     */
+    @NotNull
+    private Mac mac(@NotNull String secret) {
+        KeyedMac keyed = macs.get();
+        if (keyed == null || !keyed.secret.equals(secret)) {
+            try {
+                final Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+                keyed = new KeyedMac(secret, mac);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            macs.set(keyed);
+        }
+        return keyed.mac;
+    }
+
+    private void remember(@NotNull String token, @NotNull Verified result) {
+        if (maxVerified <= 0) {
+            return;
+        }
+        if (verified.size() >= maxVerified) {
+            //Expired tokens make room first, all others otherwise - they are verified again in microseconds
+            final long now = clock.getAsLong();
+            verified.values().removeIf(entry -> entry.expiresAt <= now);
+            if (verified.size() >= maxVerified) {
+                verified.clear();
+            }
+        }
+        verified.put(token, result);
+    }
+
+    @Nullable
+    private static String getString(@NotNull JsonObject object, @NotNull String name) {
+        final JsonElement value = object.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    private static final class KeyedMac {
+        final String secret;
+        final Mac mac;
+
+        KeyedMac(@NotNull String secret, @NotNull Mac mac) {
+            this.secret = secret;
+            this.mac = mac;
+        }
+    }
+
+    /**
+     * A token which was signed with the given secret.
+     */
+    private static final class Verified {
+        final String identity;
+        final long issuedAt;
+        final long expiresAt;
+        final String secret;
+
+        Verified(@NotNull String identity, long issuedAt, long expiresAt, @NotNull String secret) {
+            this.identity = identity;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+            this.secret = secret;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.Registration;
+import com.coresystems.sparky.store.StoreListener;
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the user lists of the accounts polled recently as json, along with the version of each account, which is
+ * bumped on every change of the account's registrations - put, removal, expiry or eviction alike.
+ * <p>
+ * The versions are kept in a fixed number of slots, accounts sharing a slot share their version as well. That only
+ * causes an account's list to be serialized again when another account changed, but bounds the memory taken no
+ * matter how many accounts there are. The versions start over on every restart, so the {@link #getETag ETags} also
+ * hold a random number picked at startup, clients never take the list of another run for an unchanged one.
+ */
+final class UserListCache {
+    private static final int VERSION_SLOTS = 4096;
+
+    private final KeyValueStorage<String, Registration> store;
+    private final int maxAccounts;
+    private final int maxUsers;
+    private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_SLOTS);
+    private final Map<String, UserList> lists = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxAccounts the number of accounts whose user list is kept at most.
+     * @param maxUsers    the number of users of an account at most for its list to be kept, larger lists are written
+     *                    from the store every time.
+     */
+    UserListCache(@NotNull KeyValueStorage<String, Registration> store, int maxAccounts, int maxUsers) {
+        this.store = store;
+        this.maxAccounts = maxAccounts;
+        this.maxUsers = maxUsers;
+        store.addListener(new StoreListener<String, Registration>() {
+            @Override
+            public void onPut(@NotNull String key, @NotNull Registration value) {
+                changed(value.getAccount());
+            }
+
+            @Override
+            public void onRemoved(@NotNull String key, @NotNull Registration value, @NotNull RemovalCause cause) {
+                changed(value.getAccount());
+            }
+        });
+    }
+
+    /**
+     * @return the current version of the given account.
+     */
+    long getVersion(@NotNull String account) {
+        return versions.get(slot(account));
+    }
+
+    /**
+     * @param variant whatever else the response depends on, e.g. the requester and the page.
+     * @return the ETag of the response for the given account and variant, which remains the same until the
+     * registrations of the account change.
+     */
+    @NotNull
+    String getETag(@NotNull String account, @NotNull String variant) {
+        return '"' + epoch + '-' + Long.toString(getVersion(account), 36) + '-' + Integer.toHexString(variant.hashCode()) + '"';
+    }
+
+    /**
+     * Writes all users of the given account but the requester as a json array, from the kept list if the account
+     * didn't change since.
+     *
+     * @param requester the username left out of the list.
+     * @return the number of users written; -1 if the account has too many users to be kept, nothing has been
+     * written in that case.
+     */
+    int write(@NotNull String account, @NotNull String requester, @NotNull Writer out) throws IOException {
+        //Read before the store, so a list which misses a change is never taken for the version of the change
+        final long version = getVersion(account);
+        final FlightEvents.UserListEvent event = new FlightEvents.UserListEvent();
+        event.begin();
+        UserList list = lists.get(account);
+        final boolean hit = list != null && list.version == version;
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+            list = createList(account, version);
+            if (list == null) {
+                return -1;
+            }
+            keep(account, list);
+        }
+        final int count = list.write(requester, out);
+        event.end();
+        if (event.shouldCommit()) {
+            event.account = account;
+            event.scanned = hit ? 0 : list.ends.length;
+            event.returned = count;
+            event.cached = hit;
+            event.commit();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of lists written as kept.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lists serialized from the store, since they weren't kept or the account changed.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of lists kept.
+     */
+    int size() {
+        return lists.size();
+    }
+
+    private void changed(@NotNull String account) {
+        versions.incrementAndGet(slot(account));
+        lists.remove(account);
+    }
+
+    @Nullable
+    private UserList createList(@NotNull String account, long version) throws IOException {
+        //Ordered by key, just like the pages of the list
+        final Map<String, Registration> page = store.getByAccount(account, StringUtils.EMPTY, maxUsers + 1);
+        if (page.size() > maxUsers) {
+            return null;
+        }
+        final List<Registration> users = new ArrayList<>(page.values());
+        final StringWriter json = new StringWriter(128 * (users.size() + 1));
+        final JsonWriter writer = RegistrationCodec.createWriter(json);
+        final int[] ends = new int[users.size()];
+        final String[] userNames = new String[users.size()];
+        writer.beginArray();
+        for (int i = 0; i < users.size(); i++) {
+            RegistrationCodec.writeUser(writer, users.get(i));
+            writer.flush();
+            ends[i] = json.getBuffer().length();
+            userNames[i] = users.get(i).getUserName();
+        }
+        writer.endArray().flush();
+        return new UserList(version, json.toString(), ends, userNames);
+    }
+
+    private void keep(@NotNull String account, @NotNull UserList list) {
+        if (lists.size() >= maxAccounts && !lists.containsKey(account)) {
+            //Any other list makes room, the lists polled most often are serialized again soon enough
+            final Iterator<String> accounts = lists.keySet().iterator();
+            if (accounts.hasNext()) {
+                accounts.next();
+                accounts.remove();
+            }
+        }
+        lists.put(account, list);
+    }
+
+    private static int slot(@NotNull String account) {
+        final int hash = account.hashCode();
+        return (hash ^ (hash >>> 16)) & (VERSION_SLOTS - 1);
+    }
+
+    /**
+     * The json array of the users of an account, along with where each user ends in it, so any one user can be left
+     * out when writing the list.
+     */
+    private static final class UserList {
+        final long version;
+        final String json;
+        final int[] ends;
+        final String[] userNames;
+
+        UserList(long version, @NotNull String json, @NotNull int[] ends, @NotNull String[] userNames) {
+            this.version = version;
+            this.json = json;
+            this.ends = ends;
+            this.userNames = userNames;
+        }
+
+        int write(@NotNull String requester, @NotNull Writer out) throws IOException {
+            int count = 0;
+            out.write('[');
+            for (int i = 0; i < ends.length; i++) {
+                if (userNames[i].equals(requester)) {
+                    continue;
+                }
+                //The separator of the json array precedes every user but the first one
+                final int start = i == 0 ? 1 : ends[i - 1] + 1;
+                if (count++ > 0) {
+                    out.write(',');
+                }
+                out.write(json, start, ends[i] - start);
+            }
+            out.write(']');
+            return count;
+        }
+    }
+}
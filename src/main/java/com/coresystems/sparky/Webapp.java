@@ -1,18 +1,58 @@
 package com.coresystems.sparky;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.HashRing;
+import com.coresystems.sparky.store.JournalStore;
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.MeteredStore;
 import com.coresystems.sparky.store.MockStore;
 import com.coresystems.sparky.store.Registration;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import spark.Request;
+import spark.Response;
+import spark.Route;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.logging.FileHandler;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static spark.Spark.get;
 import static spark.Spark.post;
-import static spark.Spark.staticFileLocation;
+import static spark.Spark.threadPool;
+import static spark.Spark.webSocket;
 
 /**
  * Spark uses "route matching" (such as a get to obtain a token). The first
@@ -22,45 +62,936 @@ import static spark.Spark.staticFileLocation;
  * @author zafr
  */
 public final class Webapp {
-    private static final String DATA_TYPE_JSON = "application/json";
-    // For starters this should be enough, later we can increase the max capacity based on resources/experience
-    //TODO to connect the Redis server, we'll simply use a fallback strategy: If redis not available > use in-memory storage
-    private static final SparkyService service = new SparkyService(new MockStore(5000));
+    static final String DATA_TYPE_JSON = "application/json";
+    // Optional environment variable: seconds a user stays in the user list without calling /heartbeat (or being handed a newly minted token)
+    private static final String PRESENCE_LEASE = "PRESENCE_LEASE";
+    // Optional environment variable: directory in which the registrations are kept, so they survive a restart
+    private static final String DATA_DIR = "DATA_DIR";
+    // Optional environment variable: the file holding the twilio credentials, which is watched for changes
+    private static final String CONFIG_FILE = "CONFIG_FILE";
+    private static final String DEFAULT_CONFIG_FILE = ".env_config";
+    // Optional environment variable: the level of the request log, e.g. FINE to log the raw request bodies as well
+    private static final String LOG_LEVEL = "LOG_LEVEL";
+    // The number of log records which may wait to be written, further ones are dropped
+    private static final int LOG_QUEUE_CAPACITY = 8192;
+    // Query parameters of /users: the max number of users per page, and the cursor of the previous page
+    private static final String LIMIT = "limit";
+    private static final String CURSOR = "cursor";
+    private static final String ERROR = "error";
+    private static final int USERS_BUFFER_SIZE = 2048;
+    // The number of tokens remembered as verified, so their signature isn't checked on every request
+    private static final int VERIFIED_TOKENS = 4096;
+    private static final String ETAG = "ETag";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String CONTENT_TYPE = "Content-Type";
+    // The request attribute holding the request as read by readRequest, or the exception reading it failed with
+    private static final String PARSED_REQUEST = "sparky.parsedRequest";
+    private static final String ACCEPT = "Accept";
+    private static final String VARY = "Vary";
+    // The buckets of the histogram of the account sizes on /metrics
+    private static final long[] ACCOUNT_SIZE_BOUNDS = {1, 10, 100, 1000, 10000, 100000};
+    // The number of presence messages which may wait for a single slow client, and for the fan-out to all clients
+    private static final int PRESENCE_BUFFER_SIZE = 256;
+    private static final int MAX_PENDING_PRESENCE_CHANGES = 65536;
+    // Optional environment variables: the number of requests worked on at the same time, and the number of requests
+    // which may wait for one of them - further requests are answered with 503 right away
+    private static final String MAX_CONCURRENT_REQUESTS = "MAX_CONCURRENT_REQUESTS";
+    private static final String MAX_QUEUED_REQUESTS = "MAX_QUEUED_REQUESTS";
+    // Optional environment variable: true to have /token free the request thread while a token is signed
+    private static final String ASYNC_TOKENS = "ASYNC_TOKENS";
+    // How long a queued request waits for a slot at most, before it's answered with 503
+    private static final long MAX_QUEUE_WAIT_MILLIS = 500;
+    // How long an asynchronous /token request waits for its token at most, before it's answered with 503
+    private static final long ASYNC_TOKEN_TIMEOUT_MILLIS = 30000;
+    // The threads of the server beyond the ones working on requests, for Jetty's acceptors and selectors
+    private static final int RESERVED_THREADS = 16;
+    private static final int maxConcurrentRequests = getPositiveInt(MAX_CONCURRENT_REQUESTS, 64);
+    private static final int maxQueuedRequests = getPositiveInt(MAX_QUEUED_REQUESTS, 128);
+    private static final AdmissionControl admission = new AdmissionControl(maxConcurrentRequests, maxQueuedRequests, MAX_QUEUE_WAIT_MILLIS);
+    // Optional environment variables: the requests per second allowed for an account, 0 for no limit, e.g. 100; the
+    // limits of individual accounts, e.g. "CBI=500,FBI=20"; and the requests per second allowed for a single user.
+    // Twice as many requests are allowed at once.
+    private static final String ACCOUNT_RATE_LIMIT = "ACCOUNT_RATE_LIMIT";
+    private static final String ACCOUNT_RATE_LIMITS = "ACCOUNT_RATE_LIMITS";
+    private static final String CALLER_RATE_LIMIT = "CALLER_RATE_LIMIT";
+    // The max number of token buckets kept for the accounts and for the users, the least recently used ones are dropped beyond that
+    private static final int MAX_RATE_LIMITED_ACCOUNTS = 10000;
+    private static final int MAX_RATE_LIMITED_CALLERS = 100000;
+    private static final RateLimiter accountLimiter = new RateLimiter(createRateLimit(getNonNegativeDouble(ACCOUNT_RATE_LIMIT, 0)),
+            getAccountRateLimits(), MAX_RATE_LIMITED_ACCOUNTS);
+    private static final RateLimiter callerLimiter = new RateLimiter(createRateLimit(getNonNegativeDouble(CALLER_RATE_LIMIT, 5)),
+            Collections.emptyMap(), MAX_RATE_LIMITED_CALLERS);
+    // The latencies of the routes by path, registered along with the routes
+    private static final Map<String, LatencyHistogram> routeLatencies = new ConcurrentHashMap<>();
+    // Optional environment variable: the max megabytes of heap taken by the registrations, the least recently used ones
+    // are evicted beyond that. The default holds about 100000 registrations
+    private static final String STORE_MAX_MEGABYTES = "STORE_MAX_MEGABYTES";
+    //TODO to connect the Redis server, implement a RemoteBackend and wrap the store in a TieredStore - it falls back to the in-memory storage if redis is not available
+    private static final ConcurrentStore store = ConcurrentStore.withMaxBytes(getPositiveInt(STORE_MAX_MEGABYTES, 64) * 1024L * 1024L, 16,
+            getPresenceLeaseMillis());
+    // Counts the hits and misses of the lookups of the service, along with evictions and expirations
+    private static final MeteredStore registrations = new MeteredStore(createPersistentStore(store));
+    private static final SparkyService service = new SparkyService(registrations);
+    // Pushes the registrations and removals of each account to the clients connected to /presence
+    static final PresenceHub presence = new PresenceHub(registrations, service::isAuthenticated, PRESENCE_BUFFER_SIZE, MAX_PENDING_PRESENCE_CHANGES);
+    // Optional environment variables turning on the cluster mode: the nodes of the cluster by host and port, e.g.
+    // "10.0.0.1:4567,10.0.0.2:4567", this node among them, the secret shared by the nodes, and the number of further
+    // nodes keeping a copy of each account (1 if not set)
+    private static final String CLUSTER_NODES = "CLUSTER_NODES";
+    private static final String CLUSTER_NODE = "CLUSTER_NODE";
+    private static final String CLUSTER_SECRET = "CLUSTER_SECRET";
+    private static final String CLUSTER_REPLICAS = "CLUSTER_REPLICAS";
+    private static final HttpClusterTransport clusterTransport = new HttpClusterTransport(StringUtils.defaultString(System.getenv(CLUSTER_SECRET)));
+    // Null unless the cluster mode is on
+    private static final ClusterNode cluster = createCluster();
     static final Logger logger;
+    // Writes the log in the background, so request threads never wait for the disk
+    static final AsyncLogHandler logHandler;
     static final Gson gson = new Gson();
 
     static {
         logger = Logger.getLogger("com.twilio.Sparky");
+        logger.setUseParentHandlers(false);
+        AsyncLogHandler handler;
         try {
-            logger.addHandler(new FileHandler("sparky.log"));
+            handler = AsyncLogHandler.toFile("sparky.log", LOG_QUEUE_CAPACITY);
         } catch (IOException e) {
-            Log.e(logger.getName(), "Failed to create file handler for logging.", e);
+            Log.e(logger.getName(), "Failed to open the log file, logging to the console instead.", e);
+            handler = AsyncLogHandler.toConsole(LOG_QUEUE_CAPACITY);
         }
-        logger.setLevel(Level.ALL);
+        logHandler = handler;
+        logger.addHandler(logHandler);
+        logger.setLevel(getLogLevel());
 
         logger.info("Sparky is up and running.");
     }
 
-    public static void main(String[] args) {
-        // Serve static files from src/main/resources/public
-        staticFileLocation("/public");
+    /**
+     * @param store the in-memory store.
+     * @return a store which keeps the registrations of the given store on disk, if a data directory is set; the
+     * given store otherwise.
+     */
+    private static KeyValueStorage<String, Registration> createPersistentStore(ConcurrentStore store) {
+        final String dataDir = System.getenv(DATA_DIR);
+        if (dataDir == null || dataDir.trim().isEmpty()) {
+            return store;
+        }
+        try {
+            final JournalStore journalStore = new JournalStore(store, new File(dataDir.trim()));
+            Runtime.getRuntime().addShutdownHook(new Thread(journalStore::close, "sparky-journal-shutdown"));
+            return journalStore;
+        } catch (Exception e) {
+            Log.e(Webapp.class.getSimpleName(), "Failed to restore the registrations, they won't survive a restart.", e);
+            return store;
+        }
+    }
+
+    /**
+     * @return the node of this server, if the environment variables of the cluster mode are set; null otherwise.
+     */
+    private static ClusterNode createCluster() {
+        final String nodes = System.getenv(CLUSTER_NODES);
+        if (StringUtils.isBlank(nodes)) {
+            return null;
+        }
+        final String self = StringUtils.trimToEmpty(System.getenv(CLUSTER_NODE));
+        if (StringUtils.isBlank(System.getenv(CLUSTER_SECRET))) {
+            throw new IllegalStateException(CLUSTER_SECRET + " must be set in cluster mode, otherwise anyone could replicate registrations to the nodes.");
+        }
+        final List<String> ring = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.trim().isEmpty()) {
+                ring.add(node.trim());
+            }
+        }
+        return new ClusterNode(self, new HashRing(ring), getPositiveInt(CLUSTER_REPLICAS, 1), clusterTransport, registrations);
+    }
+
+    /**
+     * @return the presence lease in millis as set by the environment variable; 0 if not set or invalid.
+     */
+    private static long getPresenceLeaseMillis() {
+        final String lease = System.getenv(PRESENCE_LEASE);
+        try {
+            return lease == null || lease.trim().isEmpty() ? 0 : TimeUnit.SECONDS.toMillis(Long.parseLong(lease.trim()));
+        } catch (NumberFormatException e) {
+            Log.w(Webapp.class.getSimpleName(), "Ignoring invalid " + PRESENCE_LEASE + ": " + lease);
+            return 0;
+        }
+    }
+
+    /**
+     * @return the value of the given environment variable; the default value if not set or invalid.
+     */
+    private static int getPositiveInt(@NotNull String name, int defaultValue) {
+        final String value = System.getenv(name);
+        try {
+            final int parsed = value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            //Falls through to the warning below
+        }
+        Log.w(Webapp.class.getSimpleName(), "Ignoring invalid " + name + ": " + value);
+        return defaultValue;
+    }
+
+    /**
+     * @return the value of the given environment variable; the default value if not set or invalid.
+     */
+    private static double getNonNegativeDouble(@NotNull String name, double defaultValue) {
+        final String value = System.getenv(name);
+        try {
+            final double parsed = value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            //Falls through to the warning below
+        }
+        Log.w(Webapp.class.getSimpleName(), "Ignoring invalid " + name + ": " + value);
+        return defaultValue;
+    }
+
+    /**
+     * @return the rate limits of the accounts as set by the environment variable, invalid entries are skipped.
+     */
+    @NotNull
+    private static Map<String, RateLimiter.Limit> getAccountRateLimits() {
+        final String value = System.getenv(ACCOUNT_RATE_LIMITS);
+        final Map<String, RateLimiter.Limit> limits = new HashMap<>();
+        if (value == null) {
+            return limits;
+        }
+        for (String entry : value.split(",")) {
+            final int separator = entry.indexOf('=');
+            try {
+                final double rate = Double.parseDouble(entry.substring(separator + 1).trim());
+                if (separator <= 0 || rate < 0) {
+                    throw new NumberFormatException();
+                }
+                limits.put(entry.substring(0, separator).trim(), createRateLimit(rate));
+            } catch (NumberFormatException e) {
+                Log.w(Webapp.class.getSimpleName(), "Ignoring invalid entry of " + ACCOUNT_RATE_LIMITS + ": " + entry);
+            }
+        }
+        return limits;
+    }
+
+    @NotNull
+    private static RateLimiter.Limit createRateLimit(double permitsPerSecond) {
+        return permitsPerSecond == 0 ? RateLimiter.Limit.UNLIMITED : new RateLimiter.Limit(permitsPerSecond, 2 * permitsPerSecond);
+    }
+
+    /**
+     * @return the log level as set by the environment variable; INFO if not set or invalid.
+     */
+    private static Level getLogLevel() {
+        final String level = System.getenv(LOG_LEVEL);
+        try {
+            return level == null || level.trim().isEmpty() ? Level.INFO : Level.parse(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.w(Webapp.class.getSimpleName(), "Ignoring invalid " + LOG_LEVEL + ": " + level);
+            return Level.INFO;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final String configFile = StringUtils.defaultIfBlank(System.getenv(CONFIG_FILE), DEFAULT_CONFIG_FILE);
+        start(new CredentialsConfig(Paths.get(configFile), System::getenv).watch());
+    }
+
+    /**
+     * Sets up the routes and starts the server, on the port set with {@link spark.Spark#port(int)} beforehand.
+     *
+     * @param credentials supplies the twilio credentials whenever a token is minted.
+     */
+    static void start(@NotNull Supplier<Properties> credentials) {
+        // Every admitted or queued request holds a thread, the admission control rejects the ones beyond that
+        threadPool(maxConcurrentRequests + maxQueuedRequests + RESERVED_THREADS);
+        // Callers are authenticated by their token as well, in case this node doesn't hold their registration
+        service.setTokenVerifier(new TokenVerifier(credentials, VERIFIED_TOKENS));
+        // Pushes the presence of the users of an account instead of having clients poll /users - must be set up before any route
+        webSocket("/presence", PresenceSocket.class);
+        // Serve static files from src/main/resources/public, read once and kept in memory
+        final StaticAssets assets;
+        try {
+            assets = StaticAssets.load("/public");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the static files", e);
+        }
+        get("/", assets::serve);
+        for (String path : assets.getPaths()) {
+            get(path, assets::serve);
+        }
         logger.info("Received request from client.");
+        // Reclaim expired registrations in the background, so the request threads never have to
+        final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "sparky-store-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(store::expireEntries, 1, 1, TimeUnit.SECONDS);
         /**
          * Creates a new or loads an existing access token using the twilio credentials.
          */
-        post("/token", DATA_TYPE_JSON, (request, response) -> service.getAuthenticationJson(SparkyService.getStaticProperties(), request.body()));
+        final Route token;
+        if (Boolean.parseBoolean(System.getenv(ASYNC_TOKENS))) {
+            token = throttled(false, clustered("/token", asyncToken(credentials)));
+        } else {
+            token = timed("/token", throttled(false, clustered("/token", (request, response) -> authenticate(credentials, request, response))));
+        }
+        // Json is the default, clients may send and accept the compact binary form instead - see BinaryCodec
+        post("/token", DATA_TYPE_JSON, token);
+        post("/token", BinaryCodec.CONTENT_TYPE, token);
 
         /**
          * Request a list of currently authenticated users. This requires an account to be passed, so we can filter
-         * the users by that account.
+         * the users by that account. Large accounts can be fetched page by page, by passing a limit and the cursor
+         * of the previous page as query parameters.
          */
-        post("/users", DATA_TYPE_JSON, (request, response) -> gson.toJson(service.getAuthenticatedUsersByAccount(request.body()), new TypeToken<List<Registration>>() {
-        }.getType()));
+        final Route users = timed("/users", throttled(true, clustered("/users", (request, response) -> {
+            final int limit;
+            try {
+                limit = request.queryParams(LIMIT) == null ? 0 : Integer.parseInt(request.queryParams(LIMIT));
+            } catch (NumberFormatException e) {
+                response.status(400);
+                return gson.toJson(Collections.singletonMap(ERROR, "Invalid limit."));
+            }
+            final Registration requester;
+            try {
+                requester = readRequest(request).registration;
+            } catch (IllegalArgumentException e) {
+                return invalidRequest(response);
+            }
+            final boolean binary = prefersBinary(request);
+            response.header(VARY, ACCEPT);
+            final String etag;
+            try {
+                etag = service.getUsersETag(requester, request.queryParams(CURSOR), limit, binary ? BinaryCodec.CONTENT_TYPE : DATA_TYPE_JSON);
+            } catch (IllegalArgumentException e) {
+                response.status(400);
+                return gson.toJson(Collections.singletonMap(ERROR, "Invalid cursor."));
+            }
+            if (etag != null) {
+                response.header(ETAG, etag);
+                //Polling clients send the ETag of the users they have, which are still up to date
+                if (matches(request.headers(IF_NONE_MATCH), etag)) {
+                    response.status(304);
+                    return "";
+                }
+            }
+            if (binary) {
+                response.type(BinaryCodec.CONTENT_TYPE);
+                final OutputStream out = new BufferedOutputStream(response.raw().getOutputStream(), USERS_BUFFER_SIZE);
+                service.writeAuthenticatedUsersBinary(requester, request.queryParams(CURSOR), limit, out);
+                out.flush();
+                return "";
+            }
+            response.type(DATA_TYPE_JSON);
+            //The users are streamed to the client instead of being serialized into a single String first. The small
+            //buffer only spares the encoder from copying every single json token, the response is buffered anyway
+            final Writer out = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8), USERS_BUFFER_SIZE);
+            service.writeAuthenticatedUsersByAccount(requester, request.queryParams(CURSOR), limit, out);
+            out.flush();
+            return "";
+        })));
+        post("/users", DATA_TYPE_JSON, users);
+        post("/users", BinaryCodec.CONTENT_TYPE, users);
 
         /**
          * Unregister as an active user.
          */
-        post("/unregister", DATA_TYPE_JSON, (request, response) -> gson.toJson(service.removeRegistration(request.body())));
+        post("/unregister", DATA_TYPE_JSON, timed("/unregister", throttled(true, clustered("/unregister",
+                (request, response) -> RegistrationCodec.toJson(service.removeRegistration(readRequest(request).registration))))));
+
+        /**
+         * The batch variants of the above routes take a json array of requests and respond with a json array holding
+         * the response to each request, in the same order.
+         */
+        post("/token/batch", DATA_TYPE_JSON, timed("/token/batch", throttledBatch(false, clusteredBatch("/token/batch",
+                body -> service.getAuthenticationJsonBatch(credentials.get(), body)))));
+        post("/users/batch", DATA_TYPE_JSON, timed("/users/batch", throttledBatch(true, clusteredBatch("/users/batch",
+                body -> RegistrationCodec.toJsonLists(service.getAuthenticatedUsersByAccountBatch(body))))));
+        post("/unregister/batch", DATA_TYPE_JSON, timed("/unregister/batch", throttledBatch(true, clusteredBatch("/unregister/batch",
+                body -> RegistrationCodec.toJson(service.removeRegistrationBatch(body))))));
+
+        /**
+         * Keep a registered user in the user list of the account, required only if a presence lease is set.
+         */
+        post("/heartbeat", DATA_TYPE_JSON, timed("/heartbeat", throttled(true, clustered("/heartbeat",
+                (request, response) -> RegistrationCodec.toJson(service.extendPresence(readRequest(request).registration))))));
+
+        /**
+         * The changes of the registrations made by the other nodes of the cluster.
+         */
+        if (cluster != null) {
+            post(HttpClusterTransport.REPLICATE_PATH, DATA_TYPE_JSON, (request, response) -> {
+                if (!clusterTransport.isTrusted(request.headers(HttpClusterTransport.SECRET_HEADER))) {
+                    response.status(403);
+                    return gson.toJson(Collections.singletonMap(ERROR, "Unknown node."));
+                }
+                final Map<String, Registration> puts = new HashMap<>();
+                final List<String> removals = new ArrayList<>();
+                HttpClusterTransport.readReplication(request.body(), puts, removals);
+                cluster.applyReplication(puts, removals);
+                return "";
+            });
+        }
+
+        /**
+         * The metrics of the routes, the service and the store in the Prometheus text format.
+         */
+        final Metrics metrics = createMetrics();
+        get("/metrics", (request, response) -> {
+            response.type(Metrics.CONTENT_TYPE);
+            return metrics.write();
+        });
+    }
+
+    /**
+     * @return the given route, recording its latencies under the given path. Requests beyond the capacity of the
+     * server are rejected with 503 instead. This comes first, before the rate limits - checking a request against
+     * those may verify its tokens, which must not happen beyond the capacity either.
+     */
+    @NotNull
+    private static Route timed(@NotNull String path, @NotNull Route route) {
+        final LatencyHistogram latency = routeLatencies.computeIfAbsent(path, key -> new LatencyHistogram());
+        return (request, response) -> {
+            final long started = System.nanoTime();
+            final FlightEvents.RouteEvent event = new FlightEvents.RouteEvent();
+            event.begin();
+            if (!admission.tryAcquire()) {
+                latency.recordSince(started);
+                final String rejected = reject(response);
+                record(event, path, request, response);
+                return rejected;
+            }
+            try {
+                return route.handle(request, response);
+            } finally {
+                admission.release();
+                latency.recordSince(started);
+                record(event, path, request, response);
+            }
+        };
+    }
+
+    /**
+     * Ends the given event and commits it, if a flight recording wants it - the request is only looked at then.
+     */
+    private static void record(@NotNull FlightEvents.RouteEvent event, @NotNull String path, @NotNull Request request, @NotNull Response response) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.route = path;
+            try {
+                event.account = readRequest(request).registration.getAccount();
+            } catch (JsonSyntaxException | IllegalArgumentException e) {
+                //A batch or a malformed request, neither has a single account
+            }
+            event.requestBytes = Math.max(0, request.contentLength());
+            event.status = response.raw().getStatus();
+            event.commit();
+        }
+    }
+
+    /**
+     * @return the given route, if the cluster mode is off or the account of the request is handled by this node; a
+     * route forwarding the request to the node handling the account otherwise.
+     */
+    @NotNull
+    private static Route clustered(@NotNull String path, @NotNull Route route) {
+        if (cluster == null) {
+            return route;
+        }
+        return (request, response) -> {
+            if (isForwarded(request)) {
+                return route.handle(request, response);
+            }
+            final RegistrationCodec.Request parsed;
+            try {
+                parsed = readRequest(request);
+            } catch (JsonSyntaxException | IllegalArgumentException e) {
+                //Rejected by the route anyway
+                return route.handle(request, response);
+            }
+            final String account = parsed.registration.getAccount();
+            //The other nodes are sent json, but reply in the form the client accepts
+            final String body = isBinary(request) ? RegistrationCodec.toJson(parsed) : request.body();
+            final Map<String, String> headers = new HashMap<>();
+            for (String name : new String[]{ACCEPT, IF_NONE_MATCH}) {
+                final String value = request.headers(name);
+                if (value != null) {
+                    headers.put(name, value);
+                }
+            }
+            final ClusterTransport.Reply reply;
+            try {
+                reply = cluster.route(account, request.queryString() == null ? path : path + "?" + request.queryString(),
+                        StringUtils.defaultString(body), headers);
+            } catch (UncheckedIOException e) {
+                return unavailable(response);
+            }
+            if (reply == null) {
+                return route.handle(request, response);
+            }
+            return reply(response, reply);
+        };
+    }
+
+    /**
+     * Answers a request with the reply of the node which handled it, along with the headers of the reply.
+     */
+    @NotNull
+    private static byte[] reply(@NotNull Response response, @NotNull ClusterTransport.Reply reply) {
+        response.status(reply.status);
+        response.type(reply.headers.getOrDefault(CONTENT_TYPE, DATA_TYPE_JSON));
+        reply.headers.forEach((name, value) -> {
+            if (!CONTENT_TYPE.equalsIgnoreCase(name)) {
+                response.header(name, value);
+            }
+        });
+        return reply.body;
+    }
+
+    /**
+     * @param local handles a json array of requests of accounts handled by this node.
+     * @return the batch route, splitting the requests by the nodes handling their accounts in cluster mode.
+     */
+    @NotNull
+    private static Route clusteredBatch(@NotNull String path, @NotNull Function<String, String> local) {
+        return (request, response) -> {
+            if (cluster == null || isForwarded(request)) {
+                return local.apply(request.body());
+            }
+            final ClusterTransport.Reply reply;
+            try {
+                reply = cluster.routeBatch(path, request.body(), local);
+            } catch (JsonParseException | IllegalStateException e) {
+                //Not a json array, rejected by the service anyway
+                return local.apply(request.body());
+            } catch (UncheckedIOException e) {
+                return unavailable(response);
+            }
+            return reply(response, reply);
+        };
+    }
+
+    /**
+     * Answers /token in the form the client sent and accepts, see {@link BinaryCodec}.
+     */
+    @NotNull
+    private static Object authenticate(@NotNull Supplier<Properties> credentials, @NotNull Request request, @NotNull Response response) {
+        response.header(VARY, ACCEPT);
+        final boolean binary = prefersBinary(request);
+        final RegistrationCodec.Request parsed;
+        try {
+            parsed = readRequest(request);
+        } catch (IllegalArgumentException e) {
+            return invalidRequest(response);
+        }
+        if (binary) {
+            response.type(BinaryCodec.CONTENT_TYPE);
+            return service.authenticate(credentials.get(), parsed, BinaryCodec::toAuthentication);
+        }
+        return service.authenticate(credentials.get(), parsed, SparkyService::toAuthenticationJson);
+    }
+
+    /**
+     * Like {@link #authenticate(Supplier, Request, Response)}, without waiting for a token to be minted.
+     *
+     * @return the future response; null if the request is malformed.
+     */
+    @Nullable
+    private static CompletableFuture<byte[]> authenticateAsync(@NotNull Supplier<Properties> credentials, @NotNull Request request,
+                                                               @NotNull Response response) {
+        response.header(VARY, ACCEPT);
+        final boolean binary = prefersBinary(request);
+        response.type(binary ? BinaryCodec.CONTENT_TYPE : DATA_TYPE_JSON);
+        final RegistrationCodec.Request parsed;
+        try {
+            parsed = readRequest(request);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (binary) {
+            return service.authenticateAsync(credentials.get(), parsed, BinaryCodec::toAuthentication);
+        }
+        return service.authenticateAsync(credentials.get(), parsed, SparkyService::toAuthenticationJson)
+                .thenApply(json -> json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the request only once, no matter how many of the wrappers of a route and the route itself need it.
+     *
+     * @return the request, read from json or the binary form - whichever its content type is.
+     * @throws JsonSyntaxException      if the json is malformed.
+     * @throws IllegalArgumentException if the binary form is malformed.
+     */
+    @NotNull
+    private static RegistrationCodec.Request readRequest(@NotNull Request request) {
+        final Object read = request.attribute(PARSED_REQUEST);
+        if (read instanceof RegistrationCodec.Request) {
+            return (RegistrationCodec.Request) read;
+        }
+        if (read instanceof RuntimeException) {
+            throw (RuntimeException) read;
+        }
+        final RegistrationCodec.Request parsed;
+        try {
+            if (isBinary(request)) {
+                parsed = BinaryCodec.read(request.bodyAsBytes());
+            } else {
+                logger.fine(() -> "Request to " + request.pathInfo() + ": " + request.body());
+                parsed = RegistrationCodec.read(request.body());
+            }
+        } catch (RuntimeException e) {
+            request.attribute(PARSED_REQUEST, e);
+            throw e;
+        }
+        request.attribute(PARSED_REQUEST, parsed);
+        return parsed;
+    }
+
+    private static boolean isBinary(@NotNull Request request) {
+        final String type = request.contentType();
+        return type != null && type.regionMatches(true, 0, BinaryCodec.CONTENT_TYPE, 0, BinaryCodec.CONTENT_TYPE.length());
+    }
+
+    /**
+     * @return true if the response should be written in the binary form, see {@link #prefersBinary(String)}.
+     */
+    private static boolean prefersBinary(@NotNull Request request) {
+        return prefersBinary(request.headers(ACCEPT));
+    }
+
+    /**
+     * @param accept the Accept header of a request.
+     * @return true if the given header lists the binary form, and with at least the quality of json - json is the
+     * default, wildcards don't count.
+     */
+    static boolean prefersBinary(@Nullable String accept) {
+        final double binary = getQuality(accept, BinaryCodec.CONTENT_TYPE);
+        return binary > 0 && binary >= getQuality(accept, DATA_TYPE_JSON);
+    }
+
+    /**
+     * @return the quality the given Accept header gives the given media type; 0 if it doesn't list it.
+     */
+    private static double getQuality(@Nullable String accept, @NotNull String type) {
+        if (accept == null) {
+            return 0;
+        }
+        for (String range : accept.split(",")) {
+            final String[] parameters = range.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase(type)) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                final String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+            return 1;
+        }
+        return 0;
+    }
+
+    @NotNull
+    private static String invalidRequest(@NotNull Response response) {
+        response.status(400);
+        response.type(DATA_TYPE_JSON);
+        return gson.toJson(Collections.singletonMap(ERROR, "Invalid request."));
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match header of a request, a list of ETags or "*".
+     * @return true if the given header matches the given ETag - weakly, as the json of the users is what matters.
+     */
+    static boolean matches(@Nullable String ifNoneMatch, @NotNull String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            final String trimmed = candidate.trim();
+            if (trimmed.equals("*") || (trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isForwarded(@NotNull Request request) {
+        return request.headers(HttpClusterTransport.FORWARDED_HEADER) != null
+                && clusterTransport.isTrusted(request.headers(HttpClusterTransport.SECRET_HEADER));
+    }
+
+    @NotNull
+    private static String unavailable(@NotNull Response response) {
+        response.status(503);
+        response.type(DATA_TYPE_JSON);
+        return gson.toJson(Collections.singletonMap(ERROR, "The users of this account can't be reached right now, please retry later."));
+    }
+
+    /**
+     * @return the /token route, which returns the request thread to the server while the token is signed and
+     * writes the response once it is. The admission slot is held until then, so the signing is bounded as well.
+     */
+    @NotNull
+    private static Route asyncToken(@NotNull Supplier<Properties> credentials) {
+        final LatencyHistogram latency = routeLatencies.computeIfAbsent("/token", key -> new LatencyHistogram());
+        return (request, response) -> {
+            final long started = System.nanoTime();
+            final FlightEvents.RouteEvent event = new FlightEvents.RouteEvent();
+            event.begin();
+            if (!admission.tryAcquire()) {
+                latency.recordSince(started);
+                final String rejected = reject(response);
+                record(event, "/token", request, response);
+                return rejected;
+            }
+            final CompletableFuture<byte[]> token;
+            try {
+                token = authenticateAsync(credentials, request, response);
+            } catch (RuntimeException e) {
+                admission.release();
+                latency.recordSince(started);
+                record(event, "/token", request, response);
+                throw e;
+            }
+            if (token == null || token.isDone()) {
+                //The token was in the store, no need to go async
+                admission.release();
+                latency.recordSince(started);
+                record(event, "/token", request, response);
+                return token == null ? invalidRequest(response) : token.join();
+            }
+            final AsyncContext async = request.raw().startAsync();
+            //Whichever comes first answers the request: the token, a failure or the timeout
+            final AtomicBoolean answered = new AtomicBoolean();
+            final Runnable finish = () -> {
+                //The request is recycled once completed
+                record(event, "/token", request, response);
+                async.complete();
+                admission.release();
+                latency.recordSince(started);
+            };
+            async.setTimeout(ASYNC_TOKEN_TIMEOUT_MILLIS);
+            async.addListener(new AsyncListener() {
+                @Override
+                public void onTimeout(AsyncEvent asyncEvent) {
+                    if (answered.compareAndSet(false, true)) {
+                        Log.w(Webapp.class.getSimpleName(), "No token within " + ASYNC_TOKEN_TIMEOUT_MILLIS + " ms, answering with 503.");
+                        writeError(async, 503, "The server is overloaded, please retry later.");
+                        finish.run();
+                    }
+                }
+
+                @Override
+                public void onError(AsyncEvent asyncEvent) {
+                    if (answered.compareAndSet(false, true)) {
+                        finish.run();
+                    }
+                }
+
+                @Override
+                public void onComplete(AsyncEvent asyncEvent) {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent asyncEvent) {
+                }
+            });
+            token.whenComplete((body, error) -> {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    if (error != null) {
+                        Log.e(Webapp.class.getSimpleName(), "Failed to answer /token.", error);
+                        writeError(async, 500, "Failed to create a token.");
+                    } else {
+                        async.getResponse().getOutputStream().write(body);
+                    }
+                } catch (IOException e) {
+                    logger.fine(() -> "Failed to write the token, the client is gone: " + e);
+                } finally {
+                    finish.run();
+                }
+            });
+            return "";
+        };
+    }
+
+    /**
+     * @param authenticated whether the user is only charged for requests holding its token - requests in its name
+     *                      without it are charged to the account alone, so nobody can use up the requests of another
+     *                      user. Requests for a token are charged to the user in any case.
+     * @return the given route, unless the account or the user of the request sent more requests than allowed - those
+     * are answered with 429 right away, along with the seconds to wait before the next attempt.
+     */
+    @NotNull
+    private static Route throttled(boolean authenticated, @NotNull Route route) {
+        return (request, response) -> {
+            final Registration registration;
+            try {
+                registration = readRequest(request).registration;
+            } catch (JsonSyntaxException | IllegalArgumentException e) {
+                //Rejected by the route anyway
+                return route.handle(request, response);
+            }
+            final long waitNanos = acquire(registration, authenticated);
+            return waitNanos == 0 ? route.handle(request, response) : tooManyRequests(response, () -> registration.getUserName() + " of " + registration.getAccount(), waitNanos);
+        };
+    }
+
+    /**
+     * Like {@link #throttled(boolean, Route)} for the batch routes: each request of the batch is charged to its
+     * account and user, all at once - the whole batch is answered with 429 if one of them hasn't enough requests
+     * left, and nothing is charged then. Batches of more than {@link SparkyService#MAX_BATCH_SIZE} requests, or with
+     * more requests of an account or user than it may send at once, are answered with 413 before any of that.
+     */
+    @NotNull
+    private static Route throttledBatch(boolean authenticated, @NotNull Route route) {
+        return (request, response) -> {
+            final List<RegistrationCodec.Request> requests;
+            try {
+                requests = RegistrationCodec.readAll(request.body());
+            } catch (JsonSyntaxException e) {
+                //Rejected by the route anyway
+                return route.handle(request, response);
+            }
+            if (requests.size() > SparkyService.MAX_BATCH_SIZE) {
+                return payloadTooLarge(response, "A batch holds " + SparkyService.MAX_BATCH_SIZE + " requests at most.");
+            }
+            final Map<String, Integer> accountPermits = new HashMap<>();
+            final Map<String, Integer> callerPermits = new HashMap<>();
+            for (RegistrationCodec.Request item : requests) {
+                final Registration registration = item.registration;
+                accountPermits.merge(registration.getAccount(), 1, Integer::sum);
+                if (!registration.getUserName().isEmpty() && !callerLimiter.isUnlimited()
+                        && (!authenticated || service.isAuthenticated(registration))) {
+                    callerPermits.merge(MockStore.Companion.createKey(registration.getAccount(), registration.getUserName()), 1, Integer::sum);
+                }
+            }
+            if (accountPermits.entrySet().stream().anyMatch(entry -> accountLimiter.exceedsBurst(entry.getKey(), entry.getValue()))
+                    || callerPermits.entrySet().stream().anyMatch(entry -> callerLimiter.exceedsBurst(entry.getKey(), entry.getValue()))) {
+                return payloadTooLarge(response, "A batch holds more requests of an account or user than may be sent at once.");
+            }
+            long waitNanos = accountLimiter.tryAcquireAll(accountPermits);
+            if (waitNanos == 0) {
+                waitNanos = callerLimiter.tryAcquireAll(callerPermits);
+                if (waitNanos != 0) {
+                    accountLimiter.releaseAll(accountPermits);
+                }
+            }
+            return waitNanos == 0 ? route.handle(request, response) : tooManyRequests(response, () -> "a batch of " + requests.size(), waitNanos);
+        };
+    }
+
+    @NotNull
+    private static String payloadTooLarge(@NotNull Response response, @NotNull String error) {
+        response.status(413);
+        response.type(DATA_TYPE_JSON);
+        return gson.toJson(Collections.singletonMap(ERROR, error));
+    }
+
+    /**
+     * Charges a request to the account and the user of the given registration.
+     *
+     * @return the nanos to wait before the next request is allowed; 0 if this one is.
+     */
+    private static long acquire(@NotNull Registration registration, boolean authenticated) {
+        long waitNanos = accountLimiter.tryAcquire(registration.getAccount());
+        if (waitNanos == 0 && !registration.getUserName().isEmpty() && !callerLimiter.isUnlimited()
+                && (!authenticated || service.isAuthenticated(registration))) {
+            waitNanos = callerLimiter.tryAcquire(MockStore.Companion.createKey(registration.getAccount(), registration.getUserName()));
+        }
+        return waitNanos;
+    }
+
+    @NotNull
+    private static String tooManyRequests(@NotNull Response response, @NotNull Supplier<String> sender, long waitNanos) {
+        logger.fine(() -> "Too many requests by " + sender.get());
+        response.status(429);
+        response.header("Retry-After", String.valueOf(Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1))));
+        response.type(DATA_TYPE_JSON);
+        return gson.toJson(Collections.singletonMap(ERROR, "Too many requests, please retry later."));
+    }
+
+    /**
+     * Answers an asynchronous request with the given status and error, unless the client is gone.
+     */
+    private static void writeError(@NotNull AsyncContext async, int status, @NotNull String error) {
+        final HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+            response.setStatus(status);
+            response.setContentType(DATA_TYPE_JSON);
+            response.getOutputStream().write(gson.toJson(Collections.singletonMap(ERROR, error)).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | IllegalStateException e) {
+            logger.fine(() -> "Failed to write the error, the client is gone: " + e);
+        }
+    }
+
+    @NotNull
+    private static String reject(@NotNull Response response) {
+        response.status(503);
+        response.header("Retry-After", "1");
+        response.type(DATA_TYPE_JSON);
+        return gson.toJson(Collections.singletonMap(ERROR, "The server is overloaded, please retry later."));
+    }
+
+    @NotNull
+    private static Metrics createMetrics() {
+        final Metrics metrics = new Metrics();
+        metrics.histogram("sparky_route_latency_seconds", "The time taken to answer a request, by route.", "route", routeLatencies);
+        metrics.histogram("sparky_service_latency_seconds", "The time taken by the service, by method.", "method", service.getLatencies());
+        metrics.gauge("sparky_requests_active", "The requests being worked on.", admission::getActive);
+        metrics.gauge("sparky_requests_queued", "The requests waiting to be worked on.", admission::getQueued);
+        metrics.counter("sparky_requests_rejected_total", "Requests answered with 503 since the server was at capacity.", admission::getRejected);
+        metrics.counter("sparky_requests_throttled_total", "Requests answered with 429 since their account or user sent too many.",
+                () -> accountLimiter.getRejected() + callerLimiter.getRejected());
+        metrics.gauge("sparky_rate_limit_buckets", "The token buckets kept to limit the request rate of accounts and users.",
+                () -> accountLimiter.getBuckets() + callerLimiter.getBuckets());
+        metrics.counter("sparky_store_hits_total", "Lookups which found a registration, by the operation.", "operation", registrations::getHits);
+        metrics.counter("sparky_store_misses_total", "Lookups which found no registration, or an invalid one, by the operation.", "operation", registrations::getMisses);
+        metrics.counter("sparky_store_evictions_total", "Registrations dropped to make room for others.", registrations::getEvictions);
+        metrics.counter("sparky_store_expirations_total", "Registrations dropped since their token expired or their lease ran out.", registrations::getExpirations);
+        if (cluster != null) {
+            metrics.counter("sparky_cluster_forwarded_total", "Requests forwarded to the node handling their account.", cluster::getForwarded);
+            metrics.counter("sparky_cluster_failovers_total", "Requests sent to a replica since the node handling their account couldn't be reached.", cluster::getFailovers);
+            metrics.counter("sparky_cluster_replicated_total", "Changes of the registrations sent to other nodes.", cluster::getReplicated);
+            metrics.gauge("sparky_cluster_replication_pending", "Changes of the registrations waiting to be sent to other nodes.", cluster::getPendingReplication);
+            metrics.counter("sparky_cluster_replication_dropped_total", "Changes never sent to other nodes, since too many were pending.", cluster::getDropped);
+        }
+        metrics.gauge("sparky_store_bytes", "The estimated heap taken by the registrations.", store::getEstimatedBytes);
+        //A histogram rather than a gauge per account, /metrics mustn't tell the accounts or grow with their number
+        metrics.histogram("sparky_store_account_size", "The number of registrations of the accounts.", ACCOUNT_SIZE_BOUNDS,
+                () -> registrations.getAccountSizes().values());
+        metrics.counter("sparky_tokens_minted_total", "Tokens minted on request.", service.getMinter()::getOnDemand);
+        metrics.counter("sparky_tokens_refreshed_total", "Tokens minted ahead of the expiry of the previous one.", service.getMinter()::getPreMinted);
+        metrics.counter("sparky_tokens_reused_total", "Tokens served from the store instead of being minted.", service::getReusedTokens);
+        final TokenVerifier verifier = service.getTokenVerifier();
+        if (verifier != null) {
+            metrics.counter("sparky_token_signature_checks_total", "Tokens whose signature was checked.", verifier::getMisses);
+            metrics.counter("sparky_token_signature_checks_saved_total", "Tokens known to be verified already.", verifier::getHits);
+        }
+        final UserListCache userLists = service.getUserLists();
+        metrics.counter("sparky_user_lists_hits_total", "User lists written as kept since the account didn't change.", userLists::getHits);
+        metrics.counter("sparky_user_lists_misses_total", "User lists serialized from the store.", userLists::getMisses);
+        metrics.gauge("sparky_user_lists_cached", "The user lists kept.", userLists::size);
+        metrics.counter("sparky_tokens_coalesced_total", "Requests served the token minted for a concurrent request.", service::getCoalescedMints);
+        metrics.counter("sparky_tokens_stale_served_total", "Tokens served although they were due for a refresh.", service.getMinter()::getStaleServed);
+        metrics.gauge("sparky_presence_subscribers", "The clients connected to /presence.", presence::getSubscribers);
+        metrics.counter("sparky_presence_disconnected_total", "Clients disconnected from /presence since they couldn't keep up.", presence::getDisconnected);
+        metrics.counter("sparky_log_dropped_total", "Log records dropped since the log couldn't keep up.", logHandler::getDropped);
+        return metrics;
     }
 
 }
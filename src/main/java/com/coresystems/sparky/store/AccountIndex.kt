@@ -0,0 +1,62 @@
+package com.coresystems.sparky.store
+
+import java.util.HashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListSet
+
+/**
+ * Keeps track of the keys of all registrations per account, so a store can answer [KeyValueStorage.getByAccount]
+ * without looking at registrations of other accounts. Updates of the same account are atomic, the index itself
+ * does not know anything about the store though - callers need to keep both in sync.
+ *
+ * The keys of an account are kept sorted, so a page of them can be read starting after any given key.
+ */
+class AccountIndex {
+    private val index: ConcurrentHashMap<String, AccountKeys> = ConcurrentHashMap()
+
+    private class AccountKeys(val account: String) : ConcurrentSkipListSet<String>()
+
+    /**
+     * @return the instance of the given account kept by the index, so registrations of the same account can share it.
+     */
+    fun add(account: String, key: String): String {
+        return index.compute(account, { account, keys ->
+            val result = keys ?: AccountKeys(account)
+            result.add(key)
+            result
+        })!!.account
+    }
+
+    fun remove(account: String, key: String) {
+        index.computeIfPresent(account, { account, keys ->
+            keys.remove(key)
+            if (keys.isEmpty()) null else keys
+        })
+    }
+
+    /**
+     * @return a snapshot of the keys registered for the given account.
+     */
+    fun keys(account: String): List<String> = index[account]?.toList() ?: emptyList()
+
+    /**
+     * @return the number of keys per account.
+     */
+    fun sizes(): Map<String, Int> {
+        val result = HashMap<String, Int>()
+        for ((account, keys) in index) {
+            result.put(account, keys.size)
+        }
+        return result
+    }
+
+    /**
+     * @param afterKey the key to start after, an empty string to start with the first key.
+     * @return the keys registered for the given account which sort after the given key, in ascending order. This is
+     * a live view rather than a snapshot - keys added or removed while iterating it may or may not show up.
+     */
+    fun keysAfter(account: String, afterKey: String): Iterable<String> {
+        val keys = index[account] ?: return emptyList()
+        return if (afterKey.isEmpty()) keys else keys.tailSet(afterKey, false)
+    }
+}
@@ -0,0 +1,173 @@
+package com.coresystems.sparky.store
+
+import java.nio.charset.StandardCharsets
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The form in which [ConcurrentStore] keeps a registration, less than half the size of a [Registration]:
+ * - the account is the instance shared by all registrations of the account,
+ * - the username and the callerId are left out if they can be derived from the key,
+ * - strings are kept as Latin-1 bytes instead of UTF-16 chars, unless they hold other characters,
+ * - tokens (JWTs) are kept as their decoded bytes, and the header - the same for all tokens - is shared.
+ *
+ * Every read creates a new [Registration], which is short-lived and therefore cheap to collect.
+ *
+ * @param account the shared instance of the account of the given registration.
+ */
+internal open class CompactRegistration(key: String, value: Registration, val account: String) {
+    private val userName: String? = if (key == MockStore.createKey(account, value.userName)) null else value.userName
+    private val fullName: Any = compact(value.fullName)
+    private val callerId: String? = if (key == value.callerId) null else value.callerId
+    private val token: Any = compactToken(value.token)
+    private val previousToken: Any = compactToken(value.previousToken)
+    private val previousTokenExpiresAt: Long = value.previousTokenExpiresAt
+    val expiresAt: Long = value.expiresAt
+
+    fun toRegistration(key: String): Registration = Registration(account, userName ?: key.substring(account.length),
+            expand(fullName), expandToken(token), callerId ?: key, expiresAt, expandToken(previousToken), previousTokenExpiresAt)
+
+    /**
+     * Compares the given token with the decoded bytes of the stored ones, so they aren't encoded again for every
+     * request.
+     *
+     * @see Registration.acceptsToken
+     */
+    fun acceptsToken(token: String, now: Long): Boolean {
+        val previousValid = previousToken !== EMPTY_BYTES && now < previousTokenExpiresAt
+        //Decoded once for both, and only if a stored token is kept decoded
+        val decoded = if (this.token is CompactToken || (previousValid && previousToken is CompactToken)) decode(token) else null
+        return isSameToken(this.token, token, decoded) || (previousValid && isSameToken(previousToken, token, decoded))
+    }
+
+    /**
+     * @return the estimated bytes taken by this registration, along with the given key and the entries pointing at it
+     * from the store and its index.
+     */
+    fun weight(key: String): Long = OVERHEAD + stringWeight(key) + (if (userName == null) 0 else stringWeight(userName)) +
+            (if (callerId == null) 0 else stringWeight(callerId)) + weight(fullName) + tokenWeight(token) + tokenWeight(previousToken)
+
+    /**
+     * A token split into its shared header and the decoded bytes of its payload and signature.
+     */
+    private class CompactToken(val header: String, val bytes: ByteArray, val payloadLength: Int) {
+        override fun toString(): String {
+            val encoder = Base64.getUrlEncoder().withoutPadding()
+            return header + '.' + encoder.encodeToString(Arrays.copyOfRange(bytes, 0, payloadLength)) + '.' +
+                    encoder.encodeToString(Arrays.copyOfRange(bytes, payloadLength, bytes.size))
+        }
+    }
+
+    companion object {
+        // The object headers and references of the registration, the entry of the store's map and of the account index
+        private const val OVERHEAD = 64L + 48L + 40L
+        private const val MAX_HEADERS = 16
+        private val EMPTY_BYTES = ByteArray(0)
+        private const val BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+        private val headers = ConcurrentHashMap<String, String>()
+
+        /**
+         * @return the given string as Latin-1 bytes; the string itself if it holds other characters.
+         */
+        private fun compact(value: String): Any {
+            if (value.isEmpty()) {
+                return EMPTY_BYTES
+            }
+            for (c in value) {
+                if (c.toInt() > 0xFF) {
+                    return value
+                }
+            }
+            return value.toByteArray(StandardCharsets.ISO_8859_1)
+        }
+
+        private fun isSameToken(stored: Any, token: String, decoded: CompactToken?): Boolean = if (stored is CompactToken) {
+            decoded != null && stored.payloadLength == decoded.payloadLength && stored.header == decoded.header &&
+                    Arrays.equals(stored.bytes, decoded.bytes)
+        } else {
+            token == expand(stored)
+        }
+
+        private fun expand(value: Any): String = if (value is ByteArray) String(value, StandardCharsets.ISO_8859_1) else value as String
+
+        /**
+         * @return the given token as [CompactToken]; as [compact] string if it isn't a JWT whose parts are canonical
+         * base64, which would not be restored to the same string.
+         */
+        private fun compactToken(token: String): Any {
+            val decoded = decode(token) ?: return compact(token)
+            val compacted = CompactToken(sharedHeader(decoded.header), decoded.bytes, decoded.payloadLength)
+            return if (compacted.toString() == token) compacted else compact(token)
+        }
+
+        /**
+         * @return the given token split into its header and decoded bytes; null if it isn't a JWT whose parts are
+         * canonical base64, which would not be encoded to the same string again.
+         */
+        private fun decode(token: String): CompactToken? {
+            val first = token.indexOf('.')
+            val second = token.indexOf('.', first + 1)
+            if (first <= 0 || second < 0 || token.indexOf('.', second + 1) >= 0 || !isCanonical(token, first + 1, second) ||
+                    !isCanonical(token, second + 1, token.length)) {
+                return null
+            }
+            try {
+                val decoder = Base64.getUrlDecoder()
+                val payload = decoder.decode(token.substring(first + 1, second))
+                val signature = decoder.decode(token.substring(second + 1))
+                val bytes = Arrays.copyOf(payload, payload.size + signature.size)
+                System.arraycopy(signature, 0, bytes, payload.size, signature.size)
+                return CompactToken(token.substring(0, first), bytes, payload.size)
+            } catch (e: IllegalArgumentException) {
+                return null
+            }
+        }
+
+        /**
+         * @return true if the given part of the token is unpadded base64 whose last character has no bits set beyond
+         * the encoded bytes - the only form the encoder writes.
+         */
+        private fun isCanonical(token: String, start: Int, end: Int): Boolean {
+            if (start == end) {
+                return true
+            }
+            val unusedBits = when ((end - start) % 4) {
+                0 -> 0
+                2 -> 0x0F
+                3 -> 0x03
+                else -> return false
+            }
+            val last = BASE64_URL.indexOf(token[end - 1])
+            return last >= 0 && (last and unusedBits) == 0
+        }
+
+        private fun expandToken(token: Any): String = if (token is CompactToken) token.toString() else expand(token)
+
+        /**
+         * @return the instance of the given header shared by all tokens; the given header if there are too many.
+         */
+        private fun sharedHeader(header: String): String {
+            val shared = headers[header]
+            if (shared != null) {
+                return shared
+            }
+            if (headers.size >= MAX_HEADERS) {
+                return header
+            }
+            return headers.putIfAbsent(header, header) ?: header
+        }
+
+        // Object header, hash and reference to the chars; and the char array
+        private fun stringWeight(value: String): Long = align(24) + align(16L + 2 * value.length)
+
+        private fun weight(value: Any): Long = if (value is ByteArray) {
+            if (value.isEmpty()) 0 else align(16L + value.size)
+        } else {
+            stringWeight(value as String)
+        }
+
+        private fun tokenWeight(token: Any): Long = if (token is CompactToken) align(24) + align(16L + token.bytes.size) else weight(token)
+
+        private fun align(bytes: Long): Long = (bytes + 7) and 7L.inv()
+    }
+}
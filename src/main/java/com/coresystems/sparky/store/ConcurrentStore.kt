@@ -0,0 +1,369 @@
+package com.coresystems.sparky.store
+
+import com.coresystems.sparky.store.MockStore.Companion.createKey
+import com.coresystems.sparky.store.StoreListener.RemovalCause
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.LongSupplier
+
+/**
+ * Thread-safe store which spreads its entries over a number of independently locked segments, so requests for
+ * different users rarely wait for each other. Each segment evicts its least recently used entry once it holds more
+ * than its share of the max capacity - the capacity is therefore enforced per segment and not globally.
+ *
+ * Entries expire once the token of their registration expires, or earlier if a lease is set and the entry isn't
+ * [touched][touch] in time. Expired entries are invisible right away and reclaimed by [expireEntries].
+ *
+ * The registrations are kept in a [compact form][CompactRegistration], and the capacity may be given in estimated bytes
+ * instead of entries (see [withMaxBytes]) - so the heap taken by the store is bounded no matter how long the names
+ * and tokens of the registrations are.
+ *
+ * @param leaseMillis how long an entry stays present without being touched, 0 to keep it until its token expires.
+ * @param clock       the time source in millis.
+ * @param maxBytes    the max estimated bytes of all entries, enforced per segment just like the max capacity.
+ */
+class ConcurrentStore @JvmOverloads constructor(maxCapacity: Int = 1000, concurrencyLevel: Int = 16,
+                                                private val leaseMillis: Long = 0,
+                                                private val clock: LongSupplier = LongSupplier { System.currentTimeMillis() },
+                                                maxBytes: Long = Long.MAX_VALUE)
+    : KeyValueStorage<String, Registration> {
+
+    private val segments: Array<Segment>
+    private val accountIndex = AccountIndex()
+    private val listeners: MutableList<StoreListener<String, Registration>> = CopyOnWriteArrayList()
+    private val expiryWheel: TimerWheel<Expiry> = TimerWheel(clock.asLong, onExpire = { expiry -> segmentFor(expiry.key).expire(expiry) })
+
+    init {
+        //Small stores get fewer segments, so the capacity of a single segment doesn't drop to zero
+        var segmentCount = 1
+        while (segmentCount * 2 <= Math.min(concurrencyLevel, maxCapacity)) {
+            segmentCount *= 2
+        }
+        val segmentCapacity = ((maxCapacity.toLong() + segmentCount - 1) / segmentCount).toInt()
+        val segmentBytes = maxBytes / segmentCount + if (maxBytes % segmentCount == 0L) 0 else 1
+        segments = Array(segmentCount, { Segment(segmentCapacity, segmentBytes) })
+    }
+
+    companion object {
+        /**
+         * @param maxBytes the max estimated bytes of all entries, the least recently used ones are evicted beyond that.
+         * @return a store whose capacity is given in bytes instead of entries.
+         */
+        @JvmStatic @JvmOverloads fun withMaxBytes(maxBytes: Long, concurrencyLevel: Int = 16, leaseMillis: Long = 0,
+                                                  clock: LongSupplier = LongSupplier { System.currentTimeMillis() }): ConcurrentStore =
+                ConcurrentStore(Int.MAX_VALUE, concurrencyLevel, leaseMillis, clock, maxBytes)
+    }
+
+    override fun put(key: String, value: Registration) {
+        segmentFor(key).put(key, value)
+    }
+
+    override fun get(key: String): Registration = segmentFor(key).get(key) ?: Registration()
+
+    override fun remove(key: String) {
+        segmentFor(key).remove(key)
+    }
+
+    override fun containsKey(key: String): Boolean = segmentFor(key).get(key) != null
+
+    override fun putAll(values: Map<String, Registration>) {
+        for ((segment, keys) in values.keys.groupBy { segmentFor(it) }) {
+            segment.putAll(keys, values)
+        }
+    }
+
+    override fun getAll(keys: Collection<String>): Map<String, Registration> {
+        val result = LinkedHashMap<String, Registration>()
+        for ((segment, segmentKeys) in keys.groupBy { segmentFor(it) }) {
+            segment.getAll(segmentKeys, result)
+        }
+        return result
+    }
+
+    override fun removeAll(keys: Collection<String>) {
+        for ((segment, segmentKeys) in keys.groupBy { segmentFor(it) }) {
+            segment.removeAll(segmentKeys)
+        }
+    }
+
+    /**
+     * @return a snapshot of the keys, each segment is locked only while its keys are copied.
+     */
+    override fun getKeys(): Collection<String> {
+        val result = ArrayList<String>()
+        segments.forEach { it.copyKeysTo(result) }
+        return result
+    }
+
+    override fun isValidEntry(value: Registration): Boolean {
+        val key = createKey(value.account, value.userName)
+        return segmentFor(key).acceptsToken(key, value.token)
+    }
+
+    override fun getByAccount(account: String): List<Registration> {
+        //An entry might be removed between reading the index and the segment, those are simply skipped
+        return accountIndex.keys(account).mapNotNull { segmentFor(it).get(it) }
+    }
+
+    override fun getByAccount(account: String, afterKey: String, limit: Int): Map<String, Registration> {
+        val result = LinkedHashMap<String, Registration>()
+        for (key in accountIndex.keysAfter(account, afterKey)) {
+            if (result.size >= limit) {
+                break
+            }
+            segmentFor(key).get(key)?.let { result.put(key, it) }
+        }
+        return result
+    }
+
+    /**
+     * Expired entries are counted until they are reclaimed by [expireEntries].
+     */
+    override fun getAccountSizes(): Map<String, Int> = accountIndex.sizes()
+
+    override fun touch(key: String): Boolean = segmentFor(key).touch(key)
+
+    override fun replace(key: String, oldValue: Registration, newValue: Registration): Boolean =
+            segmentFor(key).replace(key, oldValue, newValue)
+
+    /**
+     * @return the estimated bytes taken by the entries of this store.
+     */
+    fun getEstimatedBytes(): Long {
+        var bytes = 0L
+        segments.forEach { bytes += it.getBytes() }
+        return bytes
+    }
+
+    override fun addListener(listener: StoreListener<String, Registration>) {
+        listeners.add(listener)
+    }
+
+    /**
+     * Removes all entries whose deadline passed since the last call. Meant to be called periodically, e.g. every second.
+     */
+    fun expireEntries() {
+        expiryWheel.advance(clock.asLong)
+    }
+
+    /**
+     * @return the number of timeouts waiting to expire entries, at most one per entry and one per entry removed
+     * before its deadline.
+     */
+    fun getScheduledExpiries(): Int = expiryWheel.size()
+
+    private fun segmentFor(key: String): Segment {
+        //Spread the hash so keys sharing a prefix (the account) still end up in different segments
+        val hash = key.hashCode()
+        return segments[(hash xor (hash ushr 16)) and (segments.size - 1)]
+    }
+
+    /**
+     * @param expiresAt the token expiry of the registration, 0 if it doesn't expire.
+     * @return the time at which an entry should be dropped if it isn't touched until then.
+     */
+    private fun deadline(expiresAt: Long, now: Long): Long {
+        val hardDeadline = if (expiresAt > 0) expiresAt else Long.MAX_VALUE
+        return if (leaseMillis > 0) Math.min(hardDeadline, now + leaseMillis) else hardDeadline
+    }
+
+    private class TimedEntry(key: String, value: Registration, account: String, var deadline: Long)
+        : CompactRegistration(key, value, account) {
+        val weight = weight(key)
+        var expiry: Expiry? = null
+    }
+
+    /**
+     * The timeout of an entry on the [expiryWheel]. An entry has at most one, which is moved on to the entry's deadline
+     * when it fires early, and handed over to the entry replacing it - so neither extending a lease nor replacing a
+     * registration piles up timeouts.
+     *
+     * @param at the time the timeout is due.
+     */
+    private class Expiry(val key: String, var at: Long) {
+        //The entry to expire; null once it was removed or got a timeout of its own
+        var entry: TimedEntry? = null
+    }
+
+    private inner class Segment(val capacity: Int, val maxBytes: Long) {
+        private var bytes = 0L
+        //Entries evicted so far, read while holding the lock to tell the entries an operation evicted
+        private var evictions = 0L
+        private val map = object : LinkedHashMap<String, TimedEntry>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, TimedEntry>?): Boolean {
+                if (size > capacity) {
+                    if (eldest != null) {
+                        evicted(eldest.key, eldest.value)
+                    }
+                    return true
+                }
+                return false
+            }
+        }
+
+        fun put(key: String, value: Registration) {
+            recordLocked(this, "put", { evictions }) { putLocked(key, value) }
+        }
+
+        fun putAll(keys: List<String>, values: Map<String, Registration>) {
+            recordLocked(this, "putAll", { evictions }) { event ->
+                event.entries = keys.size
+                keys.forEach { putLocked(it, values[it]!!) }
+            }
+        }
+
+        fun getAll(keys: List<String>, target: MutableMap<String, Registration>) {
+            recordLocked(this, "getAll", { evictions }) { event ->
+                var found = 0
+                keys.forEach { key -> getEntry(key)?.let { target.put(key, it.toRegistration(key)); found++ } }
+                event.entries = keys.size
+                event.hit = found == keys.size
+            }
+        }
+
+        fun removeAll(keys: List<String>) {
+            recordLocked(this, "removeAll", { evictions }) { event ->
+                event.entries = keys.size
+                keys.forEach { removeEntry(it, RemovalCause.EXPLICIT) }
+            }
+        }
+
+        /**
+         * @return the registration for the given key; null if there is none or it expired.
+         */
+        fun get(key: String): Registration? = recordLocked(this, "get", { evictions }) { event ->
+            val entry = getEntry(key)
+            event.hit = entry != null
+            entry?.toRegistration(key)
+        }
+
+        fun acceptsToken(key: String, token: String): Boolean = recordLocked(this, "isValidEntry", { evictions }) { event ->
+            val entry = getEntry(key)
+            event.hit = entry != null
+            entry?.acceptsToken(token, clock.asLong) ?: false
+        }
+
+        fun replace(key: String, oldValue: Registration, newValue: Registration): Boolean {
+            return recordLocked(this, "replace", { evictions }) { event ->
+                event.hit = getEntry(key)?.toRegistration(key) == oldValue
+                if (event.hit) {
+                    putLocked(key, newValue)
+                }
+                event.hit
+            }
+        }
+
+        fun touch(key: String): Boolean = recordLocked(this, "touch", { evictions }) { event ->
+            event.hit = touchLocked(key)
+            event.hit
+        }
+
+        @Synchronized fun expire(expiry: Expiry) {
+            val entry = expiry.entry ?: return
+            if (entry.deadline <= clock.asLong) {
+                removeEntry(expiry.key, RemovalCause.EXPIRED)
+            } else {
+                //The lease was extended since
+                expiry.at = entry.deadline
+                expiryWheel.schedule(expiry, entry.deadline)
+            }
+        }
+
+        fun remove(key: String) {
+            recordLocked(this, "remove", { evictions }) { event -> event.hit = removeEntry(key, RemovalCause.EXPLICIT) }
+        }
+
+        @Synchronized fun copyKeysTo(target: MutableCollection<String>) {
+            val now = clock.asLong
+            map.entries.filter { it.value.deadline > now }.mapTo(target) { it.key }
+        }
+
+        @Synchronized fun getBytes(): Long = bytes
+
+        private fun putLocked(key: String, value: Registration) {
+            //All registrations of an account share the account's instance, the index keeps it
+            val account = accountIndex.add(value.account, key)
+            val entry = TimedEntry(key, value, account, deadline(value.expiresAt, clock.asLong))
+            val previous = map.put(key, entry)
+            bytes += entry.weight
+            if (previous != null) {
+                bytes -= previous.weight
+                if (previous.account != account) {
+                    accountIndex.remove(previous.account, key)
+                }
+            }
+            listeners.forEach { it.onPut(key, value) }
+            scheduleExpiry(key, entry, previous?.expiry)
+            //Evict the least recently used entries until the segment fits its share of the bytes again
+            val iterator = map.entries.iterator()
+            while (bytes > maxBytes && map.size > 1) {
+                val eldest = iterator.next()
+                iterator.remove()
+                evicted(eldest.key, eldest.value)
+            }
+        }
+
+        private fun touchLocked(key: String): Boolean {
+            val entry = map[key] ?: return false
+            val now = clock.asLong
+            if (entry.deadline <= now) {
+                removeEntry(key, RemovalCause.EXPIRED)
+                return false
+            }
+            val deadline = deadline(entry.expiresAt, now)
+            if (deadline > entry.deadline) {
+                //The timeout scheduled for the old deadline moves on to this one once it fires
+                entry.deadline = deadline
+            }
+            return true
+        }
+
+        /**
+         * @param pending the timeout of the entry replaced by the given one, if any.
+         */
+        private fun scheduleExpiry(key: String, entry: TimedEntry, pending: Expiry?) {
+            if (pending != null && pending.at <= entry.deadline) {
+                //Fires before the new deadline, and moves on to it then
+                pending.entry = entry
+                entry.expiry = pending
+                return
+            }
+            pending?.entry = null
+            if (entry.deadline != Long.MAX_VALUE) {
+                val expiry = Expiry(key, entry.deadline)
+                expiry.entry = entry
+                entry.expiry = expiry
+                expiryWheel.schedule(expiry, entry.deadline)
+            }
+        }
+
+        private fun getEntry(key: String): TimedEntry? {
+            val entry = map[key] ?: return null
+            if (entry.deadline <= clock.asLong) {
+                removeEntry(key, RemovalCause.EXPIRED)
+                return null
+            }
+            return entry
+        }
+
+        private fun evicted(key: String, entry: TimedEntry) {
+            evictions++
+            entry.expiry?.entry = null
+            bytes -= entry.weight
+            accountIndex.remove(entry.account, key)
+            listeners.forEach { it.onRemoved(key, entry.toRegistration(key), RemovalCause.EVICTED) }
+        }
+
+        /**
+         * @return true if there was an entry to remove.
+         */
+        private fun removeEntry(key: String, cause: RemovalCause): Boolean {
+            val previous = map.remove(key) ?: return false
+            previous.expiry?.entry = null
+            bytes -= previous.weight
+            accountIndex.remove(previous.account, key)
+            listeners.forEach { it.onRemoved(key, previous.toRegistration(key), cause) }
+            return true
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.coresystems.sparky.store
+
+import com.coresystems.sparky.FlightEvents.StoreEvent
+
+/**
+ * Runs the given operation while holding the given lock, recorded as a [StoreEvent] along with the time it waited
+ * for the lock and the entries evicted meanwhile. Unless a flight recording is running, all this costs is creating
+ * the event, which the JIT removes.
+ *
+ * @param evictions the number of entries evicted so far by the owner of the lock, read while holding it.
+ * @param operation fills in the event, e.g. whether the entry was found.
+ */
+internal inline fun <T> recordLocked(lock: Any, name: String, evictions: () -> Long, operation: (StoreEvent) -> T): T {
+    val event = StoreEvent()
+    event.begin()
+    val recording = event.isEnabled
+    val requested = if (recording) System.nanoTime() else 0L
+    val result = synchronized(lock) {
+        if (recording) {
+            event.lockWait = System.nanoTime() - requested
+        }
+        val evicted = evictions()
+        val value = operation(event)
+        event.evicted = (evictions() - evicted).toInt()
+        value
+    }
+    event.end()
+    if (event.shouldCommit()) {
+        event.operation = name
+        event.commit()
+    }
+    return result
+}
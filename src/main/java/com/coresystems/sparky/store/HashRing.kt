@@ -0,0 +1,79 @@
+package com.coresystems.sparky.store
+
+import java.util.*
+
+/**
+ * Consistent hashing: every node is placed on a ring at a number of pseudo-random positions (virtual nodes), and a
+ * partition belongs to the nodes found walking clockwise from the partition's position. Adding or removing a node
+ * therefore only moves the partitions next to its positions, about 1/n of them, and the virtual nodes spread the
+ * partitions evenly even across few nodes.
+ *
+ * The ring is immutable, a change of the nodes means a new ring.
+ *
+ * @param virtualNodes the number of positions of each node.
+ */
+class HashRing @JvmOverloads constructor(nodes: Collection<String>, virtualNodes: Int = 128) {
+    private val nodes: List<String> = ArrayList(LinkedHashSet(nodes))
+    private val positions: LongArray
+    private val owners: Array<String>
+
+    init {
+        require(!this.nodes.isEmpty()) { "A ring needs at least one node" }
+        val ring = TreeMap<Long, String>()
+        for (node in this.nodes) {
+            for (i in 0..virtualNodes - 1) {
+                //Collisions are so unlikely that the later node simply wins
+                ring.put(hash("$node#$i"), node)
+            }
+        }
+        positions = LongArray(ring.size)
+        owners = Array(ring.size, { "" })
+        var i = 0
+        for ((position, node) in ring) {
+            positions[i] = position
+            owners[i] = node
+            i++
+        }
+    }
+
+    /**
+     * @param partitionKey the key of the partition, e.g. the account.
+     * @param count        the number of nodes asked for, e.g. a primary and its replicas.
+     * @return the distinct nodes owning the given partition, the primary first; fewer if the ring has fewer nodes.
+     */
+    fun owners(partitionKey: String, count: Int): List<String> {
+        val wanted = Math.min(count, nodes.size)
+        val result = ArrayList<String>(wanted)
+        var index = Arrays.binarySearch(positions, hash(partitionKey))
+        if (index < 0) {
+            index = -index - 1
+        }
+        var steps = 0
+        while (result.size < wanted && steps < positions.size) {
+            val node = owners[(index + steps) % positions.size]
+            if (!result.contains(node)) {
+                result.add(node)
+            }
+            steps++
+        }
+        return result
+    }
+
+    fun getNodes(): List<String> = Collections.unmodifiableList(nodes)
+
+    companion object {
+        /**
+         * FNV-1a over the chars, followed by the finalizer of MurmurHash3 - FNV alone spreads similar strings such as
+         * "node#1" and "node#2" poorly.
+         */
+        @JvmStatic fun hash(value: String): Long {
+            var hash = -0x340d631b7bdddcdbL
+            for (c in value) {
+                hash = (hash xor c.toLong()) * 0x100000001b3L
+            }
+            hash = (hash xor (hash ushr 33)) * -0xae502812aa7333L
+            hash = (hash xor (hash ushr 33)) * -0x3b314601e57a13adL
+            return hash xor (hash ushr 33)
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.coresystems.sparky.store
+
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A [RemoteBackend] living in the same JVM, for tests and local development. It can simulate the latency of a round
+ * trip and a backend that is down.
+ *
+ * @param latencyMillis how long each call takes.
+ */
+class InProcessBackend @JvmOverloads constructor(@Volatile var latencyMillis: Long = 0) : RemoteBackend {
+    private val store = ConcurrentHashMap<String, Registration>()
+    private val roundTrips = AtomicLong()
+
+    /**
+     * While set, every call fails as if the backend couldn't be reached.
+     */
+    @Volatile var failing = false
+
+    override fun get(key: String): Registration? {
+        roundTrip()
+        return store[key]
+    }
+
+    override fun getByAccount(account: String): List<Registration> {
+        roundTrip()
+        return store.values.filter { it.account == account }
+    }
+
+    override fun getByAccount(account: String, afterKey: String, limit: Int): Map<String, Registration> {
+        roundTrip()
+        val result = LinkedHashMap<String, Registration>()
+        store.entries
+                .filter { it.value.account == account && it.key > afterKey }
+                .sortedBy { it.key }
+                .take(limit)
+                .forEach { result.put(it.key, it.value) }
+        return result
+    }
+
+    override fun write(puts: Map<String, Registration>, removals: Collection<String>) {
+        roundTrip()
+        store.putAll(puts)
+        removals.forEach { store.remove(it) }
+    }
+
+    /**
+     * @return the number of calls made so far, including failed ones.
+     */
+    fun getRoundTrips(): Long = roundTrips.get()
+
+    /**
+     * @return the number of registrations stored.
+     */
+    fun size(): Int = store.size
+
+    private fun roundTrip() {
+        roundTrips.incrementAndGet()
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis)
+        }
+        if (failing) {
+            throw UncheckedIOException(IOException("Backend unavailable"))
+        }
+    }
+}
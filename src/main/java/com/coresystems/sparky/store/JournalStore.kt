@@ -0,0 +1,336 @@
+package com.coresystems.sparky.store
+
+import com.coresystems.sparky.Log
+import com.coresystems.sparky.store.StoreListener.RemovalCause
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.zip.CRC32
+
+/**
+ * Keeps the registrations of another store on disk, so they survive a restart. Every change of the delegate -
+ * including evictions and expiry - is appended to a journal by a background thread, which writes and syncs everything
+ * that piled up in the meantime in one go (group commit). Once the journal grows beyond [compactionBytes], the
+ * current state is written to a snapshot and a new journal is started. On startup the snapshot and the journals
+ * written after it are read back through memory mapped buffers.
+ *
+ * Writes don't wait for the disk, so changes made right before a crash may be lost. At most [maxPendingChanges] changes
+ * wait for the writer; beyond that changes are dropped from the journal, and the writer writes a new snapshot instead -
+ * which holds them, as it is taken from the delegate.
+ *
+ * @param delegate          the store holding the registrations in memory.
+ * @param directory         the directory the snapshot and journals are kept in.
+ * @param compactionBytes   the journal size after which a new snapshot is written.
+ * @param maxPendingChanges the number of changes which may wait to be written.
+ */
+class JournalStore @JvmOverloads constructor(private val delegate: KeyValueStorage<String, Registration>,
+                                             private val directory: File,
+                                             private val compactionBytes: Long = 8L * 1024 * 1024,
+                                             maxPendingChanges: Int = 65536)
+    : KeyValueStorage<String, Registration> by delegate, Closeable {
+
+    companion object {
+        private const val SNAPSHOT_MAGIC = 0x53504b59
+        private const val SNAPSHOT = "snapshot.bin"
+        private const val JOURNAL_PREFIX = "journal-"
+        private const val JOURNAL_SUFFIX = ".log"
+        private const val MAX_BATCH = 1024
+        private const val OP_PUT: Byte = 1
+        private const val OP_REMOVE: Byte = 2
+        private const val OP_FLUSH: Byte = 3
+        private const val OP_CLOSE: Byte = 4
+        private val DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10)
+    }
+
+    private val queue = LinkedBlockingQueue<Mutation>(maxPendingChanges)
+    //Set once a change didn't fit into the queue, the journal is incomplete until the next snapshot
+    private val overflowed = AtomicBoolean()
+    private val batchBuffer = ExposedByteArrayOutputStream()
+    private val recordBuffer = ExposedByteArrayOutputStream()
+    private val crc = CRC32()
+    private var journalSequence: Long = 0
+    private var journalBytes: Long = 0
+    private lateinit var journal: FileChannel
+    private val writer: Thread
+
+    init {
+        if (!directory.isDirectory && !directory.mkdirs()) {
+            throw IOException("Failed to create the journal directory " + directory)
+        }
+        val started = System.nanoTime()
+        val restored = recover()
+        //Start over with a snapshot of the recovered state, so a torn journal tail is never appended to
+        journalSequence++
+        journal = openJournal(journalSequence)
+        writeSnapshot()
+        deleteJournalsBefore(journalSequence)
+        Log.i(JournalStore::class.java.simpleName, "Restored $restored registrations in ${(System.nanoTime() - started) / 1000000} ms")
+
+        delegate.addListener(object : StoreListener<String, Registration> {
+            override fun onPut(key: String, value: Registration) {
+                enqueue(Mutation(OP_PUT, key, value))
+            }
+
+            override fun onRemoved(key: String, value: Registration, cause: RemovalCause) {
+                enqueue(Mutation(OP_REMOVE, key))
+            }
+        })
+        writer = Thread(Runnable { writeLoop() }, "sparky-journal-writer")
+        writer.isDaemon = true
+        writer.start()
+    }
+
+    /**
+     * Blocks until all changes made so far are written to the journal and synced, or the timeout elapsed.
+     *
+     * @return true if the changes were written; false if the timeout elapsed first, or the store is closed.
+     */
+    @JvmOverloads
+    fun flush(timeoutMillis: Long = DEFAULT_TIMEOUT_MILLIS): Boolean = await(OP_FLUSH, timeoutMillis)
+
+    /**
+     * Writes all pending changes, followed by a final snapshot, and stops the writer. Gives up after a while, so a
+     * stuck disk doesn't hold up the shutdown - the changes not written by then are lost.
+     */
+    override fun close() {
+        if (!await(OP_CLOSE, DEFAULT_TIMEOUT_MILLIS)) {
+            Log.w(JournalStore::class.java.simpleName, "Timed out writing the registration journal, recent changes are lost.")
+        }
+    }
+
+    private fun await(op: Byte, timeoutMillis: Long): Boolean {
+        if (!writer.isAlive) {
+            return false
+        }
+        val done = CountDownLatch(1)
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+        //Unlike changes, these wait for room in the queue
+        return queue.offer(Mutation(op, done = done), timeoutMillis, TimeUnit.MILLISECONDS)
+                && done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+    }
+
+    private fun enqueue(mutation: Mutation) {
+        //Called while the delegate holds a lock, so this must never block
+        if (!queue.offer(mutation)) {
+            overflowed.set(true)
+        }
+    }
+
+    private fun writeLoop() {
+        val batch = ArrayList<Mutation>(MAX_BATCH)
+        while (true) {
+            try {
+                batch.add(queue.take())
+            } catch (e: InterruptedException) {
+                journal.close()
+                return
+            }
+            queue.drainTo(batch, MAX_BATCH - 1)
+            val closing = batch.any { it.op == OP_CLOSE }
+            try {
+                append(batch)
+                if (overflowed.getAndSet(false)) {
+                    Log.w(JournalStore::class.java.simpleName, "Changes of the registrations piled up, writing a snapshot instead.")
+                    compact()
+                } else if (journalBytes >= compactionBytes || closing) {
+                    compact()
+                }
+            } catch (e: Throwable) {
+                //The registrations are still in memory, we only lose the ability to restore them
+                Log.e(JournalStore::class.java.simpleName, "Failed to write the registration journal.", e)
+            } finally {
+                batch.forEach { it.done?.countDown() }
+                batch.clear()
+            }
+            if (closing) {
+                journal.close()
+                return
+            }
+        }
+    }
+
+    private fun append(batch: List<Mutation>) {
+        batchBuffer.reset()
+        val out = DataOutputStream(batchBuffer)
+        batch.filter { it.op == OP_PUT || it.op == OP_REMOVE }.forEach { writeRecord(out, it.op, it.key, it.value) }
+        if (batchBuffer.size() > 0) {
+            val buffer = ByteBuffer.wrap(batchBuffer.buffer(), 0, batchBuffer.size())
+            while (buffer.hasRemaining()) {
+                journal.write(buffer)
+            }
+            journal.force(false)
+            journalBytes += batchBuffer.size()
+        }
+    }
+
+    /**
+     * Switches to a new journal and writes the current state to a snapshot, which replaces the old journals. Any
+     * change made while the snapshot is written ends up in the new journal, and replaying it on top of the snapshot
+     * is harmless.
+     */
+    private fun compact() {
+        journal.close()
+        journalSequence++
+        journal = openJournal(journalSequence)
+        journalBytes = 0
+        writeSnapshot()
+        deleteJournalsBefore(journalSequence)
+    }
+
+    private fun writeSnapshot() {
+        val temporary = File(directory, SNAPSHOT + ".tmp")
+        FileOutputStream(temporary).use { file ->
+            val out = DataOutputStream(BufferedOutputStream(file, 64 * 1024))
+            out.writeInt(SNAPSHOT_MAGIC)
+            //Journals from this one on were written after the snapshot was started and need to be replayed on top
+            out.writeLong(journalSequence)
+            for (key in delegate.getKeys()) {
+                val value = delegate.get(key)
+                if (!value.token.isEmpty()) {
+                    writeRecord(out, OP_PUT, key, value)
+                }
+            }
+            out.flush()
+            file.fd.sync()
+        }
+        Files.move(temporary.toPath(), File(directory, SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    /**
+     * @return the number of registrations restored.
+     */
+    private fun recover(): Int {
+        val now = System.currentTimeMillis()
+        val restored = HashMap<String, Registration>()
+        val apply: (Byte, String, Registration?) -> Unit = { op, key, value ->
+            if (op == OP_PUT && value != null) {
+                restored.put(key, value)
+            } else {
+                restored.remove(key)
+            }
+        }
+        var firstJournal: Long = 0
+        val snapshot = File(directory, SNAPSHOT)
+        if (snapshot.isFile) {
+            val buffer = map(snapshot)
+            if (buffer.remaining() >= 12 && buffer.int == SNAPSHOT_MAGIC) {
+                firstJournal = buffer.long
+                readRecords(buffer, apply)
+            } else {
+                Log.w(JournalStore::class.java.simpleName, "Ignoring invalid snapshot " + snapshot)
+            }
+        }
+        for (sequence in journalSequences()) {
+            journalSequence = Math.max(journalSequence, sequence)
+            if (sequence >= firstJournal && !readRecords(map(journalFile(sequence)), apply)) {
+                Log.w(JournalStore::class.java.simpleName, "Journal $sequence ends with an incomplete record, it was ignored.")
+            }
+        }
+        //Anything whose token expired while we were down is of no use anymore
+        val valid = restored.filter { it.value.expiresAt == 0L || it.value.expiresAt > now }
+        valid.forEach { delegate.put(it.key, it.value) }
+        return valid.size
+    }
+
+    /**
+     * @return false if the buffer ended with an incomplete or corrupt record; true otherwise.
+     */
+    private fun readRecords(buffer: ByteBuffer, apply: (Byte, String, Registration?) -> Unit): Boolean {
+        while (buffer.remaining() >= 8) {
+            val length = buffer.int
+            val checksum = buffer.int
+            if (length < 0 || length > buffer.remaining()) {
+                return false
+            }
+            val record = buffer.slice()
+            record.limit(length)
+            crc.reset()
+            crc.update(record)
+            if (crc.value.toInt() != checksum) {
+                return false
+            }
+            record.rewind()
+            val op = record.get()
+            val key = readString(record)
+            //Records written before the expiry of the previous token was kept end right after it, that token isn't accepted then
+            apply(op, key, if (op == OP_PUT) Registration(readString(record), readString(record), readString(record),
+                    readString(record), readString(record), record.long, readString(record),
+                    if (record.remaining() >= 8) record.long else 0) else null)
+            buffer.position(buffer.position() + length)
+        }
+        return !buffer.hasRemaining()
+    }
+
+    private fun writeRecord(out: DataOutputStream, op: Byte, key: String, value: Registration?) {
+        recordBuffer.reset()
+        val record = DataOutputStream(recordBuffer)
+        record.writeByte(op.toInt())
+        writeString(record, key)
+        if (value != null) {
+            writeString(record, value.account)
+            writeString(record, value.userName)
+            writeString(record, value.fullName)
+            writeString(record, value.token)
+            writeString(record, value.callerId)
+            record.writeLong(value.expiresAt)
+            writeString(record, value.previousToken)
+            record.writeLong(value.previousTokenExpiresAt)
+        }
+        crc.reset()
+        crc.update(recordBuffer.buffer(), 0, recordBuffer.size())
+        out.writeInt(recordBuffer.size())
+        out.writeInt(crc.value.toInt())
+        out.write(recordBuffer.buffer(), 0, recordBuffer.size())
+    }
+
+    private fun writeString(out: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    private fun readString(buffer: ByteBuffer): String {
+        val bytes = ByteArray(buffer.int)
+        buffer.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun map(file: File): ByteBuffer {
+        FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+            return it.map(FileChannel.MapMode.READ_ONLY, 0, it.size())
+        }
+    }
+
+    private fun openJournal(sequence: Long): FileChannel = FileChannel.open(journalFile(sequence).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+
+    private fun journalFile(sequence: Long) = File(directory, JOURNAL_PREFIX + sequence + JOURNAL_SUFFIX)
+
+    private fun journalSequences(): List<Long> {
+        val names = directory.list() ?: return emptyList()
+        return names.filter { it.startsWith(JOURNAL_PREFIX) && it.endsWith(JOURNAL_SUFFIX) }
+                .map { it.substring(JOURNAL_PREFIX.length, it.length - JOURNAL_SUFFIX.length).toLong() }
+                .sorted()
+    }
+
+    private fun deleteJournalsBefore(sequence: Long) {
+        journalSequences().filter { it < sequence }.forEach { journalFile(it).delete() }
+    }
+
+    private class Mutation(val op: Byte, val key: String = "", val value: Registration? = null, val done: CountDownLatch? = null)
+
+    /**
+     * Gives access to the internal buffer, so batches can be written without copying them first.
+     */
+    private class ExposedByteArrayOutputStream : ByteArrayOutputStream(64 * 1024) {
+        fun buffer(): ByteArray = buf
+    }
+}
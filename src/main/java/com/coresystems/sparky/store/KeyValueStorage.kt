@@ -1,5 +1,7 @@
 package com.coresystems.sparky.store
 
+import java.util.*
+
 /**
  * Abstraction layer for Key-Value store (most likely it'll be an amazon S3 storage).
  */
@@ -10,6 +12,35 @@ interface KeyValueStorage<K, V> {
 
     fun remove(key: K)
 
+    /**
+     * Stores all given values at once. Stores guarded by locks override this to take each of their locks only once for
+     * the whole batch.
+     */
+    fun putAll(values: Map<K, V>) {
+        for ((key, value) in values) {
+            put(key, value)
+        }
+    }
+
+    /**
+     * @return the values stored for the given keys; keys without a value are left out.
+     */
+    fun getAll(keys: Collection<K>): Map<K, V> {
+        val result = LinkedHashMap<K, V>()
+        for (key in keys) {
+            if (containsKey(key)) {
+                result.put(key, get(key))
+            }
+        }
+        return result
+    }
+
+    fun removeAll(keys: Collection<K>) {
+        for (key in keys) {
+            remove(key)
+        }
+    }
+
     fun containsKey(key: K): Boolean
 
     fun getKeys(): Collection<K>
@@ -19,5 +50,50 @@ interface KeyValueStorage<K, V> {
     /**
      * Returns a list of strings based on the V value. The list contains all values mapped to keys which contain (not equal - but contain) the given filter.
      */
-    fun getKeyContains(store: KeyValueStorage<K, V>, filter: String): List<V>
+    fun getKeyContains(store: KeyValueStorage<K, V>, filter: String): List<V> {
+        return store.getKeys()
+                .filter { it.toString().contains(filter) }
+                .map { store.get(it) }
+    }
+
+    /**
+     * Returns all values registered for the given account. Unlike [getKeyContains] the account has to match exactly,
+     * and implementations are expected to answer this from an index rather than by scanning every key.
+     */
+    fun getByAccount(account: String): List<V>
+
+    /**
+     * Returns a page of the values registered for the given account, ordered by their keys. A page starts right after
+     * the given key rather than at an offset, so entries added or removed concurrently never shift the following
+     * pages - each entry that stays registered shows up exactly once.
+     *
+     * @param afterKey the last key of the previous page, an empty string for the first page.
+     * @param limit    the max number of values returned.
+     * @return the values by their keys, in ascending key order.
+     */
+    fun getByAccount(account: String, afterKey: String, limit: Int): Map<K, V>
+
+    /**
+     * @return the number of values registered per account.
+     */
+    fun getAccountSizes(): Map<String, Int>
+
+    /**
+     * Extends the presence of the entry stored for the given key, if the store limits it by a lease.
+     *
+     * @return true if there is an entry for the given key; false otherwise.
+     */
+    fun touch(key: K): Boolean
+
+    /**
+     * Replaces the value stored for the given key, but only if the stored value still equals the given old value.
+     *
+     * @return true if the value was replaced; false otherwise.
+     */
+    fun replace(key: K, oldValue: V, newValue: V): Boolean
+
+    /**
+     * Registers a listener which gets notified about every change of this store, including evictions and expiry.
+     */
+    fun addListener(listener: StoreListener<K, V>)
 }
@@ -0,0 +1,95 @@
+package com.coresystems.sparky.store
+
+import com.coresystems.sparky.store.StoreListener.RemovalCause
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Counts the hits and misses of the lookups made in another store, along with the entries the store evicts or
+ * expires. The counters are lock-free, so the metered store is just as concurrent as the store it wraps.
+ *
+ * Lookups are counted per operation - a single request often makes several lookups of different kinds, e.g. checks
+ * its token with [isValidEntry] and then asks [containsKey], so a sum over all of them would count it several times.
+ * A registration without a token counts as a miss, just as a failed [isValidEntry] does.
+ *
+ * @param delegate the store to count the lookups of.
+ */
+class MeteredStore(private val delegate: KeyValueStorage<String, Registration>) : KeyValueStorage<String, Registration> by delegate {
+    private val gets = Lookups()
+    private val bulkGets = Lookups()
+    private val contains = Lookups()
+    private val validations = Lookups()
+    private val evictions = LongAdder()
+    private val expirations = LongAdder()
+
+    init {
+        delegate.addListener(object : StoreListener<String, Registration> {
+            override fun onPut(key: String, value: Registration) {
+            }
+
+            override fun onRemoved(key: String, value: Registration, cause: RemovalCause) {
+                when (cause) {
+                    RemovalCause.EVICTED -> evictions.increment()
+                    RemovalCause.EXPIRED -> expirations.increment()
+                    RemovalCause.EXPLICIT -> Unit
+                }
+            }
+        })
+    }
+
+    override fun get(key: String): Registration {
+        val value = delegate.get(key)
+        gets.count(!value.token.isEmpty())
+        return value
+    }
+
+    override fun getAll(keys: Collection<String>): Map<String, Registration> {
+        val values = delegate.getAll(keys)
+        bulkGets.hits.add(values.size.toLong())
+        bulkGets.misses.add((keys.size - values.size).toLong())
+        return values
+    }
+
+    override fun containsKey(key: String): Boolean {
+        val contained = delegate.containsKey(key)
+        contains.count(contained)
+        return contained
+    }
+
+    override fun isValidEntry(value: Registration): Boolean {
+        val valid = delegate.isValidEntry(value)
+        validations.count(valid)
+        return valid
+    }
+
+    /**
+     * @return the lookups which found a registration, by the operation which made them.
+     */
+    fun getHits(): Map<String, Long> = byOperation { it.hits.sum() }
+
+    /**
+     * @return the lookups which found no registration or an invalid one, by the operation which made them.
+     */
+    fun getMisses(): Map<String, Long> = byOperation { it.misses.sum() }
+
+    /**
+     * @return the number of entries dropped to make room for others.
+     */
+    fun getEvictions(): Long = evictions.sum()
+
+    /**
+     * @return the number of entries dropped since their token expired or their lease ran out.
+     */
+    fun getExpirations(): Long = expirations.sum()
+
+    private fun byOperation(count: (Lookups) -> Long): Map<String, Long> = linkedMapOf(
+            "get" to count(gets), "getAll" to count(bulkGets), "containsKey" to count(contains), "isValidEntry" to count(validations))
+
+    private class Lookups {
+        val hits = LongAdder()
+        val misses = LongAdder()
+
+        fun count(hit: Boolean) {
+            if (hit) hits.increment() else misses.increment()
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.coresystems.sparky.store
 
+import com.coresystems.sparky.store.StoreListener.RemovalCause
 import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
 
 /**
  * Stores mock data - will be replaced with the S3 eventually.
@@ -19,45 +21,149 @@ class MockStore constructor(maxCapacity: Int = 1000) : KeyValueStorage<String, R
         }
     }
 
-    private val store: MutableMap<String, Registration> = Collections.synchronizedMap(StoreMap(maxCapacity / 2, maxCapacity))
+    private val lock = Any()
+    //Entries evicted so far, read while holding the lock to tell the entries an operation evicted
+    private var evictions = 0L
+    private val store: StoreMap = StoreMap(maxCapacity / 2, maxCapacity, { key, value ->
+        evictions++
+        accountIndex.remove(value.account, key)
+        listeners.forEach { it.onRemoved(key, value, RemovalCause.EVICTED) }
+    })
+    //Keys of all registrations per account, kept in sync with the store on every put, remove and eviction
+    private val accountIndex = AccountIndex()
+    private val listeners: MutableList<StoreListener<String, Registration>> = CopyOnWriteArrayList()
 
     override fun isValidEntry(value: Registration): Boolean {
         //When validating an entry we care about: account, username and the access token - the full name dinna matter
-        val key: String = createKey(value.account, value.userName)
-        if (containsKey(key)) {
-            val registration: Registration = store.get(createKey(value.account, value.userName))!!
-            //We already know that the account & username match, since we found an entry for the key, so we'll just compare the token
-            return registration.token == value.token
+        val registration: Registration? = recordLocked(lock, "isValidEntry", { evictions }) { event ->
+            val found = store.get(createKey(value.account, value.userName))
+            event.hit = found != null
+            found
         }
-        return false
+        //We already know that the account & username match, since we found an entry for the key, so we'll just compare the token
+        return registration != null && registration.acceptsToken(value.token)
     }
 
-    override fun getKeyContains(store: KeyValueStorage<String, Registration>, filter: String): List<Registration> {
-        return store.getKeys()
-                .filter { it.contains(filter) }
-                .map { store.get(it) }
+    override fun getByAccount(account: String): List<Registration> {
+        return recordLocked(lock, "getByAccount", { evictions }) { event ->
+            val result = accountIndex.keys(account).map { store[it]!! }
+            event.entries = result.size
+            result
+        }
+    }
+
+    override fun getByAccount(account: String, afterKey: String, limit: Int): Map<String, Registration> {
+        val result = LinkedHashMap<String, Registration>()
+        recordLocked(lock, "getByAccountPage", { evictions }) { event ->
+            for (key in accountIndex.keysAfter(account, afterKey)) {
+                if (result.size >= limit) {
+                    break
+                }
+                result.put(key, store[key]!!)
+            }
+            event.entries = result.size
+        }
+        return result
+    }
+
+    override fun getAccountSizes(): Map<String, Int> = synchronized(lock) { accountIndex.sizes() }
+
+    override fun containsKey(key: String): Boolean = recordLocked(lock, "containsKey", { evictions }) { event ->
+        event.hit = store.containsKey(key)
+        event.hit
     }
 
-    override fun containsKey(key: String): Boolean = store.contains(key)
+    /**
+     * Entries of the mock store don't expire, so this only checks whether there is an entry.
+     */
+    override fun touch(key: String): Boolean = containsKey(key)
 
     override fun put(key: String, value: Registration) {
-        store.put(key, value)
+        recordLocked(lock, "put", { evictions }) { putLocked(key, value) }
     }
 
-    override fun get(key: String): Registration {
-        if (store.containsKey(key)) {
-            return store.get(key)!!
+    override fun replace(key: String, oldValue: Registration, newValue: Registration): Boolean {
+        return recordLocked(lock, "replace", { evictions }) { event ->
+            event.hit = store[key] == oldValue
+            if (event.hit) {
+                putLocked(key, newValue)
+            }
+            event.hit
+        }
+    }
+
+    override fun get(key: String): Registration = recordLocked(lock, "get", { evictions }) { event ->
+        val found = store[key]
+        event.hit = found != null
+        found
+    } ?: Registration()
+
+    override fun putAll(values: Map<String, Registration>) {
+        recordLocked(lock, "putAll", { evictions }) { event ->
+            event.entries = values.size
+            values.forEach { putLocked(it.key, it.value) }
+        }
+    }
+
+    override fun getAll(keys: Collection<String>): Map<String, Registration> {
+        val result = LinkedHashMap<String, Registration>()
+        recordLocked(lock, "getAll", { evictions }) { event ->
+            keys.forEach { key -> store[key]?.let { result.put(key, it) } }
+            event.entries = keys.size
+            event.hit = result.size == keys.size
+        }
+        return result
+    }
+
+    override fun removeAll(keys: Collection<String>) {
+        recordLocked(lock, "removeAll", { evictions }) { event ->
+            event.entries = keys.size
+            keys.forEach { removeLocked(it) }
         }
-        return Registration()
     }
 
     override fun remove(key: String) {
-        store.remove(key)
+        recordLocked(lock, "remove", { evictions }) { event -> event.hit = removeLocked(key) }
+    }
+
+    override fun addListener(listener: StoreListener<String, Registration>) {
+        listeners.add(listener)
     }
 
-    override fun getKeys(): Collection<String> = store.keys
+    /**
+     * @return a snapshot of the keys - iterating it does not require holding the store's lock.
+     */
+    override fun getKeys(): Collection<String> = synchronized(lock) { ArrayList(store.keys) }
 
-    class StoreMap(initialCapacity: Int, val maxCapacity: Int) : LinkedHashMap<String, Registration>(initialCapacity) {
-        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Registration>?): Boolean = size > maxCapacity
+    private fun putLocked(key: String, value: Registration) {
+        val previous = store.put(key, value)
+        if (previous != null) {
+            accountIndex.remove(previous.account, key)
+        }
+        accountIndex.add(value.account, key)
+        listeners.forEach { it.onPut(key, value) }
+    }
+
+    /**
+     * @return true if there was an entry to remove.
+     */
+    private fun removeLocked(key: String): Boolean {
+        val previous = store.remove(key) ?: return false
+        accountIndex.remove(previous.account, key)
+        listeners.forEach { it.onRemoved(key, previous, RemovalCause.EXPLICIT) }
+        return true
+    }
+
+    class StoreMap(initialCapacity: Int, val maxCapacity: Int,
+                   val onEvict: (String, Registration) -> Unit = { key, value -> }) : LinkedHashMap<String, Registration>(initialCapacity) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Registration>?): Boolean {
+            if (size > maxCapacity) {
+                if (eldest != null) {
+                    onEvict(eldest.key, eldest.value)
+                }
+                return true
+            }
+            return false
+        }
     }
-}
\ No newline at end of file
+}
@@ -2,5 +2,24 @@ package com.coresystems.sparky.store
 
 /**
  * Represents a registered user, including his account, name and token.
+ *
+ * @property expiresAt the time in millis after which the token is no longer valid, 0 if it doesn't expire. It is
+ * only kept for the store and not passed on to clients.
+ * @property previousToken the token this registration's token replaced when it was refreshed ahead of its expiry.
+ * Clients which fetched the token before the refresh may still use it, so it is accepted as well until it expires.
+ * @property previousTokenExpiresAt the time in millis after which the previous token is no longer valid.
  */
-data class Registration(val account: String = "", val userName: String = "", val fullName: String = "", val token: String = "", val callerId: String = "")
\ No newline at end of file
+data class Registration @JvmOverloads constructor(val account: String = "", val userName: String = "", val fullName: String = "",
+                                                  val token: String = "", val callerId: String = "",
+                                                  @Transient val expiresAt: Long = 0, @Transient val previousToken: String = "",
+                                                  @Transient val previousTokenExpiresAt: Long = 0) {
+
+    /**
+     * @param now the current time in millis.
+     * @return true if the given token is the token of this registration, or the one it replaced as long as that
+     * didn't expire yet.
+     */
+    @JvmOverloads
+    fun acceptsToken(token: String, now: Long = System.currentTimeMillis()): Boolean = token == this.token ||
+            (!previousToken.isEmpty() && now < previousTokenExpiresAt && token == previousToken)
+}
@@ -0,0 +1,29 @@
+package com.coresystems.sparky.store
+
+/**
+ * A store on another machine (e.g. Redis or S3) used by [TieredStore]. Every call is a round trip, so implementations
+ * are expected to throw if the backend can't be reached instead of waiting for it indefinitely.
+ */
+interface RemoteBackend {
+    /**
+     * @return the registration stored for the given key; null if there is none.
+     */
+    fun get(key: String): Registration?
+
+    fun getByAccount(account: String): List<Registration>
+
+    /**
+     * Returns a page of the registrations of the given account, like [KeyValueStorage.getByAccount] - in a single
+     * round trip, without reading the rest of the account.
+     *
+     * @param afterKey the last key of the previous page, an empty string for the first page.
+     * @param limit    the max number of registrations returned.
+     * @return the registrations by their keys, in ascending key order.
+     */
+    fun getByAccount(account: String, afterKey: String, limit: Int): Map<String, Registration>
+
+    /**
+     * Applies the given changes in a single round trip.
+     */
+    fun write(puts: Map<String, Registration>, removals: Collection<String>)
+}
@@ -0,0 +1,26 @@
+package com.coresystems.sparky.store
+
+/**
+ * Gets notified about every change of a [KeyValueStorage]. Listeners are called synchronously - while the store
+ * holds the lock of the changed entry - so they have to be quick and must not call back into the store.
+ */
+interface StoreListener<K, V> {
+    /**
+     * Called after the given value was stored, either as a new entry or replacing an existing one.
+     */
+    fun onPut(key: K, value: V)
+
+    /**
+     * Called after the given value was removed from the store.
+     */
+    fun onRemoved(key: K, value: V, cause: RemovalCause)
+
+    enum class RemovalCause {
+        /** Removed on request, e.g. because the user unregistered. */
+        EXPLICIT,
+        /** Dropped to make room for other entries. */
+        EVICTED,
+        /** Dropped because the token expired or the presence lease ran out. */
+        EXPIRED
+    }
+}
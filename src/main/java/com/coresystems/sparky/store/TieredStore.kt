@@ -0,0 +1,366 @@
+package com.coresystems.sparky.store
+
+import com.coresystems.sparky.Log
+import com.coresystems.sparky.store.MockStore.Companion.createKey
+import java.io.Closeable
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Puts a bounded local cache in front of a [RemoteBackend]. Reads are served from the cache and only go to the
+ * backend on a miss. Writes are applied to the cache right away and sent to the backend in the background: changes
+ * of the same key are coalesced, so only the latest one is sent, and all pending changes go out in a single call.
+ *
+ * A change not yet sent to the backend wins over the backend's answer: a key removed or evicted locally is read back from
+ * the pending change, if there is one, instead of from the backend.
+ *
+ * The registrations of an account are asked from the backend, since other servers may have registered users of the
+ * same account. Reading the first page, or all, of an account loads the whole account into the local cache, and its
+ * registrations are served from there for [accountTtlMillis] - so the pages of a user list cost a single round trip.
+ * An account whose registration was evicted from the local cache is loaded again on its next read.
+ *
+ * If the backend fails, the store keeps working with the local cache alone and tries the backend again after
+ * [retryMillis]. Changes made in the meantime are sent once it is back, up to [maxPending] of them.
+ *
+ * @param local            the local cache.
+ * @param backend          the remote store.
+ * @param flushMillis      how often pending changes are sent to the backend.
+ * @param retryMillis      how long the backend is left alone after it failed.
+ * @param maxPending       the number of changes kept for the backend at most, further ones are dropped.
+ * @param accountTtlMillis how long an account loaded from the backend is served from the local cache.
+ */
+class TieredStore @JvmOverloads constructor(private val local: ConcurrentStore,
+                                            private val backend: RemoteBackend,
+                                            flushMillis: Long = 100,
+                                            private val retryMillis: Long = 5000,
+                                            private val maxPending: Int = 100000,
+                                            private val accountTtlMillis: Long = 1000)
+    : KeyValueStorage<String, Registration>, Closeable {
+
+    //The latest change per key not yet sent to the backend - a null registration stands for a removal
+    private val pending = ConcurrentHashMap<String, PendingWrite>()
+    private val dropped = AtomicLong()
+    //Held shared while a change is made, and exclusively while a key read from the backend is put into the local cache
+    private val changes = ReentrantReadWriteLock()
+    @Volatile private var unavailableUntil: Long = 0
+    //The time each account was loaded from the backend as a whole, it is served locally until it's stale
+    private val loadedAccounts = ConcurrentHashMap<String, Long>()
+    //The accounts being loaded, and whether one of their registrations was evicted meanwhile
+    private val loadingAccounts = ConcurrentHashMap<String, Boolean>()
+    private val flusher: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+        val thread = Thread(runnable, "sparky-tiered-store-flusher")
+        thread.isDaemon = true
+        thread
+    }
+
+    init {
+        flusher.scheduleWithFixedDelay({ flush() }, flushMillis, flushMillis, TimeUnit.MILLISECONDS)
+        local.addListener(object : StoreListener<String, Registration> {
+            override fun onPut(key: String, value: Registration) {
+            }
+
+            override fun onRemoved(key: String, value: Registration, cause: StoreListener.RemovalCause) {
+                //The local cache misses a registration the backend still has
+                if (cause == StoreListener.RemovalCause.EVICTED) {
+                    loadedAccounts.remove(value.account)
+                    loadingAccounts.replace(value.account, true)
+                }
+            }
+        })
+    }
+
+    override fun put(key: String, value: Registration) {
+        changes.read {
+            enqueue(key, value)
+            local.put(key, value)
+        }
+    }
+
+    override fun get(key: String): Registration {
+        if (!local.containsKey(key) && isBackendAvailable()) {
+            readThrough(key)
+        }
+        return local.get(key)
+    }
+
+    override fun remove(key: String) {
+        changes.read {
+            enqueue(key, null)
+            local.remove(key)
+        }
+    }
+
+    override fun putAll(values: Map<String, Registration>) {
+        changes.read {
+            values.forEach { enqueue(it.key, it.value) }
+            local.putAll(values)
+        }
+    }
+
+    override fun getAll(keys: Collection<String>): Map<String, Registration> {
+        if (isBackendAvailable()) {
+            keys.filter { !local.containsKey(it) }.forEach { readThrough(it) }
+        }
+        return local.getAll(keys)
+    }
+
+    override fun removeAll(keys: Collection<String>) {
+        changes.read {
+            keys.forEach { enqueue(it, null) }
+            local.removeAll(keys)
+        }
+    }
+
+    override fun containsKey(key: String): Boolean = !get(key).token.isEmpty()
+
+    /**
+     * @return the keys of the local cache.
+     */
+    override fun getKeys(): Collection<String> = local.getKeys()
+
+    override fun isValidEntry(value: Registration): Boolean {
+        val registration = get(createKey(value.account, value.userName))
+        return !registration.token.isEmpty() && registration.acceptsToken(value.token)
+    }
+
+    /**
+     * Served from the local cache once the account is loaded from the backend, see the class comment.
+     */
+    override fun getByAccount(account: String): List<Registration> {
+        if (!isLoaded(account) && isBackendAvailable()) {
+            load(account)
+        }
+        return local.getByAccount(account)
+    }
+
+    /**
+     * The first page loads the whole account, like [getByAccount]. Further pages of an account which got stale in the
+     * meantime are asked from the backend page by page, with the changes not yet sent to it applied on top.
+     */
+    override fun getByAccount(account: String, afterKey: String, limit: Int): Map<String, Registration> {
+        if (isLoaded(account) || !isBackendAvailable()) {
+            return local.getByAccount(account, afterKey, limit)
+        }
+        if (afterKey.isEmpty()) {
+            load(account)
+            return local.getByAccount(account, afterKey, limit)
+        }
+        val result = TreeMap<String, Registration>()
+        var lastKey = afterKey
+        var exhausted = false
+        try {
+            //Pending removals may thin out a page, so further pages are read until it's full
+            while (!exhausted && result.size < limit) {
+                val page = backend.getByAccount(account, lastKey, limit)
+                for ((key, value) in page) {
+                    if (!pending.containsKey(key)) {
+                        result.put(key, value)
+                    }
+                }
+                exhausted = page.size < limit
+                lastKey = page.keys.lastOrNull() ?: lastKey
+            }
+        } catch (e: RuntimeException) {
+            backendFailed(e)
+            return local.getByAccount(account, afterKey, limit)
+        }
+        pending.forEach { key, write ->
+            //Up to the last key read, the pages beyond that hold the pending ones after it
+            if (write.value != null && write.value.account == account && key > afterKey && (exhausted || key <= lastKey)) {
+                result.put(key, write.value)
+            }
+        }
+        val now = System.currentTimeMillis()
+        val page = LinkedHashMap<String, Registration>()
+        result.entries.filter { it.value.expiresAt == 0L || it.value.expiresAt > now }
+                .take(limit)
+                .forEach { page.put(it.key, it.value) }
+        return page
+    }
+
+    /**
+     * @return the sizes of the accounts in the local cache - asking the backend for all accounts would be too costly.
+     */
+    override fun getAccountSizes(): Map<String, Int> = local.getAccountSizes()
+
+    override fun touch(key: String): Boolean {
+        if (!local.containsKey(key) && isBackendAvailable()) {
+            readThrough(key)
+        }
+        return local.touch(key)
+    }
+
+    override fun replace(key: String, oldValue: Registration, newValue: Registration): Boolean = changes.read {
+        val replaced = local.replace(key, oldValue, newValue)
+        if (replaced) {
+            enqueue(key, newValue)
+        }
+        replaced
+    }
+
+    /**
+     * Listeners are notified about changes of the local cache.
+     */
+    override fun addListener(listener: StoreListener<String, Registration>) {
+        local.addListener(listener)
+    }
+
+    /**
+     * Sends all pending changes to the backend in a single call, unless the backend is considered unavailable.
+     */
+    fun flush() {
+        if (pending.isEmpty() || !isBackendAvailable()) {
+            return
+        }
+        val batch = HashMap(pending)
+        val puts = HashMap<String, Registration>()
+        val removals = ArrayList<String>()
+        batch.forEach { key, write ->
+            if (write.value == null) {
+                removals.add(key)
+            } else {
+                puts.put(key, write.value)
+            }
+        }
+        try {
+            backend.write(puts, removals)
+            //Changes made while we were writing stay pending
+            batch.forEach { key, write -> pending.remove(key, write) }
+        } catch (e: RuntimeException) {
+            backendFailed(e)
+        }
+    }
+
+    /**
+     * @return true unless the backend failed recently.
+     */
+    fun isBackendAvailable(): Boolean = System.currentTimeMillis() >= unavailableUntil
+
+    /**
+     * @return the number of changes which were never sent to the backend, since too many were pending.
+     */
+    fun getDropped(): Long = dropped.get()
+
+    override fun close() {
+        flusher.shutdown()
+        flusher.awaitTermination(retryMillis, TimeUnit.MILLISECONDS)
+        flush()
+    }
+
+    private fun isLoaded(account: String): Boolean {
+        val loadedAt = loadedAccounts[account]
+        return loadedAt != null && System.currentTimeMillis() - loadedAt < accountTtlMillis
+    }
+
+    /**
+     * Puts the registrations of the given account the backend holds into the local cache, and drops the ones it
+     * doesn't hold anymore. Keys with a pending change are left alone, the local cache has their latest value.
+     *
+     * The account is served locally afterwards, unless the local cache couldn't keep all of its registrations.
+     */
+    private fun load(account: String) {
+        val loadedAt = System.currentTimeMillis()
+        val remote: List<Registration>
+        try {
+            remote = backend.getByAccount(account)
+        } catch (e: RuntimeException) {
+            backendFailed(e)
+            return
+        }
+        val keys = HashSet<String>()
+        loadingAccounts.put(account, false)
+        changes.write {
+            for (registration in remote) {
+                val key = registration.callerId
+                keys.add(key)
+                if (!pending.containsKey(key) && local.get(key) != registration && (registration.expiresAt == 0L || registration.expiresAt > loadedAt)) {
+                    //Don't put it back into the pending writes, the backend has it already
+                    local.put(key, registration)
+                }
+            }
+            //Removed by another server
+            local.removeAll(local.getByAccount(account).map { it.callerId }.filter { !keys.contains(it) && !pending.containsKey(it) })
+        }
+        if (loadingAccounts.remove(account) == true) {
+            return
+        }
+        if (loadedAccounts.size >= MAX_LOADED_ACCOUNTS) {
+            val stale = loadedAccounts.values.iterator()
+            while (stale.hasNext()) {
+                if (loadedAt - stale.next() >= accountTtlMillis) {
+                    stale.remove()
+                }
+            }
+        }
+        loadedAccounts.put(account, loadedAt)
+    }
+
+    /**
+     * Reads the given key, missing in the local cache, from its pending change or else from the backend.
+     */
+    private fun readThrough(key: String) {
+        if (pending.containsKey(key)) {
+            restorePending(key)
+            return
+        }
+        try {
+            //Without a pending change the backend is up to date, changes made while we ask it are pending then
+            val registration = backend.get(key)
+            changes.write {
+                if (pending.containsKey(key)) {
+                    restorePending(key)
+                } else if (registration != null) {
+                    //Don't put it back into the pending writes, the backend has it already
+                    local.put(key, registration)
+                }
+            }
+        } catch (e: RuntimeException) {
+            backendFailed(e)
+        }
+    }
+
+    /**
+     * Puts the pending value of the given key back into the local cache, if it was evicted. A pending removal leaves
+     * the key absent.
+     */
+    private fun restorePending(key: String) {
+        changes.write {
+            val value = pending[key]?.value
+            if (value != null && !local.containsKey(key)) {
+                local.put(key, value)
+            }
+        }
+    }
+
+    private fun enqueue(key: String, value: Registration?) {
+        if (pending.size >= maxPending && !pending.containsKey(key)) {
+            dropped.incrementAndGet()
+            return
+        }
+        pending.put(key, PendingWrite(value))
+    }
+
+    private fun backendFailed(e: RuntimeException) {
+        if (isBackendAvailable()) {
+            Log.e(TieredStore::class.java.simpleName, "The backend failed, using the local cache only for the next $retryMillis ms.", e)
+        }
+        unavailableUntil = System.currentTimeMillis() + retryMillis
+    }
+
+    /**
+     * Wraps every change, so a change can only be acknowledged by the very flush that sent it.
+     */
+    private class PendingWrite(val value: Registration?)
+
+    companion object {
+        //Beyond this many loaded accounts, the stale ones are forgotten
+        private const val MAX_LOADED_ACCOUNTS = 1024
+    }
+}
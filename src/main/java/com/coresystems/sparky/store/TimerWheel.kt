@@ -0,0 +1,71 @@
+package com.coresystems.sparky.store
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Hashed timing wheel: every scheduled item lands in the bucket of the tick it is due in, so scheduling is O(1) and
+ * advancing the wheel only looks at the buckets of the ticks that passed. Items which are due more than one
+ * revolution ahead stay in their bucket and are skipped until their tick comes around.
+ *
+ * Items are never cancelled - whoever handles [onExpire] has to check whether the item is still due.
+ *
+ * Scheduling doesn't lock, so the wheel may pass the tick of an item while it is being added. Such an item is moved to
+ * a queue of overdue items instead, which [advance] fires right away - rather than a revolution later.
+ */
+class TimerWheel<T>(private val startTime: Long, private val tickMillis: Long = 1000, wheelSize: Int = 4096,
+                    private val onExpire: (T) -> Unit) {
+
+    private val buckets: Array<ConcurrentLinkedQueue<Timeout<T>>> = Array(wheelSize, { ConcurrentLinkedQueue<Timeout<T>>() })
+    @Volatile private var currentTick: Long = 0
+    private val scheduled = AtomicInteger()
+    private val overdue = ConcurrentLinkedQueue<Timeout<T>>()
+
+    /**
+     * @param item     the item to hand to [onExpire] once the deadline passed.
+     * @param deadline the time in millis after which the item is due.
+     */
+    fun schedule(item: T, deadline: Long) {
+        //Round up, so an item never fires before its deadline; items due already go into the next tick
+        val tick = Math.max((deadline - startTime + tickMillis - 1) / tickMillis, currentTick + 1)
+        scheduled.incrementAndGet()
+        val bucket = buckets[(tick % buckets.size).toInt()]
+        val timeout = Timeout(item, tick)
+        bucket.add(timeout)
+        //Added after the wheel passed its tick, unless it was fired along already
+        if (tick <= currentTick && bucket.remove(timeout)) {
+            overdue.add(timeout)
+        }
+    }
+
+    /**
+     * @return the number of items which were scheduled and didn't fire yet.
+     */
+    fun size(): Int = scheduled.get()
+
+    /**
+     * Fires all items which became due up to the given time. Only one thread advances the wheel at a time.
+     */
+    @Synchronized fun advance(now: Long) {
+        val targetTick = (now - startTime) / tickMillis
+        while (true) {
+            val timeout = overdue.poll() ?: break
+            scheduled.decrementAndGet()
+            onExpire(timeout.item)
+        }
+        while (currentTick < targetTick) {
+            currentTick++
+            val iterator = buckets[(currentTick % buckets.size).toInt()].iterator()
+            while (iterator.hasNext()) {
+                val timeout = iterator.next()
+                if (timeout.tick <= currentTick) {
+                    iterator.remove()
+                    scheduled.decrementAndGet()
+                    onExpire(timeout.item)
+                }
+            }
+        }
+    }
+
+    private class Timeout<T>(val item: T, val tick: Long)
+}
@@ -0,0 +1,65 @@
+package com.coresystems.sparky;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public final class AdmissionControlTest {
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        final AdmissionControl admission = new AdmissionControl(1, 0, 1000);
+        assertTrue(admission.tryAcquire());
+        assertEquals(1, admission.getActive());
+        //No room to wait, so the request is rejected without waiting
+        final long started = System.nanoTime();
+        assertFalse(admission.tryAcquire());
+        assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(1, admission.getRejected());
+
+        admission.release();
+        assertEquals(0, admission.getActive());
+        assertTrue(admission.tryAcquire());
+    }
+
+    @Test
+    public void queuedRequests() throws Exception {
+        final AdmissionControl admission = new AdmissionControl(1, 1, 5000);
+        assertTrue(admission.tryAcquire());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<Boolean> queued = executor.submit(() -> {
+            started.countDown();
+            return admission.tryAcquire();
+        });
+        started.await();
+        for (int i = 0; i < 500 && admission.getQueued() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, admission.getQueued());
+        //The queue is full
+        assertFalse(admission.tryAcquire());
+
+        //The queued request gets the slot once it's released
+        admission.release();
+        assertTrue(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(0, admission.getQueued());
+        assertEquals(1, admission.getRejected());
+        executor.shutdown();
+    }
+
+    @Test
+    public void rejectsAfterMaxWait() {
+        final AdmissionControl admission = new AdmissionControl(1, 1, 50);
+        assertTrue(admission.tryAcquire());
+        assertFalse(admission.tryAcquire());
+        assertEquals(0, admission.getQueued());
+        assertEquals(1, admission.getRejected());
+    }
+}
@@ -0,0 +1,90 @@
+package com.coresystems.sparky;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static junit.framework.TestCase.*;
+
+public final class AsyncLogHandlerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesRecords() throws IOException {
+        final File file = folder.newFile();
+        final AsyncLogHandler handler = AsyncLogHandler.toFile(file.getPath(), 16);
+        handler.setLevel(Level.INFO);
+        handler.publish(createRecord(Level.INFO, "Sparky is up and running.", null));
+        handler.publish(createRecord(Level.FINE, "Below the level of the handler", null));
+        handler.publish(createRecord(Level.SEVERE, "Failed", new IllegalStateException("broken")));
+        handler.close();
+
+        final String log = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(log.contains("INFO Test - Sparky is up and running."));
+        assertFalse(log.contains("Below the level"));
+        assertTrue(log.contains("SEVERE Test - Failed"));
+        assertTrue(log.contains("java.lang.IllegalStateException: broken"));
+    }
+
+    @Test
+    public void dropsWhenFull() throws IOException {
+        final File file = folder.newFile();
+        final AsyncLogHandler handler = AsyncLogHandler.toFile(file.getPath(), 1);
+        //Far more than the writer can keep up with, given there is room for a single record only
+        for (int i = 0; i < 100000; i++) {
+            handler.publish(createRecord(Level.INFO, "Record " + i, null));
+        }
+        handler.publish(createRecord(Level.WARNING, "The last warning", null));
+        handler.close();
+
+        assertTrue(handler.getDropped() > 0);
+        final String log = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(log.contains("log records were dropped"));
+        //Warnings push out older records instead of being dropped
+        assertTrue(log.contains("The last warning"));
+    }
+
+    @Test
+    public void closesWhileWarningsPushOut() throws Exception {
+        final File file = folder.newFile();
+        final AsyncLogHandler handler = AsyncLogHandler.toFile(file.getPath(), 1);
+        final Thread[] publishers = new Thread[4];
+        for (int i = 0; i < publishers.length; i++) {
+            publishers[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    handler.publish(createRecord(Level.WARNING, "Warning " + j, null));
+                }
+            });
+            publishers[i].start();
+        }
+        //Once the queue overflows, the warnings may push out the sentinel of close, which must not keep the writer from
+        //stopping
+        while (handler.getDropped() == 0 && publishers[0].isAlive()) {
+            Thread.yield();
+        }
+        final long started = System.nanoTime();
+        handler.close();
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(4));
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        assertTrue(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).contains("log records were dropped"));
+    }
+
+    private static LogRecord createRecord(Level level, String message, Throwable thrown) {
+        final LogRecord record = new LogRecord(level, message);
+        record.setLoggerName("Test");
+        record.setThrown(thrown);
+        return record;
+    }
+}
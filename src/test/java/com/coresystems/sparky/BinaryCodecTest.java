@@ -0,0 +1,96 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static junit.framework.TestCase.*;
+
+public final class BinaryCodecTest {
+
+    @Test
+    public void read() {
+        //Longer than a single byte of length, and not all ASCII
+        final String fullName = StringUtils.repeat("Red J\u00f6hn ", 100);
+        final Registration registration = new Registration("CBI", "rjohn", fullName, "token", "CBIrjohn");
+        final RegistrationCodec.Request request = BinaryCodec.read(BinaryCodec.toBytes(registration, true));
+        assertEquals(registration, request.registration);
+        assertTrue(request.forceReAuthentication);
+        assertFalse(BinaryCodec.read(BinaryCodec.toBytes(registration, false)).forceReAuthentication);
+        //Trailing fields may be left out
+        assertEquals(new Registration("CBI", "", "", "", ""), BinaryCodec.read(new byte[]{3, 'C', 'B', 'I'}).registration);
+        assertSame(RegistrationCodec.EMPTY_REQUEST, BinaryCodec.read(null));
+        assertSame(RegistrationCodec.EMPTY_REQUEST, BinaryCodec.read(new byte[0]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readMalformed() {
+        BinaryCodec.read(new byte[]{4, 'C', 'B', 'I'});
+    }
+
+    @Test
+    public void writeSmallerThanJson() {
+        final List<Registration> users = new ArrayList<>();
+        for (String userName : Arrays.asList("tlisbon", "cho", "vanpelt", "rigsby")) {
+            users.add(new Registration("CBI", userName, "Agent " + userName, StringUtils.EMPTY, MockStore.Companion.createKey("CBI", userName)));
+        }
+        final byte[] bytes = BinaryCodec.toUserList("CBI", users);
+        final List<Registration> read = new ArrayList<>();
+        assertEquals("", BinaryCodec.readUserList(bytes, read));
+        assertEquals(users, read);
+        assertTrue(bytes.length * 3 < RegistrationCodec.toJson(users).length());
+    }
+
+    @Test
+    public void serviceWritesBothForms() throws IOException {
+        final Properties properties = new Properties();
+        properties.put(SparkyService.ACCOUNT_SID, "AC" + UUID.randomUUID());
+        properties.put(SparkyService.VIDEO_CONFIGURATION_SID, "VS" + UUID.randomUUID());
+        properties.put(SparkyService.API_KEY, "SK" + UUID.randomUUID());
+        properties.put(SparkyService.API_SECRET, UUID.randomUUID().toString());
+        final SparkyService service = new SparkyService(new MockStore(10));
+        service.getAuthenticationJson(properties, "{\"userName\":\"tlisbon\",\"account\":\"CBI\",\"fullName\":\"Teresa Lisbon\"}");
+        service.getAuthenticationJson(properties, "{\"userName\":\"cho\",\"account\":\"CBI\",\"fullName\":\"Kimball Cho\"}");
+        final byte[] response = service.authenticate(properties, BinaryCodec.read(BinaryCodec.toBytes(new Registration("CBI", "rjohn", "Red John", "", ""), false)),
+                BinaryCodec::toAuthentication);
+        final Registration rjohn = BinaryCodec.read(response).registration;
+        assertEquals("CBIrjohn", rjohn.getCallerId());
+        assertFalse(rjohn.getToken().isEmpty());
+
+        //A page at a time, the last one without a cursor
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Registration> users = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            out.reset();
+            service.writeAuthenticatedUsersBinary(rjohn, cursor, 1, out);
+            cursor = BinaryCodec.readUserList(out.toByteArray(), users);
+            pages++;
+        } while (!cursor.isEmpty());
+        assertEquals(3, pages);
+        assertEquals(service.getAuthenticatedUsersByAccount(RegistrationCodec.toJson(rjohn)), users);
+
+        //Both forms have their own ETag
+        assertFalse(service.getUsersETag(rjohn, null, 0, BinaryCodec.CONTENT_TYPE).equals(service.getUsersETag(rjohn, null, 0, Webapp.DATA_TYPE_JSON)));
+    }
+
+    @Test
+    public void prefersBinary() {
+        assertTrue(Webapp.prefersBinary(BinaryCodec.CONTENT_TYPE));
+        assertTrue(Webapp.prefersBinary("application/json;q=0.5, application/x-sparky"));
+        assertFalse(Webapp.prefersBinary(null));
+        assertFalse(Webapp.prefersBinary("*/*"));
+        assertFalse(Webapp.prefersBinary("application/json, application/x-sparky;q=0.5"));
+        assertFalse(Webapp.prefersBinary("application/x-sparky;q=0"));
+    }
+}
@@ -0,0 +1,191 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.HashRing;
+import com.coresystems.sparky.store.Registration;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static junit.framework.TestCase.*;
+
+public final class ClusterNodeTest {
+    private static final List<String> NODES = Arrays.asList("a", "b", "c");
+
+    private final LocalClusterTransport transport = new LocalClusterTransport();
+    private final Map<String, ClusterNode> nodes = new HashMap<>();
+    private final Map<String, ConcurrentStore> stores = new HashMap<>();
+    private final Map<String, SparkyService> services = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        final HashRing ring = new HashRing(NODES);
+        for (String name : NODES) {
+            final ConcurrentStore store = new ConcurrentStore();
+            final SparkyService service = new SparkyService(store);
+            final ClusterNode node = new ClusterNode(name, ring, 1, transport, store, 60000, 1000);
+            transport.join(name, node, (path, body) -> new ClusterTransport.Reply(200, handle(service, path, body)));
+            nodes.put(name, node);
+            stores.put(name, store);
+            services.put(name, service);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        nodes.values().forEach(ClusterNode::close);
+    }
+
+    @Test
+    public void routesToOwner() {
+        final List<String> owners = nodes.get("a").getOwners("CBI");
+        assertEquals(2, owners.size());
+        final String other = NODES.stream().filter(node -> !owners.contains(node)).findFirst().get();
+
+        //A node not owning the account forwards the request, the primary keeps the registration
+        final String json = call(other, "/token", "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"fullName\":\"Red John\"}");
+        final Registration registration = SparkyService.fromJson(json);
+        assertFalse(StringUtils.isEmpty(registration.getToken()));
+        call(other, "/token", "{\"userName\":\"tlisbon\",\"account\":\"CBI\",\"fullName\":\"Teresa Lisbon\"}");
+        assertEquals(2, nodes.get(other).getForwarded());
+        assertTrue(stores.get(owners.get(0)).containsKey("CBIrjohn"));
+        assertFalse(stores.get(other).containsKey("CBIrjohn"));
+
+        //The replica receives the registration in the background
+        flushAll();
+        assertEquals(registration.getToken(), stores.get(owners.get(1)).get("CBIrjohn").getToken());
+
+        //Any node can list the users of the account
+        final String users = call(other, "/users", "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"token\":\"" + registration.getToken() + "\"}");
+        assertEquals("tlisbon", SparkyService.fromJsonList(users).get(0).getUserName());
+
+        //Unregistering is replicated as well
+        call(other, "/unregister", "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"token\":\"" + registration.getToken() + "\"}");
+        flushAll();
+        for (ConcurrentStore store : stores.values()) {
+            assertFalse(store.containsKey("CBIrjohn"));
+        }
+    }
+
+    @Test
+    public void failsOverToReplica() {
+        final List<String> owners = nodes.get("a").getOwners("CBI");
+        final String other = NODES.stream().filter(node -> !owners.contains(node)).findFirst().get();
+        final Registration registration = SparkyService.fromJson(call(other, "/token", "{\"userName\":\"rjohn\",\"account\":\"CBI\"}"));
+        call(other, "/token", "{\"userName\":\"tlisbon\",\"account\":\"CBI\"}");
+        flushAll();
+
+        //Once the primary is gone, the replica serves the account with the registrations it received
+        transport.setDown(owners.get(0), true);
+        final String users = call(other, "/users", "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"token\":\"" + registration.getToken() + "\"}");
+        assertEquals(1, SparkyService.fromJsonList(users).size());
+        assertEquals(1, nodes.get(other).getFailovers());
+        //The token is served from the replica rather than minted anew
+        assertEquals(registration.getToken(), SparkyService.fromJson(call(other, "/token", "{\"userName\":\"rjohn\",\"account\":\"CBI\"}")).getToken());
+    }
+
+    @Test
+    public void splitsBatches() {
+        final String other = NODES.stream().filter(node -> !nodes.get("a").getOwners("CBI").contains(node)).findFirst().get();
+        final String json = nodes.get(other).routeBatch("/token/batch",
+                "[{\"userName\":\"rjohn\",\"account\":\"CBI\"},{\"userName\":\"tlisbon\",\"account\":\"FBI\"},{\"userName\":\"pjane\",\"account\":\"CBI\"}]",
+                body -> services.get(other).getAuthenticationJsonBatch(getProperties(), body)).getText();
+        final List<Registration> registrations = SparkyService.fromJsonList(json);
+        assertEquals(3, registrations.size());
+        assertEquals("rjohn", registrations.get(0).getUserName());
+        assertEquals("tlisbon", registrations.get(1).getUserName());
+        assertEquals("pjane", registrations.get(2).getUserName());
+        assertTrue(stores.get(nodes.get(other).getOwners("FBI").get(0)).containsKey("FBItlisbon"));
+        assertTrue(stores.get(nodes.get(other).getOwners("CBI").get(0)).containsKey("CBIpjane"));
+    }
+
+    @Test
+    public void answersFailedPartsPerRequest() {
+        final List<String> owners = nodes.get("a").getOwners("CBI");
+        final String other = NODES.stream().filter(node -> !owners.contains(node)).findFirst().get();
+        final String account = Arrays.asList("FBI", "DEA", "NSA", "CIA", "ATF").stream()
+                .filter(name -> nodes.get(other).getOwners(name).contains(other)).findFirst().get();
+        owners.forEach(node -> transport.setDown(node, true));
+        final String json = nodes.get(other).routeBatch("/token/batch",
+                "[{\"userName\":\"rjohn\",\"account\":\"CBI\"},{\"userName\":\"tlisbon\",\"account\":\"" + account + "\"}]",
+                body -> services.get(other).getAuthenticationJsonBatch(getProperties(), body)).getText();
+        //The part which could be applied keeps its reply, the other one is answered with an error per request
+        final List<RegistrationCodec.Request> replies = RegistrationCodec.readAll(json);
+        assertEquals(2, replies.size());
+        assertTrue(json.contains("\"error\":\"The servers of the account are unavailable"));
+        assertEquals("tlisbon", replies.get(1).registration.getUserName());
+        assertTrue(stores.get(other).containsKey(account + "tlisbon"));
+
+        //Nothing was applied if every part failed
+        try {
+            nodes.get(other).routeBatch("/token/batch", "[{\"userName\":\"rjohn\",\"account\":\"CBI\"}]",
+                    body -> services.get(other).getAuthenticationJsonBatch(getProperties(), body));
+            fail();
+        } catch (java.io.UncheckedIOException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void replicationRoundTrip() {
+        final Map<String, Registration> puts = new HashMap<>();
+        puts.put("CBIrjohn", new Registration("CBI", "rjohn", "Red John", "token", "CBIrjohn", 42, "previous", 21));
+        final Map<String, Registration> readPuts = new HashMap<>();
+        final List<String> readRemovals = new java.util.ArrayList<>();
+        HttpClusterTransport.readReplication(HttpClusterTransport.writeReplication(puts, Arrays.asList("CBItlisbon")), readPuts, readRemovals);
+        assertEquals(puts, readPuts);
+        assertEquals(Arrays.asList("CBItlisbon"), readRemovals);
+    }
+
+    @Test
+    public void trustsSecretOnly() {
+        final HttpClusterTransport transport = new HttpClusterTransport("secret");
+        assertTrue(transport.isTrusted("secret"));
+        assertFalse(transport.isTrusted("secreT"));
+        assertFalse(transport.isTrusted("secret2"));
+        assertFalse(transport.isTrusted(""));
+        assertFalse(transport.isTrusted(null));
+    }
+
+    private String call(String node, String path, String body) {
+        final ClusterTransport.Reply reply = nodes.get(node).route(RegistrationCodec.read(body).registration.getAccount(), path, body,
+                Collections.emptyMap());
+        return reply == null ? handle(services.get(node), path, body) : reply.getText();
+    }
+
+    private void flushAll() {
+        nodes.values().forEach(ClusterNode::flush);
+    }
+
+    private static String handle(SparkyService service, String path, String body) {
+        switch (path) {
+            case "/token":
+                return service.getAuthenticationJson(getProperties(), body);
+            case "/users":
+                return RegistrationCodec.toJson(service.getAuthenticatedUsersByAccount(body));
+            case "/unregister":
+                return RegistrationCodec.toJson(service.removeRegistration(body));
+            case "/token/batch":
+                return service.getAuthenticationJsonBatch(getProperties(), body);
+            default:
+                throw new IllegalArgumentException(path);
+        }
+    }
+
+    private static Properties getProperties() {
+        final Properties properties = new Properties();
+        properties.setProperty(SparkyService.ACCOUNT_SID, "ACtest");
+        properties.setProperty(SparkyService.VIDEO_CONFIGURATION_SID, "VStest");
+        properties.setProperty(SparkyService.API_KEY, "SKtest");
+        properties.setProperty(SparkyService.API_SECRET, "secret");
+        return properties;
+    }
+}
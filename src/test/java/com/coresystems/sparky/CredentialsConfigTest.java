@@ -0,0 +1,80 @@
+package com.coresystems.sparky;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public final class CredentialsConfigTest {
+
+    @Test
+    public void parse() {
+        final Map<String, String> values = CredentialsConfig.parse("# The credentials\nexport ACCOUNT_SID=\"AC1\"\n\n" +
+                "API_KEY='SK1'\r\nAPI_SECRET=secret # rotated monthly\nVIDEO_CONFIGURATION_SID=\"\"\nnot a line\n");
+        assertEquals("AC1", values.get(SparkyService.ACCOUNT_SID));
+        assertEquals("SK1", values.get(SparkyService.API_KEY));
+        assertEquals("secret", values.get(SparkyService.API_SECRET));
+        assertEquals("", values.get(SparkyService.VIDEO_CONFIGURATION_SID));
+        assertEquals(4, values.size());
+    }
+
+    @Test
+    public void reloadsWhenFileChanges() throws IOException, InterruptedException {
+        final Path directory = Files.createTempDirectory("sparky-config");
+        final Path file = directory.resolve(".env_config");
+        Files.write(file, "export ACCOUNT_SID=\"AC1\"\nexport API_KEY=\"\"\n".getBytes(StandardCharsets.UTF_8));
+        try (CredentialsConfig config = new CredentialsConfig(file, Collections.singletonMap(SparkyService.API_KEY, "SK-env")::get)) {
+            final Properties first = config.get();
+            assertEquals("AC1", first.getProperty(SparkyService.ACCOUNT_SID));
+            //Empty in the file, set in the environment
+            assertEquals("SK-env", first.getProperty(SparkyService.API_KEY));
+            assertEquals("", first.getProperty(SparkyService.API_SECRET));
+            try {
+                first.setProperty(SparkyService.ACCOUNT_SID, "AC2");
+                fail("A snapshot must not be changed");
+            } catch (UnsupportedOperationException expected) {
+            }
+            assertSame(first, config.get());
+
+            config.watch();
+            //Replaced the way editors do it, by moving a new file over the old one
+            final Path next = directory.resolve(".env_config.tmp");
+            Files.write(next, "export ACCOUNT_SID=\"AC2\"\nexport API_KEY=\"SK2\"\n".getBytes(StandardCharsets.UTF_8));
+            Files.move(next, file, StandardCopyOption.REPLACE_EXISTING);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (config.get() == first && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals("AC2", config.get().getProperty(SparkyService.ACCOUNT_SID));
+            assertEquals("SK2", config.get().getProperty(SparkyService.API_KEY));
+            //The previous snapshot is left as it was
+            assertEquals("AC1", first.getProperty(SparkyService.ACCOUNT_SID));
+
+            //A file which would empty a credential that is set keeps the credentials, e.g. while it is written
+            Files.write(file, "export API_KEY=\"SK3\"\n".getBytes(StandardCharsets.UTF_8));
+            assertFalse(config.reload());
+            assertEquals("AC2", config.get().getProperty(SparkyService.ACCOUNT_SID));
+            assertEquals("SK2", config.get().getProperty(SparkyService.API_KEY));
+            Files.write(file, "export ACCOUNT_SID=\"AC3\"\nexport API_KEY=\"SK3\"\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(config.reload());
+            assertEquals("AC3", config.get().getProperty(SparkyService.ACCOUNT_SID));
+
+            //A file which is gone keeps the credentials
+            Files.delete(file);
+            assertFalse(config.reload());
+            assertEquals("AC3", config.get().getProperty(SparkyService.ACCOUNT_SID));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.KeyValueStorage;
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static junit.framework.TestCase.*;
+
+public final class FlightEventsTest {
+    private static final String STORE = "com.coresystems.sparky.Store";
+    private static final String USER_LIST = "com.coresystems.sparky.UserList";
+
+    @Test
+    public void recordsStoreOperations() throws IOException {
+        recordsStoreOperations(new MockStore(2));
+        recordsStoreOperations(new ConcurrentStore(2, 1));
+    }
+
+    @Test
+    public void recordsUserLists() throws IOException {
+        final MockStore store = new MockStore(10);
+        final SparkyService service = new SparkyService(store);
+        store.put("CBIrjohn", new Registration("CBI", "rjohn", "", "rjohnsToken", "CBIrjohn"));
+        store.put("CBItlisbon", new Registration("CBI", "tlisbon", "", "tlisbonsToken", "CBItlisbon"));
+        final String request = Webapp.gson.toJson(new Registration("CBI", "rjohn", "", "rjohnsToken", ""));
+
+        final List<RecordedEvent> events = record(USER_LIST, () -> {
+            service.getAuthenticatedUsersByAccount(request);
+            writeUsers(service, request);
+            writeUsers(service, request);
+        });
+        assertEquals(3, events.size());
+        for (RecordedEvent event : events) {
+            assertEquals("CBI", event.getString("account"));
+            assertEquals(1, event.getInt("returned"));
+        }
+        assertEquals(2, events.get(0).getInt("scanned"));
+        assertFalse(events.get(1).getBoolean("cached"));
+        assertTrue(events.get(2).getBoolean("cached"));
+        assertEquals(0, events.get(2).getInt("scanned"));
+    }
+
+    private static void recordsStoreOperations(KeyValueStorage<String, Registration> store) throws IOException {
+        final List<RecordedEvent> events = record(STORE, () -> {
+            store.put("CBIrjohn", new Registration("CBI", "rjohn", "", "", "CBIrjohn"));
+            store.put("CBItlisbon", new Registration("CBI", "tlisbon", "", "", "CBItlisbon"));
+            store.put("CBIcho", new Registration("CBI", "cho", "", "", "CBIcho"));
+            store.get("CBIvanpelt");
+        });
+        assertEquals(4, events.size());
+        assertEquals("put", events.get(0).getString("operation"));
+        assertEquals(0, events.get(0).getInt("evicted"));
+        assertEquals(1, events.get(2).getInt("evicted"));
+        assertEquals("get", events.get(3).getString("operation"));
+        assertFalse(events.get(3).getBoolean("hit"));
+    }
+
+    private static void writeUsers(SparkyService service, String request) {
+        try {
+            service.writeAuthenticatedUsersByAccount(request, null, 0, new StringWriter());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the events of the given type recorded while running the given action, in the order they were committed.
+     */
+    private static List<RecordedEvent> record(String name, Runnable action) throws IOException {
+        final Path file = Files.createTempFile("sparky", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(name).withoutThreshold();
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().equals(name))
+                    .sorted((a, b) -> a.getEndTime().compareTo(b.getEndTime()))
+                    .collect(Collectors.toList());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
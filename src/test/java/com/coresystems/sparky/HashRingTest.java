@@ -0,0 +1,48 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.HashRing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.*;
+
+public final class HashRingTest {
+    private static final int ACCOUNTS = 10000;
+
+    @Test
+    public void spreadsEvenly() {
+        final HashRing ring = new HashRing(Arrays.asList("a:1", "b:1", "c:1"));
+        final Map<String, Integer> primaries = new HashMap<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            final List<String> owners = ring.owners("account" + i, 2);
+            assertEquals(2, owners.size());
+            assertFalse(owners.get(0).equals(owners.get(1)));
+            primaries.merge(owners.get(0), 1, Integer::sum);
+        }
+        for (int count : primaries.values()) {
+            assertTrue(String.valueOf(primaries), count > ACCOUNTS / 4 && count < ACCOUNTS / 2);
+        }
+        //Never more owners than nodes
+        assertEquals(3, ring.owners("account", 5).size());
+    }
+
+    @Test
+    public void addingNodeMovesFewAccounts() {
+        final HashRing before = new HashRing(Arrays.asList("a:1", "b:1", "c:1"));
+        final HashRing after = new HashRing(Arrays.asList("a:1", "b:1", "c:1", "d:1"));
+        int moved = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            final String owner = after.owners("account" + i, 1).get(0);
+            if (!owner.equals(before.owners("account" + i, 1).get(0))) {
+                //Accounts only move to the new node, never between the existing ones
+                assertEquals("d:1", owner);
+                moved++;
+            }
+        }
+        assertTrue(String.valueOf(moved), moved > ACCOUNTS / 8 && moved < ACCOUNTS * 3 / 8);
+    }
+}
@@ -0,0 +1,128 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.JournalStore;
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static junit.framework.TestCase.*;
+
+public final class JournalStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restoresAfterRestart() throws IOException {
+        final File directory = folder.newFolder();
+        final JournalStore store = new JournalStore(new ConcurrentStore(), directory);
+        final Registration kept = createRegistration("CBI");
+        final Registration removed = createRegistration("CBI");
+        store.put(kept.getCallerId(), kept);
+        store.put(removed.getCallerId(), removed);
+        store.remove(removed.getCallerId());
+        //Simulates a crash: the journal was written, but no snapshot
+        store.flush();
+
+        final JournalStore restored = new JournalStore(new ConcurrentStore(), directory);
+        assertEquals(1, restored.getKeys().size());
+        assertEquals(kept, restored.get(kept.getCallerId()));
+        assertEquals(1, restored.getByAccount("CBI").size());
+        restored.close();
+    }
+
+    @Test
+    public void restoresAfterCompaction() throws IOException {
+        final File directory = folder.newFolder();
+        //Every batch exceeds the threshold, so the journal is compacted all the time
+        final JournalStore store = new JournalStore(new ConcurrentStore(), directory, 1);
+        for (int i = 0; i < 100; i++) {
+            final Registration value = createRegistration("CBI");
+            store.put(value.getCallerId(), value);
+            if (i % 2 == 0) {
+                store.remove(value.getCallerId());
+            }
+        }
+        store.close();
+        assertEquals(2, directory.list().length);
+
+        final JournalStore restored = new JournalStore(new ConcurrentStore(), directory);
+        assertEquals(50, restored.getKeys().size());
+        restored.close();
+    }
+
+    @Test
+    public void ignoresTornRecord() throws IOException {
+        final File directory = folder.newFolder();
+        final JournalStore store = new JournalStore(new ConcurrentStore(), directory);
+        final Registration value = createRegistration("CBI");
+        store.put(value.getCallerId(), value);
+        store.flush();
+        //A record whose write was interrupted by a crash
+        for (File journal : directory.listFiles((dir, name) -> name.startsWith("journal-"))) {
+            try (FileOutputStream out = new FileOutputStream(journal, true)) {
+                out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+            }
+        }
+
+        final JournalStore restored = new JournalStore(new ConcurrentStore(), directory);
+        assertEquals(1, restored.getKeys().size());
+        assertEquals(value, restored.get(value.getCallerId()));
+        restored.close();
+    }
+
+    @Test
+    public void dropsExpiredRegistrations() throws IOException {
+        final File directory = folder.newFolder();
+        final JournalStore store = new JournalStore(new ConcurrentStore(), directory);
+        final Registration value = createRegistration("CBI");
+        final Registration expiring = new Registration("CBI", "rjohn", "Red John", UUID.randomUUID().toString(), "CBIrjohn",
+                System.currentTimeMillis() + 50);
+        store.put(value.getCallerId(), value);
+        store.put(expiring.getCallerId(), expiring);
+        store.close();
+
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final JournalStore restored = new JournalStore(new ConcurrentStore(), directory);
+        assertEquals(1, restored.getKeys().size());
+        assertFalse(restored.containsKey(expiring.getCallerId()));
+        restored.close();
+    }
+
+    @Test
+    public void snapshotsDroppedChanges() throws IOException {
+        final File directory = folder.newFolder();
+        //A single change may wait for the writer, the others are only kept by a snapshot
+        final JournalStore store = new JournalStore(new ConcurrentStore(), directory, 8L * 1024 * 1024, 1);
+        for (int i = 0; i < 200; i++) {
+            final Registration value = createRegistration("CBI");
+            store.put(value.getCallerId(), value);
+        }
+        assertTrue(store.flush());
+
+        final JournalStore restored = new JournalStore(new ConcurrentStore(), directory);
+        assertEquals(200, restored.getKeys().size());
+        restored.close();
+        store.close();
+        //The writer is gone, nothing waits for it
+        assertFalse(store.flush());
+    }
+
+    private static Registration createRegistration(String account) {
+        final String userName = UUID.randomUUID().toString();
+        return new Registration(account, userName, UUID.randomUUID().toString(), UUID.randomUUID().toString(), MockStore.Companion.createKey(account, userName),
+                0, UUID.randomUUID().toString(), 1000);
+    }
+}
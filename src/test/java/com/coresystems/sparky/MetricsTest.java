@@ -0,0 +1,66 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MeteredStore;
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public final class MetricsTest {
+
+    @Test
+    public void write() {
+        final LatencyHistogram latency = new LatencyHistogram();
+        latency.record(TimeUnit.MICROSECONDS.toNanos(30));
+        latency.record(TimeUnit.MILLISECONDS.toNanos(3));
+        latency.record(TimeUnit.SECONDS.toNanos(30));
+        final Metrics metrics = new Metrics();
+        metrics.histogram("latency_seconds", "Latency.", "route", Collections.singletonMap("/token", latency));
+        metrics.counter("hits_total", "Hits.", () -> 42);
+        metrics.gauge("account_size", "Size.", "account", () -> Collections.singletonMap("C\"BI", 3));
+        metrics.histogram("accounts", "Sizes.", new long[]{1, 10}, () -> Arrays.asList(1, 3, 10, 42));
+
+        final String text = metrics.write();
+        assertTrue(text.contains("# TYPE latency_seconds histogram\n"));
+        //The buckets are cumulative
+        assertTrue(text.contains("latency_seconds_bucket{route=\"/token\",le=\"0.00005\"} 1\n"));
+        assertTrue(text.contains("latency_seconds_bucket{route=\"/token\",le=\"0.005\"} 2\n"));
+        assertTrue(text.contains("latency_seconds_bucket{route=\"/token\",le=\"10\"} 2\n"));
+        assertTrue(text.contains("latency_seconds_bucket{route=\"/token\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("latency_seconds_count{route=\"/token\"} 3\n"));
+        assertTrue(text.contains("latency_seconds_sum{route=\"/token\"} 30.00303\n"));
+        assertTrue(text.contains("# TYPE hits_total counter\nhits_total 42\n"));
+        assertTrue(text.contains("account_size{account=\"C\\\"BI\"} 3\n"));
+        assertTrue(text.contains("# TYPE accounts histogram\naccounts_bucket{le=\"1\"} 1\naccounts_bucket{le=\"10\"} 3\n"
+                + "accounts_bucket{le=\"+Inf\"} 4\naccounts_sum 56\naccounts_count 4\n"));
+    }
+
+    @Test
+    public void meteredStore() {
+        final MockStore delegate = new MockStore(1);
+        final MeteredStore store = new MeteredStore(delegate);
+        final Registration registration = new Registration("CBI", "rjohn", "Red John", "token", "CBIrjohn");
+        store.put(registration.getCallerId(), registration);
+        assertEquals(registration, store.get(registration.getCallerId()));
+        assertTrue(store.isValidEntry(registration));
+        assertFalse(store.containsKey("CBItlisbon"));
+        assertEquals(1, store.getAll(Arrays.asList(registration.getCallerId(), "CBItlisbon")).size());
+        //Counted by operation, a request making several kinds of lookups isn't counted several times in one
+        assertEquals(Long.valueOf(1), store.getHits().get("get"));
+        assertEquals(Long.valueOf(1), store.getHits().get("isValidEntry"));
+        assertEquals(Long.valueOf(0), store.getHits().get("containsKey"));
+        assertEquals(Long.valueOf(1), store.getMisses().get("containsKey"));
+        assertEquals(Long.valueOf(1), store.getHits().get("getAll"));
+        assertEquals(Long.valueOf(1), store.getMisses().get("getAll"));
+        assertEquals(Collections.singletonMap("CBI", 1), store.getAccountSizes());
+
+        //The capacity of the delegate is reached, so the previous registration is evicted
+        store.put("CBItlisbon", new Registration("CBI", "tlisbon", "Teresa Lisbon", "token", "CBItlisbon"));
+        assertEquals(1, store.getEvictions());
+    }
+}
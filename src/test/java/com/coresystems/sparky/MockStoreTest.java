@@ -79,6 +79,40 @@ public final class MockStoreTest {
         assertEquals(2, store.getKeyContains(store, account).size());
     }
 
+    @Test
+    public void getByAccount() {
+        MockStore store = new MockStore();
+        final Registration value = createRegistration("CBI");
+        store.put(value.getCallerId(), value);
+        store.put(UUID.randomUUID().toString(), createRegistration("CBI"));
+        //The account name is contained in the other account name, so it must not show up in a lookup for "CBI"
+        store.put(UUID.randomUUID().toString(), createRegistration("CBIX"));
+        store.put(UUID.randomUUID().toString(), createRegistration());
+        assertEquals(2, store.getByAccount("CBI").size());
+        assertEquals(1, store.getByAccount("CBIX").size());
+        assertTrue(store.getByAccount("CB").isEmpty());
+
+        store.remove(value.getCallerId());
+        assertEquals(1, store.getByAccount("CBI").size());
+        //Replacing an entry with one of a different account moves it in the index
+        store.put(value.getCallerId(), value);
+        store.put(value.getCallerId(), createRegistration("CBIX"));
+        assertEquals(1, store.getByAccount("CBI").size());
+        assertEquals(2, store.getByAccount("CBIX").size());
+    }
+
+    @Test
+    public void getByAccountAfterEviction() {
+        MockStore store = new MockStore(2);
+        store.put(UUID.randomUUID().toString(), createRegistration("CBI"));
+        store.put(UUID.randomUUID().toString(), createRegistration("CBI"));
+        assertEquals(2, store.getByAccount("CBI").size());
+        //The eldest entry is pushed out, so the index must forget about it as well
+        store.put(UUID.randomUUID().toString(), createRegistration("Other"));
+        assertEquals(1, store.getByAccount("CBI").size());
+        assertEquals(1, store.getByAccount("Other").size());
+    }
+
     @Test
     public void containsKey() {
         MockStore store = new MockStore();
@@ -119,7 +153,10 @@ public final class MockStoreTest {
     }
 
     private static Registration createRegistration() {
-        final String account = UUID.randomUUID().toString();
+        return createRegistration(UUID.randomUUID().toString());
+    }
+
+    private static Registration createRegistration(String account) {
         final String userName = UUID.randomUUID().toString();
         return new Registration(account, userName, UUID.randomUUID().toString(), UUID.randomUUID().toString(), MockStore.Companion.createKey(account, userName));
     }
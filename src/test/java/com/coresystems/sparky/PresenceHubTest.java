@@ -0,0 +1,150 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public final class PresenceHubTest {
+
+    @Test
+    public void snapshotFollowedByChanges() throws InterruptedException {
+        final MockStore store = new MockStore();
+        final Registration requester = register(store, "rjohn");
+        register(store, "tlisbon");
+        final PresenceHub hub = new PresenceHub(store, 16, 16);
+        final RecordingConnection connection = new RecordingConnection(true);
+        assertTrue(hub.subscribe(connection, requester, connection));
+
+        final JsonObject snapshot = connection.next();
+        assertEquals("snapshot", snapshot.get("type").getAsString());
+        //The requester is left out, and so are the tokens
+        assertEquals(1, snapshot.getAsJsonArray("users").size());
+        assertEquals("", snapshot.getAsJsonArray("users").get(0).getAsJsonObject().get("token").getAsString());
+
+        final Registration joined = register(store, "wcho");
+        //Changes of other accounts are not pushed
+        store.put("Otherkrigsby", new Registration("Other", "krigsby", "", "token", "Otherkrigsby"));
+        store.remove(joined.getCallerId());
+        final JsonObject join = connection.next();
+        assertEquals("join", join.get("type").getAsString());
+        assertEquals("wcho", join.getAsJsonObject("user").get("userName").getAsString());
+        final JsonObject leave = connection.next();
+        assertEquals("leave", leave.get("type").getAsString());
+        assertEquals(joined.getCallerId(), leave.get("callerId").getAsString());
+        assertNull(connection.messages.poll(100, TimeUnit.MILLISECONDS));
+        hub.close();
+    }
+
+    @Test
+    public void rejectsUnregisteredUsers() {
+        final PresenceHub hub = new PresenceHub(new MockStore(), 16, 16);
+        final RecordingConnection connection = new RecordingConnection(true);
+        assertFalse(hub.subscribe(connection, new Registration("CBI", "rjohn", "", "invalid", ""), connection));
+        assertEquals(0, hub.getSubscribers());
+        hub.close();
+    }
+
+    @Test
+    public void acceptsVerifiedTokens() {
+        final Properties credentials = TokenVerifierTest.createCredentials();
+        final MockStore store = new MockStore(10);
+        final SparkyService service = new SparkyService(store);
+        service.setTokenVerifier(new TokenVerifier(() -> credentials, 16));
+        final Registration rjohn = SparkyService.fromJson(service.getAuthenticationJson(credentials, "{\"userName\":\"rjohn\",\"account\":\"CBI\"}"));
+        //E.g. evicted, or registered with another node
+        store.remove(MockStore.Companion.createKey("CBI", "rjohn"));
+        assertFalse(store.containsKey(MockStore.Companion.createKey("CBI", "rjohn")));
+        final PresenceHub hub = new PresenceHub(store, service::isAuthenticated, 16, 16);
+        final RecordingConnection connection = new RecordingConnection(true);
+        assertTrue(hub.subscribe(connection, rjohn, connection));
+        assertFalse(hub.subscribe(new Object(), new Registration("CBI", "rjohn", "", "invalid", ""), connection));
+        assertEquals(1, hub.getSubscribers());
+        hub.close();
+    }
+
+    @Test
+    public void disconnectsUnregisteredSubscribers() throws InterruptedException {
+        final MockStore store = new MockStore();
+        final Registration requester = register(store, "rjohn");
+        final PresenceHub hub = new PresenceHub(store, 16, 16);
+        final RecordingConnection connection = new RecordingConnection(true);
+        assertTrue(hub.subscribe(connection, requester, connection));
+        assertEquals("snapshot", connection.next().get("type").getAsString());
+        store.remove(requester.getCallerId());
+        for (int i = 0; i < 100 && connection.closeCode == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(PresenceHub.CLOSE_POLICY_VIOLATION, connection.closeCode);
+        assertEquals(0, hub.getSubscribers());
+        //Its own leave isn't sent to it
+        assertNull(connection.messages.poll(100, TimeUnit.MILLISECONDS));
+        hub.close();
+    }
+
+    @Test
+    public void disconnectsSlowSubscribers() throws InterruptedException {
+        final MockStore store = new MockStore();
+        final Registration requester = register(store, "rjohn");
+        final PresenceHub hub = new PresenceHub(store, 2, 16);
+        //Never finishes writing a message, so everything else piles up in its buffer
+        final RecordingConnection connection = new RecordingConnection(false);
+        assertTrue(hub.subscribe(connection, requester, connection));
+        for (int i = 0; i < 5; i++) {
+            register(store, "user" + i);
+        }
+        for (int i = 0; i < 100 && connection.closeCode == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(PresenceHub.CLOSE_POLICY_VIOLATION, connection.closeCode);
+        assertEquals(1, hub.getDisconnected());
+        assertEquals(0, hub.getSubscribers());
+        hub.close();
+    }
+
+    @NotNull
+    private static Registration register(@NotNull MockStore store, @NotNull String userName) {
+        final Registration registration = new Registration("CBI", userName, userName, "token-" + userName,
+                MockStore.Companion.createKey("CBI", userName));
+        store.put(registration.getCallerId(), registration);
+        return registration;
+    }
+
+    private static final class RecordingConnection implements PresenceHub.Connection {
+        private final boolean completeWrites;
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        volatile int closeCode;
+
+        RecordingConnection(boolean completeWrites) {
+            this.completeWrites = completeWrites;
+        }
+
+        @Override
+        public void send(@NotNull String message, @NotNull Runnable onDone) {
+            messages.add(message);
+            if (completeWrites) {
+                onDone.run();
+            }
+        }
+
+        @Override
+        public void close(int code, @NotNull String reason) {
+            closeCode = code;
+        }
+
+        @NotNull
+        JsonObject next() throws InterruptedException {
+            final String message = messages.poll(1, TimeUnit.SECONDS);
+            assertNotNull(message);
+            return Webapp.gson.fromJson(message, JsonObject.class);
+        }
+    }
+}
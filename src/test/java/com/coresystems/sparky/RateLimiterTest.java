@@ -0,0 +1,92 @@
+package com.coresystems.sparky;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.*;
+
+public final class RateLimiterTest {
+
+    @Test
+    public void burstThenRate() {
+        final AtomicLong now = new AtomicLong();
+        final RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(2, 4), Collections.emptyMap(), 100, 4, now::get);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, limiter.tryAcquire("CBI"));
+        }
+        //The bucket is empty, the next permit is available in half a second
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.tryAcquire("CBI"));
+        assertEquals(1, limiter.getRejected());
+        //Other keys have buckets of their own
+        assertEquals(0, limiter.tryAcquire("FBI"));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, limiter.tryAcquire("CBI"));
+        assertTrue(limiter.tryAcquire("CBI") > 0);
+        assertEquals(2, limiter.getRejected());
+    }
+
+    @Test
+    public void limitsByKey() {
+        final AtomicLong now = new AtomicLong();
+        final RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(1, 1),
+                Collections.singletonMap("CBI", RateLimiter.Limit.UNLIMITED), 100, 4, now::get);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.tryAcquire("CBI"));
+        }
+        assertEquals(0, limiter.getBuckets());
+        assertEquals(0, limiter.tryAcquire("FBI"));
+        assertTrue(limiter.tryAcquire("FBI") > 0);
+        assertFalse(limiter.isUnlimited());
+        assertTrue(new RateLimiter(RateLimiter.Limit.UNLIMITED, Collections.singletonMap("CBI", RateLimiter.Limit.UNLIMITED), 100, 4, now::get).isUnlimited());
+    }
+
+    @Test
+    public void boundedBuckets() {
+        final AtomicLong now = new AtomicLong();
+        final RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(1, 2), Collections.emptyMap(), 8, 1, now::get);
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire("user" + i);
+        }
+        //The least recently used buckets are dropped beyond the max number
+        assertEquals(8, limiter.getBuckets());
+
+        //Buckets which are full again are dropped along the way
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire("active");
+        }
+        assertTrue(limiter.getBuckets() < 8);
+    }
+
+    @Test
+    public void acquiresAllOrNone() {
+        final AtomicLong now = new AtomicLong();
+        final RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(2, 4), Collections.emptyMap(), 100, 4, now::get);
+        final Map<String, Integer> permits = new HashMap<>();
+        permits.put("CBIrjohn", 3);
+        permits.put("CBItlisbon", 2);
+        assertEquals(0, limiter.tryAcquireAll(permits));
+        assertEquals(0, limiter.tryAcquire("CBIrjohn"));
+
+        //rjohn's bucket is empty, so tlisbon's permits aren't taken either
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), limiter.tryAcquireAll(permits));
+        assertEquals(1, limiter.getRejected());
+        assertEquals(0, limiter.tryAcquire("CBItlisbon"));
+        assertEquals(0, limiter.tryAcquire("CBItlisbon"));
+        assertTrue(limiter.tryAcquire("CBItlisbon") > 0);
+
+        //Permits given back are available again
+        limiter.releaseAll(Collections.singletonMap("CBItlisbon", 2));
+        assertEquals(0, limiter.tryAcquireAll(Collections.singletonMap("CBItlisbon", 2)));
+
+        assertFalse(limiter.exceedsBurst("CBIrjohn", 4));
+        assertTrue(limiter.exceedsBurst("CBIrjohn", 5));
+        assertFalse(new RateLimiter(RateLimiter.Limit.UNLIMITED, Collections.emptyMap(), 100, 4, now::get).exceedsBurst("CBIrjohn", 5));
+    }
+}
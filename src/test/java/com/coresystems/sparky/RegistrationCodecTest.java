@@ -0,0 +1,45 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.Registration;
+import com.google.gson.JsonSyntaxException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+public final class RegistrationCodecTest {
+
+    @Test
+    public void read() {
+        final RegistrationCodec.Request request = RegistrationCodec.read("{\"userName\":\"rjohn\",\"account\":\"CBI\",\"fullName\":null," +
+                "\"forceReAuthentication\":true,\"unknown\":{\"nested\":[1,2]},\"token\":42}");
+        assertEquals(new Registration("CBI", "rjohn", "", "42", ""), request.registration);
+        assertTrue(request.forceReAuthentication);
+        //Clients sent the flag as a String so far
+        assertTrue(RegistrationCodec.read("{\"forceReAuthentication\":\"true\"}").forceReAuthentication);
+        assertFalse(RegistrationCodec.read("{}").forceReAuthentication);
+        assertSame(RegistrationCodec.EMPTY_REQUEST, RegistrationCodec.read(""));
+        assertSame(RegistrationCodec.EMPTY_REQUEST, RegistrationCodec.read("null"));
+        assertTrue(RegistrationCodec.readAll(null).isEmpty());
+        assertEquals(2, RegistrationCodec.readAll("[{\"userName\":\"rjohn\"},{\"userName\":\"tlisbon\"}]").size());
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void readMalformed() {
+        RegistrationCodec.read("{\"userName\":");
+    }
+
+    @Test
+    public void writeMatchesGson() {
+        final Registration registration = new Registration("CBI", "rjohn", "Red <John>", "token", "CBIrjohn", 1000, "previous", 500);
+        assertEquals(Webapp.gson.toJson(registration), RegistrationCodec.toJson(registration));
+        final List<Registration> registrations = Arrays.asList(registration, new Registration());
+        assertEquals(Webapp.gson.toJson(registrations), RegistrationCodec.toJson(registrations));
+        assertEquals(Webapp.gson.toJson(Collections.singletonList(registrations)), RegistrationCodec.toJsonLists(Collections.singletonList(registrations)));
+        //The expiries and the previous token never leave the server
+        assertEquals(new Registration("CBI", "rjohn", "Red <John>", "token", "CBIrjohn"), RegistrationCodec.read(RegistrationCodec.toJson(registration)).registration);
+    }
+}
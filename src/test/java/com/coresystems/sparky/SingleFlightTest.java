@@ -0,0 +1,134 @@
+package com.coresystems.sparky;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+public final class SingleFlightTest {
+
+    @Test
+    public void coalescesConcurrentCalls() throws Exception {
+        final int callers = 5;
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(callers);
+        final List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            results.add(executor.submit(() -> flight.execute("key", () -> {
+                executions.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "token-" + executions.get();
+            })));
+        }
+        //Wait until all but the running caller joined the running call
+        for (int i = 0; i < 500 && flight.getCoalesced() < callers - 1; i++) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Future<String> result : results) {
+            assertEquals("token-1", result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(1, executions.get());
+        assertEquals(callers - 1, flight.getCoalesced());
+
+        //Once the call finished, the next one runs anew
+        assertEquals("next", flight.execute("key", () -> "next"));
+    }
+
+    @Test
+    public void propagatesFailures() {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        try {
+            flight.execute("key", () -> {
+                throw new IllegalStateException("failed");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        //A failed call is not remembered
+        assertEquals("ok", flight.execute("key", () -> "ok"));
+    }
+
+    @Test
+    public void propagatesErrorsToWaitingCallers() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final Future<String> running = executor.submit(() -> flight.execute("key", () -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            throw new StackOverflowError("failed");
+        }));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        final Future<String> waiting = executor.submit(() -> flight.execute("key", () -> "not coalesced"));
+        for (int i = 0; i < 500 && flight.getCoalesced() == 0; i++) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        //Neither caller is left waiting
+        for (Future<String> result : Arrays.asList(running, waiting)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof StackOverflowError);
+            }
+        }
+        executor.shutdown();
+        assertEquals(1, flight.getCoalesced());
+        //A failed call is not remembered
+        assertEquals("ok", flight.execute("key", () -> "ok"));
+    }
+
+    @Test
+    public void coalescesAsyncCalls() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final CompletableFuture<String> call = new CompletableFuture<>();
+        final CompletableFuture<String> first = flight.executeAsync("key", () -> call);
+        final CompletableFuture<String> second = flight.executeAsync("key", () -> {
+            throw new AssertionError("Must join the running call");
+        });
+        assertFalse(first.isDone());
+        assertEquals(1, flight.getCoalesced());
+
+        call.complete("token");
+        assertEquals("token", first.get(5, TimeUnit.SECONDS));
+        assertEquals("token", second.get(5, TimeUnit.SECONDS));
+
+        //Once the call finished, the next one runs anew, failures included
+        try {
+            flight.executeAsync("key", () -> {
+                throw new IllegalStateException("failed");
+            }).join();
+            fail();
+        } catch (CompletionException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertEquals("ok", flight.executeAsync("key", () -> CompletableFuture.completedFuture("ok")).get());
+    }
+}
@@ -2,14 +2,22 @@ package com.coresystems.sparky;
 
 import com.coresystems.sparky.store.MockStore;
 import com.coresystems.sparky.store.Registration;
+import com.google.gson.JsonObject;
 import org.apache.commons.lang.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.coresystems.sparky.SparkyService.*;
 import static junit.framework.TestCase.*;
@@ -53,6 +61,189 @@ public final class SparkyServiceTest {
         }
     }
 
+    @Test
+    public void getAuthenticationJsonAfterKeyRotation() {
+        final Properties properties = getStaticProperties();
+        final SparkyService service = new SparkyService(new MockStore(5));
+        final String request = "{\"userName\":\"rjohn\",\"account\":\"CBI\"}";
+        final String token = SparkyService.fromJson(service.getAuthenticationJson(properties, request)).getToken();
+        assertTrue(TokenMinter.isSignedWith(token, properties.getProperty(API_KEY)));
+        assertEquals(token, SparkyService.fromJson(service.getAuthenticationJson(properties, request)).getToken());
+
+        //The stored token was signed with the previous key, so a new one is minted
+        final Properties rotated = new Properties();
+        rotated.putAll(properties);
+        rotated.put(API_KEY, UUID.randomUUID().toString());
+        final String replaced = SparkyService.fromJson(service.getAuthenticationJson(rotated, request)).getToken();
+        assertFalse(TokenMinter.isSignedWith(replaced, properties.getProperty(API_KEY)));
+        assertTrue(TokenMinter.isSignedWith(replaced, rotated.getProperty(API_KEY)));
+        assertFalse(TokenMinter.isSignedWith("token", rotated.getProperty(API_KEY)));
+    }
+
+    @Test
+    public void getAuthenticationJsonRefreshAhead() throws InterruptedException {
+        final Properties properties = getStaticProperties();
+        //Every token is due for a refresh right away, since it expires within the refresh-ahead time
+        final TokenMinter minter = new TokenMinter(1, 10, 60, 120000);
+        SparkyService service = new SparkyService(new MockStore(5), minter);
+        String jsonRequest = "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"fullName\":\"Red John\"}";
+        final Registration minted = SparkyService.fromJson(service.getAuthenticationJson(properties, jsonRequest));
+        assertEquals(1, minter.getOnDemand());
+
+        //The cached token is served while a new one is minted in the background
+        final Registration served = SparkyService.fromJson(service.getAuthenticationJson(properties, jsonRequest));
+        assertEquals(minted.getToken(), served.getToken());
+        assertEquals(1, minter.getStaleServed());
+        for (int i = 0; i < 100 && minter.getPreMinted() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, minter.getPreMinted());
+        assertEquals(1, minter.getOnDemand());
+
+        //Clients holding the replaced token are still accepted
+        assertEquals(minted.getToken(), service.extendPresence("{\"userName\":\"rjohn\",\"account\":\"CBI\",\"token\":\"" + minted.getToken() + "\"}").getToken());
+    }
+
+    @Test
+    public void getAuthenticationJsonAsync() throws Exception {
+        final Properties properties = getStaticProperties();
+        final TokenMinter minter = new TokenMinter(1, 10, 3600, 0);
+        SparkyService service = new SparkyService(new MockStore(5), minter);
+        String jsonRequest = "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"fullName\":\"Red John\"}";
+        final Registration minted = SparkyService.fromJson(service.getAuthenticationJsonAsync(properties, jsonRequest).get(5, TimeUnit.SECONDS));
+        assertFalse(StringUtils.isEmpty(minted.getToken()));
+        assertEquals("CBIrjohn", minted.getCallerId());
+        assertEquals(1, minter.getOnDemand());
+
+        //The stored token is served right away
+        final CompletableFuture<String> reused = service.getAuthenticationJsonAsync(properties, jsonRequest);
+        assertTrue(reused.isDone());
+        assertEquals(minted.getToken(), SparkyService.fromJson(reused.get()).getToken());
+        assertEquals(1, service.getReusedTokens());
+        assertEquals(1, minter.getOnDemand());
+    }
+
+    @Test
+    public void batchRequests() {
+        final Properties properties = getStaticProperties();
+        SparkyService service = new SparkyService(new MockStore(10));
+        final String existing = service.getAuthenticationJson(properties, "{\"userName\":\"rjohn\",\"account\":\"CBI\",\"fullName\":\"Red John\"}");
+        final String jsonResponse = service.getAuthenticationJsonBatch(properties, "[{\"userName\":\"rjohn\",\"account\":\"CBI\"}," +
+                "{\"userName\":\"tlisbon\",\"account\":\"CBI\",\"fullName\":\"Teresa Lisbon\"}," +
+                "{\"userName\":\"tlisbon\",\"account\":\"CBI\",\"fullName\":\"Teresa Lisbon\"}]");
+        final List<Registration> registrations = SparkyService.fromJsonList(jsonResponse);
+        assertEquals(3, registrations.size());
+        //Already registered users keep their token, duplicates get the same one
+        assertEquals(SparkyService.fromJson(existing).getToken(), registrations.get(0).getToken());
+        assertEquals("CBItlisbon", registrations.get(1).getCallerId());
+        assertFalse(registrations.get(1).getToken().isEmpty());
+        assertEquals(registrations.get(1).getToken(), registrations.get(2).getToken());
+
+        final List<List<Registration>> users = service.getAuthenticatedUsersByAccountBatch(Webapp.gson.toJson(Arrays.asList(
+                registrations.get(0), registrations.get(1), new Registration("CBI", "wcho", "", "invalid", ""))));
+        assertEquals(3, users.size());
+        assertEquals("tlisbon", users.get(0).get(0).getUserName());
+        assertEquals("", users.get(0).get(0).getToken());
+        assertEquals("rjohn", users.get(1).get(0).getUserName());
+        assertTrue(users.get(2).isEmpty());
+
+        final List<Registration> removed = service.removeRegistrationBatch(Webapp.gson.toJson(Arrays.asList(
+                registrations.get(0), new Registration("CBI", "tlisbon", "", "invalid", ""))));
+        assertEquals("rjohn", removed.get(0).getUserName());
+        assertEquals("", removed.get(1).getUserName());
+        assertTrue(service.getAuthenticatedUsersByAccount(Webapp.gson.toJson(registrations.get(1))).isEmpty());
+    }
+
+    @Test
+    public void batchSharesMints() throws Exception {
+        final Properties properties = getStaticProperties();
+        final TokenMinter minter = new TokenMinter(1, 10, 3600, 0);
+        final SparkyService service = new SparkyService(new MockStore(10), minter);
+        final String rjohn = "{\"userName\":\"rjohn\",\"account\":\"CBI\"}";
+        //Either joins the running mint or finds its token stored, never signs another one
+        final CompletableFuture<String> single = service.getAuthenticationJsonAsync(properties, rjohn);
+        final List<Registration> batch = SparkyService.fromJsonList(service.getAuthenticationJsonBatch(properties, "[" + rjohn + "]"));
+        assertEquals(SparkyService.fromJson(single.get(5, TimeUnit.SECONDS)).getToken(), batch.get(0).getToken());
+        assertEquals(1, minter.getOnDemand());
+
+        //A forced re-authentication which failed doesn't hand out the token it should have replaced
+        final Properties broken = getStaticProperties();
+        broken.put(API_SECRET, "");
+        final JsonObject failed = Webapp.gson.fromJson(service.getAuthenticationJsonBatch(broken,
+                "[{\"userName\":\"rjohn\",\"account\":\"CBI\",\"forceReAuthentication\":true}]"), JsonObject[].class)[0];
+        assertEquals("", failed.get("token").getAsString());
+        assertFalse(failed.get("error").getAsString().isEmpty());
+
+        final StringBuilder tooMany = new StringBuilder("[");
+        for (int i = 0; i <= MAX_BATCH_SIZE; i++) {
+            tooMany.append(i == 0 ? "" : ",").append(rjohn);
+        }
+        try {
+            service.getAuthenticationJsonBatch(properties, tooMany.append(']').toString());
+            fail();
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void writeUsersPaged() throws IOException {
+        final Properties properties = getStaticProperties();
+        SparkyService service = new SparkyService(new MockStore(10));
+        final String requester = service.getAuthenticationJson(properties, "{\"userName\":\"rjohn\",\"account\":\"CBI\"}");
+        for (String userName : Arrays.asList("tlisbon", "wcho", "krigsby")) {
+            service.getAuthenticationJson(properties, "{\"userName\":\"" + userName + "\",\"account\":\"CBI\"}");
+        }
+
+        //Without a limit the streamed list matches the one built in memory
+        final StringWriter all = new StringWriter();
+        service.writeAuthenticatedUsersByAccount(requester, null, 0, all);
+        assertEquals(3, SparkyService.fromJsonList(all.toString()).size());
+        assertEquals(service.getAuthenticatedUsersByAccount(requester).size(), SparkyService.fromJsonList(all.toString()).size());
+
+        final List<String> userNames = new ArrayList<>();
+        String cursor = null;
+        do {
+            final StringWriter page = new StringWriter();
+            service.writeAuthenticatedUsersByAccount(requester, cursor, 2, page);
+            final JsonObject json = Webapp.gson.fromJson(page.toString(), JsonObject.class);
+            for (Registration user : SparkyService.fromJsonList(json.get("users").toString())) {
+                assertEquals("", user.getToken());
+                userNames.add(user.getUserName());
+            }
+            cursor = json.has("cursor") ? json.get("cursor").getAsString() : null;
+        } while (cursor != null);
+        //Ordered by callerId, the requester is left out
+        assertEquals(Arrays.asList("krigsby", "tlisbon", "wcho"), userNames);
+
+        try {
+            service.writeAuthenticatedUsersByAccount(requester, "not a cursor", 2, new StringWriter());
+            fail("An invalid cursor must be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void getUsersETag() {
+        final Properties properties = getStaticProperties();
+        SparkyService service = new SparkyService(new MockStore(10));
+        final String requester = service.getAuthenticationJson(properties, "{\"userName\":\"rjohn\",\"account\":\"CBI\"}");
+        final String etag = service.getUsersETag(requester, null, 0);
+        assertNotNull(etag);
+        assertEquals(etag, service.getUsersETag(requester, null, 0));
+        //Pages differ from the whole list
+        assertFalse(etag.equals(service.getUsersETag(requester, null, 2)));
+        assertNull(service.getUsersETag("{\"userName\":\"rjohn\",\"account\":\"CBI\",\"token\":\"invalid\"}", null, 0));
+
+        service.getAuthenticationJson(properties, "{\"userName\":\"tlisbon\",\"account\":\"CBI\"}");
+        assertFalse(etag.equals(service.getUsersETag(requester, null, 0)));
+
+        assertTrue(Webapp.matches(service.getUsersETag(requester, null, 0), service.getUsersETag(requester, null, 0)));
+        assertTrue(Webapp.matches("\"other\", W/" + service.getUsersETag(requester, null, 0), service.getUsersETag(requester, null, 0)));
+        assertFalse(Webapp.matches(etag, service.getUsersETag(requester, null, 0)));
+        assertFalse(Webapp.matches(null, etag));
+    }
+
     /**
      * @return dummy test properties.
      */
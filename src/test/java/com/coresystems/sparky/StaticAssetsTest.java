@@ -0,0 +1,59 @@
+package com.coresystems.sparky;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.TestCase.*;
+
+public final class StaticAssetsTest {
+
+    @Test
+    public void loadsAndFingerprints() throws IOException {
+        final StaticAssets assets = StaticAssets.load("/public");
+        final String script = assets.getFingerprintedPath("/quickstart.js");
+        assertTrue(script, script.matches("/quickstart\\.[0-9a-f]{16}\\.js"));
+        assertTrue(assets.getPaths().containsAll(Arrays.asList(StaticAssets.INDEX, "/quickstart.js", script)));
+        //Pages aren't fingerprinted, they refer to the fingerprinted files instead
+        assertEquals(StaticAssets.INDEX, assets.getFingerprintedPath(StaticAssets.INDEX));
+        final String index = new String(assets.getContent(StaticAssets.INDEX, false), StandardCharsets.UTF_8);
+        assertTrue(index.contains("src=\"" + script + "\""));
+        assertFalse(index.contains("\"quickstart.js\""));
+
+        //The compressed copy holds the same content
+        final byte[] gzipped = assets.getContent(script, true);
+        assertNotNull(gzipped);
+        assertTrue(Arrays.equals(assets.getContent(script, false), gunzip(gzipped)));
+    }
+
+    @Test
+    public void linkFingerprinted() {
+        final Map<String, String> fingerprinted = new LinkedHashMap<>();
+        fingerprinted.put("/app.js", "/app.1.js");
+        fingerprinted.put("/css/site.css", "/css/site.2.css");
+        final String html = "<script src=\"app.js\"></script><link href='/css/site.css'><img src=\"other.png\">";
+        assertEquals("<script src=\"/app.1.js\"></script><link href='/css/site.2.css'><img src=\"other.png\">",
+                StaticAssets.linkFingerprinted(html, "/index.html", fingerprinted));
+        assertEquals(html, StaticAssets.linkFingerprinted(html, "/index.html", Collections.emptyMap()));
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,158 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.ConcurrentStore;
+import com.coresystems.sparky.store.InProcessBackend;
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import com.coresystems.sparky.store.TieredStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static junit.framework.TestCase.*;
+
+public final class TieredStoreTest {
+    //Long enough for the background flush to never interfere, the tests flush themselves
+    private static final long FLUSH_MILLIS = 60000;
+
+    @Test
+    public void coalescesWrites() {
+        final InProcessBackend backend = new InProcessBackend();
+        final TieredStore store = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS);
+        final Registration value = createRegistration("CBI");
+        for (int i = 0; i < 10; i++) {
+            store.put(value.getCallerId(), value);
+        }
+        store.put(UUID.randomUUID().toString(), createRegistration("CBI"));
+        //Served locally, the backend hasn't been asked
+        assertEquals(value, store.get(value.getCallerId()));
+        assertEquals(0, backend.getRoundTrips());
+
+        store.flush();
+        assertEquals(1, backend.getRoundTrips());
+        assertEquals(2, backend.size());
+
+        store.remove(value.getCallerId());
+        store.flush();
+        assertEquals(1, backend.size());
+    }
+
+    @Test
+    public void readsThroughOnMiss() {
+        final InProcessBackend backend = new InProcessBackend();
+        final TieredStore writer = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS);
+        final Registration value = createRegistration("CBI");
+        writer.put(value.getCallerId(), value);
+        writer.flush();
+
+        //Another server sharing the backend
+        final TieredStore reader = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS);
+        assertTrue(reader.isValidEntry(value));
+        assertEquals(1, reader.getByAccount("CBI").size());
+        final long roundTrips = backend.getRoundTrips();
+        //Cached locally now
+        assertEquals(value, reader.get(value.getCallerId()));
+        assertEquals(roundTrips, backend.getRoundTrips());
+    }
+
+    @Test
+    public void readsPendingChangesFirst() {
+        final InProcessBackend backend = new InProcessBackend();
+        final ConcurrentStore local = new ConcurrentStore();
+        final TieredStore store = new TieredStore(local, backend, FLUSH_MILLIS);
+        final Registration value = createRegistration("CBI");
+        store.put(value.getCallerId(), value);
+        store.flush();
+
+        //Removed, but the backend doesn't know yet
+        store.remove(value.getCallerId());
+        assertTrue(store.get(value.getCallerId()).getToken().isEmpty());
+        assertFalse(store.isValidEntry(value));
+        assertFalse(local.containsKey(value.getCallerId()));
+        store.flush();
+        assertEquals(0, backend.size());
+        assertFalse(store.containsKey(value.getCallerId()));
+
+        //Evicted before its put was sent
+        final Registration other = createRegistration("CBI");
+        store.put(other.getCallerId(), other);
+        local.remove(other.getCallerId());
+        final long roundTrips = backend.getRoundTrips();
+        assertEquals(other, store.get(other.getCallerId()));
+        assertEquals(roundTrips, backend.getRoundTrips());
+    }
+
+    @Test
+    public void servesLoadedAccountsLocally() {
+        final InProcessBackend backend = new InProcessBackend();
+        final TieredStore writer = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS);
+        for (int i = 0; i < 5; i++) {
+            final Registration value = createRegistration("CBI");
+            writer.put(value.getCallerId(), value);
+        }
+        writer.flush();
+
+        //The first page loads the account, the following ones are served locally
+        final TieredStore reader = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS, 5000, 100000, 60000);
+        final long roundTrips = backend.getRoundTrips();
+        final Map<String, Registration> first = reader.getByAccount("CBI", "", 2);
+        assertEquals(2, first.size());
+        final String lastKey = new ArrayList<>(first.keySet()).get(1);
+        assertEquals(3, reader.getByAccount("CBI", lastKey, 10).size());
+        assertEquals(5, reader.getByAccount("CBI").size());
+        assertEquals(roundTrips + 1, backend.getRoundTrips());
+
+        //Once stale, further pages are read from the backend page by page, with pending changes on top
+        final TieredStore stale = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS, 5000, 100000, 0);
+        final Map<String, Registration> page = stale.getByAccount("CBI", "", 2);
+        final List<String> keys = new ArrayList<>(page.keySet());
+        final List<String> rest = new ArrayList<>(stale.getByAccount("CBI", keys.get(1), 10).keySet());
+        assertEquals(3, rest.size());
+        stale.remove(rest.get(0));
+        //The removal thins out the first page read, so another one is read to fill it
+        assertEquals(rest.subList(1, 3), new ArrayList<>(stale.getByAccount("CBI", keys.get(1), 2).keySet()));
+        assertEquals(roundTrips + 5, backend.getRoundTrips());
+    }
+
+    @Test
+    public void fallsBackToLocalCache() {
+        final InProcessBackend backend = new InProcessBackend();
+        final TieredStore store = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS, 0);
+        backend.setFailing(true);
+        final Registration value = createRegistration("CBI");
+        store.put(value.getCallerId(), value);
+        store.flush();
+        assertEquals(0, backend.size());
+        //The failing backend doesn't keep us from serving what we have locally
+        assertTrue(store.isValidEntry(value));
+        assertEquals(1, store.getByAccount("CBI").size());
+
+        //Once the backend is back, the pending changes are sent
+        backend.setFailing(false);
+        store.flush();
+        assertEquals(1, backend.size());
+    }
+
+    @Test
+    public void staysLocalWhileUnavailable() {
+        final InProcessBackend backend = new InProcessBackend();
+        final TieredStore store = new TieredStore(new ConcurrentStore(), backend, FLUSH_MILLIS, 60000);
+        backend.setFailing(true);
+        store.get(UUID.randomUUID().toString());
+        final long roundTrips = backend.getRoundTrips();
+        assertFalse(store.isBackendAvailable());
+        //Further misses don't even try the backend until the retry time passed
+        store.get(UUID.randomUUID().toString());
+        store.getByAccount("CBI");
+        store.flush();
+        assertEquals(roundTrips, backend.getRoundTrips());
+    }
+
+    private static Registration createRegistration(String account) {
+        final String userName = UUID.randomUUID().toString();
+        return new Registration(account, userName, UUID.randomUUID().toString(), UUID.randomUUID().toString(), MockStore.Companion.createKey(account, userName));
+    }
+}
@@ -0,0 +1,59 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.TimerWheel;
+import kotlin.Unit;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.*;
+
+public final class TimerWheelTest {
+
+    @Test
+    public void firesItemsScheduledWhileAdvancing() throws InterruptedException {
+        final AtomicLong now = new AtomicLong();
+        final AtomicInteger fired = new AtomicInteger();
+        final TimerWheel<Integer> wheel = new TimerWheel<>(0, 1, 64, item -> {
+            fired.incrementAndGet();
+            return Unit.INSTANCE;
+        });
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread advancer = new Thread(() -> {
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+            while (System.nanoTime() < end) {
+                wheel.advance(now.incrementAndGet());
+            }
+            done.set(true);
+        });
+        final AtomicInteger scheduled = new AtomicInteger();
+        final Thread[] schedulers = new Thread[4];
+        for (int i = 0; i < schedulers.length; i++) {
+            schedulers[i] = new Thread(() -> {
+                //An item per tick, right as the wheel advances
+                long last = -1;
+                while (!done.get()) {
+                    final long tick = now.get();
+                    if (tick != last) {
+                        wheel.schedule(scheduled.incrementAndGet(), tick);
+                        last = tick;
+                    }
+                }
+            });
+            schedulers[i].start();
+        }
+        advancer.start();
+        advancer.join();
+        for (Thread scheduler : schedulers) {
+            scheduler.join();
+        }
+
+        //Items added while the wheel passed their tick must not wait for the next revolution
+        wheel.advance(now.get() + 1);
+        assertEquals(0, wheel.size());
+        assertEquals(scheduled.get(), fired.get());
+    }
+}
@@ -0,0 +1,134 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.TestCase.*;
+
+public final class TokenVerifierTest {
+
+    @Test
+    public void verifiesMintedTokens() {
+        final AtomicReference<Properties> credentials = new AtomicReference<>(createCredentials());
+        final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        final TokenVerifier verifier = new TokenVerifier(credentials::get, 16, now::get);
+        final String token = new TokenMinter(1, 10, 3600, 0).mint(credentials.get(), new Registration("CBI", "rjohn", "", "", "CBIrjohn")).getToken();
+
+        assertTrue(verifier.verify(token, "CBIrjohn"));
+        assertTrue(verifier.verify(token, "CBIrjohn"));
+        assertEquals(1, verifier.getHits());
+        assertEquals(1, verifier.getMisses());
+        //Issued to another caller
+        assertFalse(verifier.verify(token, "CBItlisbon"));
+        //Tampered with or not a token at all
+        final String[] parts = token.split("\\.");
+        assertFalse(verifier.verify(parts[0] + '.' + parts[1] + '.' + parts[2].substring(1) + 'A', "CBIrjohn"));
+        assertFalse(verifier.verify(parts[0] + '.' + parts[1], "CBIrjohn"));
+        assertFalse(verifier.verify("not a token", "CBIrjohn"));
+        assertFalse(verifier.verify("", "CBIrjohn"));
+
+        //Expired
+        now.addAndGet(TimeUnit.SECONDS.toMillis(3601));
+        assertFalse(verifier.verify(token, "CBIrjohn"));
+        now.addAndGet(-TimeUnit.SECONDS.toMillis(3601));
+
+        //Tokens signed with a secret which has been replaced aren't accepted any longer
+        credentials.set(createCredentials());
+        assertFalse(verifier.verify(token, "CBIrjohn"));
+    }
+
+    @Test
+    public void authenticatesWithoutRegistration() {
+        final Properties credentials = createCredentials();
+        final MockStore store = new MockStore(10);
+        final SparkyService service = new SparkyService(store);
+        final Registration rjohn = SparkyService.fromJson(service.getAuthenticationJson(credentials, "{\"userName\":\"rjohn\",\"account\":\"CBI\"}"));
+        service.getAuthenticationJson(credentials, "{\"userName\":\"tlisbon\",\"account\":\"CBI\"}");
+        //E.g. evicted, or registered with another node
+        store.remove(MockStore.Companion.createKey("CBI", "rjohn"));
+        final String request = Webapp.gson.toJson(rjohn);
+        assertTrue(service.getAuthenticatedUsersByAccount(request).isEmpty());
+
+        service.setTokenVerifier(new TokenVerifier(() -> credentials, 16));
+        assertEquals("tlisbon", service.getAuthenticatedUsersByAccount(request).get(0).getUserName());
+        assertEquals("rjohn", service.removeRegistration(request).getUserName());
+        assertTrue(service.getAuthenticatedUsersByAccount(Webapp.gson.toJson(new Registration("CBI", "rjohn", "", "invalid", ""))).isEmpty());
+    }
+
+    @Test
+    public void rejectsRevokedTokens() throws IOException {
+        final Properties credentials = createCredentials();
+        final MockStore store = new MockStore(10);
+        final SparkyService service = new SparkyService(store);
+        service.setTokenVerifier(new TokenVerifier(() -> credentials, 16));
+        final String rjohn = Webapp.gson.toJson(SparkyService.fromJson(service.getAuthenticationJson(credentials, "{\"userName\":\"rjohn\",\"account\":\"CBI\"}")));
+        final Registration cho = SparkyService.fromJson(service.getAuthenticationJson(credentials, "{\"userName\":\"cho\",\"account\":\"CBI\"}"));
+        service.getAuthenticationJson(credentials, "{\"userName\":\"tlisbon\",\"account\":\"CBI\"}");
+        assertEquals(2, service.getAuthenticatedUsersByAccount(rjohn).size());
+
+        //Logged out, the token is still signed and unexpired
+        assertEquals("rjohn", service.removeRegistration(rjohn).getUserName());
+        assertTrue(service.getAuthenticatedUsersByAccount(rjohn).isEmpty());
+        final StringWriter out = new StringWriter();
+        service.writeAuthenticatedUsersByAccount(rjohn, null, 0, out);
+        assertEquals("[]", out.toString());
+        assertTrue(service.removeRegistration(rjohn).getUserName().isEmpty());
+
+        //Replaced by a forced re-authentication, while registered and after the registration was dropped
+        final String choRequest = Webapp.gson.toJson(cho);
+        final Registration replaced = SparkyService.fromJson(service.getAuthenticationJson(credentials,
+                "{\"userName\":\"cho\",\"account\":\"CBI\",\"forceReAuthentication\":true}"));
+        assertFalse(cho.getToken().equals(replaced.getToken()));
+        assertTrue(service.getAuthenticatedUsersByAccount(choRequest).isEmpty());
+        store.remove(MockStore.Companion.createKey("CBI", "cho"));
+        assertTrue(service.getAuthenticatedUsersByAccount(choRequest).isEmpty());
+        //The new token is likely issued within the same second as the revoked one, and isn't revoked along
+        assertEquals(1, service.getAuthenticatedUsersByAccount(Webapp.gson.toJson(replaced)).size());
+    }
+
+    @Test
+    public void keepsRevocationsBounded() {
+        final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toMillis(100));
+        final Revocations revocations = new Revocations(2, TimeUnit.HOURS.toMillis(12), now::get);
+        assertFalse(revocations.isRevoked("CBIrjohn", now.get() - 3000, "a"));
+        revocations.revoke("CBIrjohn", now.get() - 3000, "a");
+        revocations.revoke("CBIrjohn", now.get() - 4000, "b");
+        assertTrue(revocations.isRevoked("CBIrjohn", now.get() - 3000, "a"));
+        assertTrue(revocations.isRevoked("CBIrjohn", now.get() - 4000, "b"));
+        //Another token issued within the same second, or later
+        assertFalse(revocations.isRevoked("CBIrjohn", now.get() - 3000, "c"));
+        assertFalse(revocations.isRevoked("CBIrjohn", now.get() - 2000, "d"));
+        revocations.revoke("CBIcho", now.get() - 2000, "e");
+        assertFalse(revocations.isRevoked("CBItlisbon", now.get() - 4000, "f"));
+
+        //Dropping a revocation revokes the tokens of everyone issued until then
+        revocations.revoke("CBItlisbon", now.get() - 1000, "g");
+        assertTrue(revocations.isRevoked("CBIvanpelt", now.get() - 3000, "h"));
+        assertFalse(revocations.isRevoked("CBIvanpelt", now.get() - 2999, "h"));
+        assertTrue(revocations.isRevoked("CBIcho", now.get() - 2000, "e"));
+        assertFalse(revocations.isRevoked("CBIcho", now.get() - 2000, "i"));
+
+        //Once the revoked tokens expired, their revocations are dropped without raising the floor
+        now.addAndGet(TimeUnit.HOURS.toMillis(12));
+        revocations.revoke("CBIvanpelt", now.get(), "j");
+        assertFalse(revocations.isRevoked("CBIcho", now.get() - TimeUnit.HOURS.toMillis(12) - 2999, "i"));
+    }
+
+    static Properties createCredentials() {
+        final Properties properties = new Properties();
+        properties.put(SparkyService.ACCOUNT_SID, "AC" + UUID.randomUUID());
+        properties.put(SparkyService.VIDEO_CONFIGURATION_SID, "VS" + UUID.randomUUID());
+        properties.put(SparkyService.API_KEY, "SK" + UUID.randomUUID());
+        properties.put(SparkyService.API_SECRET, UUID.randomUUID().toString());
+        return properties;
+    }
+}
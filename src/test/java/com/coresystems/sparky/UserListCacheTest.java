@@ -0,0 +1,77 @@
+package com.coresystems.sparky;
+
+import com.coresystems.sparky.store.MockStore;
+import com.coresystems.sparky.store.Registration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+public final class UserListCacheTest {
+
+    @Test
+    public void writesKeptListWithoutRequester() throws IOException {
+        final MockStore store = new MockStore(10);
+        final UserListCache cache = new UserListCache(store, 4, 100);
+        for (String userName : new String[]{"rjohn", "tlisbon", "wcho"}) {
+            store.put(MockStore.Companion.createKey("CBI", userName), new Registration("CBI", userName, "Agent " + userName, "token", ""));
+        }
+
+        assertEquals(2, cache.write("CBI", "tlisbon", new StringWriter()));
+        assertEquals(1, cache.getMisses());
+        //Every requester is served from the same list, each one without itself
+        for (String requester : new String[]{"rjohn", "tlisbon", "wcho", "krigsby"}) {
+            final StringWriter out = new StringWriter();
+            final int count = cache.write("CBI", requester, out);
+            final List<Registration> users = SparkyService.fromJsonList(out.toString());
+            assertEquals(count, users.size());
+            for (Registration user : users) {
+                assertFalse(requester.equals(user.getUserName()));
+                assertEquals("Agent " + user.getUserName(), user.getFullName());
+                assertEquals("", user.getToken());
+            }
+        }
+        assertEquals(4, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        //Lists of accounts with too many users aren't kept
+        final UserListCache small = new UserListCache(store, 4, 2);
+        assertEquals(-1, small.write("CBI", "rjohn", new StringWriter()));
+        assertEquals(0, small.size());
+    }
+
+    @Test
+    public void versionChangesWithAccount() throws IOException {
+        final MockStore store = new MockStore(4);
+        final UserListCache cache = new UserListCache(store, 4, 100);
+        final String etag = cache.getETag("CBI", "rjohn");
+        assertEquals(etag, cache.getETag("CBI", "rjohn"));
+        assertFalse(etag.equals(cache.getETag("CBI", "tlisbon")));
+
+        store.put("CBIrjohn", new Registration("CBI", "rjohn", "Red John", "token", ""));
+        assertEquals(1, cache.getVersion("CBI"));
+        assertFalse(etag.equals(cache.getETag("CBI", "rjohn")));
+        final StringWriter before = new StringWriter();
+        cache.write("CBI", "", before);
+
+        store.put("CBItlisbon", new Registration("CBI", "tlisbon", "Teresa Lisbon", "token", ""));
+        store.remove("CBIrjohn");
+        assertEquals(3, cache.getVersion("CBI"));
+        final StringWriter after = new StringWriter();
+        cache.write("CBI", "", after);
+        assertEquals(2, cache.getMisses());
+        assertEquals("rjohn", SparkyService.fromJsonList(before.toString()).get(0).getUserName());
+        assertEquals("tlisbon", SparkyService.fromJsonList(after.toString()).get(0).getUserName());
+
+        //Evictions count as well
+        final long version = cache.getVersion("FBI");
+        for (int i = 0; i < 5; i++) {
+            store.put("FBIagent" + i, new Registration("FBI", "agent" + i, "", "token", ""));
+        }
+        assertTrue(cache.getVersion("CBI") > 3);
+        assertTrue(cache.getVersion("FBI") > version + 5);
+    }
+}